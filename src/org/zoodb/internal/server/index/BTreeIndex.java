@@ -20,13 +20,21 @@
  */
 package org.zoodb.internal.server.index;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
 import org.zoodb.internal.server.IOResourceProvider;
 import org.zoodb.internal.server.StorageChannelOutput;
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntryIterator;
 import org.zoodb.internal.server.index.btree.AscendingBTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
+import org.zoodb.internal.server.index.btree.BTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.BTreeSnapshot;
+import org.zoodb.internal.server.index.btree.BTreeSpliterator;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
 import org.zoodb.internal.server.index.btree.DescendingBTreeLeafEntryIterator;
 import org.zoodb.internal.server.index.btree.PagedBTree;
@@ -44,10 +52,26 @@ public abstract class BTreeIndex extends AbstractIndex {
     protected PAGE_TYPE dataType;
 
 	public BTreeIndex(PAGE_TYPE dataType, IOResourceProvider file, boolean isNew, boolean isUnique) {
+		this(dataType, file, isNew, isUnique, null);
+	}
+
+	/**
+	 * @param bufferPool The pool for the clean nodes of the index or 
+	 * {@code null} to give the index its own pool. A pool can be shared by
+	 * the indexes of one database to limit the memory used by their clean
+	 * nodes with a single budget, see {@link BTreeBufferPool}. The indexes
+	 * have to be closed or cleared when they are not used anymore, so that
+	 * their nodes are removed from the pool, see {@link #close()}.
+	 */
+	public BTreeIndex(PAGE_TYPE dataType, IOResourceProvider file, boolean isNew, boolean isUnique,
+			BTreeBufferPool bufferPool) {
 		super(file, isNew, isUnique);
         this.dataType = dataType;
         bufferManager = new BTreeStorageBufferManager(file, isUnique, dataType);
         this.dataType = dataType;
+        if (bufferPool != null) {
+        	bufferManager.setBufferPool(bufferPool);
+        }
 	}
 
 	public void insertLong(long key, long value) {
@@ -58,6 +82,43 @@ public abstract class BTreeIndex extends AbstractIndex {
         return getTree().insert(key, value, true);
     }
 
+	/**
+	 * Inserts a batch of entries. This is much faster than inserting the
+	 * entries one by one, see {@link PagedBTree#insertAll(long[], long[], int)}.
+	 * @param keys The keys.
+	 * @param values The values.
+	 * @param n The number of entries.
+	 */
+	public void insertAll(long[] keys, long[] values, int n) {
+		getTree().insertAll(keys, values, n);
+	}
+
+	/**
+	 * Builds the index from sorted entries. This is much faster than 
+	 * inserting the entries one by one, see 
+	 * {@link PagedBTree#bulkLoad(Iterator, double, StorageChannelOutput)}.
+	 * @param entries The entries in ascending order.
+	 * @param fillFactor The fraction of each page that is filled.
+	 * @param out If not {@code null}, the pages are written as soon as they 
+	 * are complete.
+	 * @throws IllegalStateException if the index is not empty.
+	 */
+	public void bulkLoad(Iterator<LLEntry> entries, double fillFactor, 
+			StorageChannelOutput out) {
+		getTree().bulkLoad(entries, fillFactor, out);
+	}
+
+	/**
+	 * Removes all entries whose key is in [min, max]. Pages that contain
+	 * only such entries are freed without reading them, see 
+	 * {@link PagedBTree#removeRange(long, long)}.
+	 * @param min The smallest key to remove.
+	 * @param max The largest key to remove.
+	 */
+	public void removeRange(long min, long max) {
+		getTree().removeRange(min, max);
+	}
+
 	public void print() {
         System.out.println(getTree());
 	}
@@ -70,6 +131,14 @@ public abstract class BTreeIndex extends AbstractIndex {
 		return getTree().statsGetInnerN();
 	}
 
+	public int statsGetHeight() {
+		return getTree().statsGetHeight();
+	}
+
+	public long statsGetBytes() {
+		return getTree().statsGetBytes();
+	}
+
 	public LLEntryIterator iterator() {
 		return new AscendingBTreeLeafEntryIterator(getTree());
 	}
@@ -86,6 +155,82 @@ public abstract class BTreeIndex extends AbstractIndex {
         return new DescendingBTreeLeafEntryIterator(getTree(), min, max);
 	}
 
+	/**
+	 * Returns a cursor over the entries with keys in [min, max]. Scans with
+	 * the cursor do not allocate objects per entry, see 
+	 * {@link BTreeLeafEntryIterator#advance()}. The entries can also be 
+	 * copied in blocks, see 
+	 * {@link BTreeLeafEntryIterator#nextBlock(long[], long[], int)}.
+	 * @param min The smallest key.
+	 * @param max The largest key.
+	 * @return An ascending cursor.
+	 */
+	public BTreeLeafEntryIterator cursor(long min, long max) {
+		return new AscendingBTreeLeafEntryIterator(getTree(), min, max);
+	}
+
+	/**
+	 * Returns a cursor over the entries with keys in [min, max] in 
+	 * descending order, see {@link #cursor(long, long)}.
+	 * @param max The largest key.
+	 * @param min The smallest key.
+	 * @return A descending cursor.
+	 */
+	public BTreeLeafEntryIterator descendingCursor(long max, long min) {
+		return new DescendingBTreeLeafEntryIterator(getTree(), min, max);
+	}
+
+	/**
+	 * Returns a cursor over the entries with keys in [min, max] as they are
+	 * now. Unlike {@link #cursor(long, long)}, the cursor can be used while
+	 * the index is modified, see {@link BTreeSnapshot}. The cursor should be
+	 * closed when it is not used anymore.
+	 * @param min The smallest key.
+	 * @param max The largest key.
+	 * @return An ascending cursor.
+	 */
+	public BTreeLeafEntryIterator snapshotCursor(long min, long max) {
+		return new AscendingBTreeLeafEntryIterator(getTree(), min, max, true);
+	}
+
+	/**
+	 * Returns a cursor over the entries with keys in [min, max] as they are
+	 * now in descending order, see {@link #snapshotCursor(long, long)}.
+	 * @param max The largest key.
+	 * @param min The smallest key.
+	 * @return A descending cursor.
+	 */
+	public BTreeLeafEntryIterator descendingSnapshotCursor(long max, long min) {
+		return new DescendingBTreeLeafEntryIterator(getTree(), min, max, true);
+	}
+
+	/**
+	 * Closes the snapshot cursors of the index, see 
+	 * {@link BTreeSnapshot.Registry#endTransaction(boolean)}. This is done
+	 * by {@link #write(StorageChannelOutput)} when the transaction commits,
+	 * it has to be called when the transaction is rolled back. Pages that
+	 * are freed while no snapshot is open are not deferred.
+	 * @param commit Whether the transaction has been committed.
+	 */
+	public void endTransaction(boolean commit) {
+		bufferManager.getSnapshots().endTransaction(commit);
+	}
+
+	/**
+	 * Returns the values of the entries with keys in [min, max] in 
+	 * ascending order of the entries. The stream is sequential. Callers may
+	 * make it parallel with {@link LongStream#parallel()}, but the leaves 
+	 * are still read one block at a time under the lock of the tree, see 
+	 * {@link BTreeSpliterator}. Only the processing of the values runs 
+	 * concurrently.
+	 * @param min The smallest key.
+	 * @param max The largest key.
+	 * @return A sequential stream of the values.
+	 */
+	public LongStream stream(long min, long max) {
+		return StreamSupport.longStream(new BTreeSpliterator(getTree(), min, max), false);
+	}
+
 	public long getMinKey() {
 		return getTree().getMinKey();
 	}
@@ -94,7 +239,25 @@ public abstract class BTreeIndex extends AbstractIndex {
 		return getTree().getMaxKey();
 	}
 
+	/**
+	 * Removes the nodes of the index from memory and from the buffer pool.
+	 * The pages are not freed, changes that have not been written are 
+	 * lost. The index can not be used afterwards.
+	 */
+	public void close() {
+		bufferManager.close();
+	}
+
+	/**
+	 * Writes the modified nodes of the index. This ends the transaction of
+	 * the snapshot cursors, see {@link #endTransaction(boolean)}, because
+	 * writing frees the pages that they read. Their deferred pages are 
+	 * freed before the nodes are written.
+	 * @param out The output channel.
+	 * @return The page of the root.
+	 */
 	public int write(StorageChannelOutput out) {
+		endTransaction(true);
 		return bufferManager.write(getTree().getRoot(), out);
 	}
 
@@ -102,6 +265,36 @@ public abstract class BTreeIndex extends AbstractIndex {
 		return getTree().size();
 	}
 
+	/**
+	 * Counts the entries whose key is in [min, max] without iterating over
+	 * them, see {@link PagedBTree#countInRange(long, long)}.
+	 * @param min The smallest key.
+	 * @param max The largest key.
+	 * @return The number of entries.
+	 */
+	public long countInRange(long min, long max) {
+		return getTree().countInRange(min, max);
+	}
+
+	/**
+	 * @param key The key.
+	 * @return The number of entries whose key is smaller than the given key,
+	 * see {@link PagedBTree#rank(long)}.
+	 */
+	public long rank(long key) {
+		return getTree().rank(key);
+	}
+
+	/**
+	 * Returns the entry at a position without iterating over the entries
+	 * in front of it, see {@link PagedBTree#select(long)}.
+	 * @param index The position of the entry, starting with 0.
+	 * @return The entry.
+	 */
+	public LLEntry select(long index) {
+		return getTree().select(index);
+	}
+
 	public PAGE_TYPE getDataType() {
 		return dataType;
 	}
@@ -124,4 +317,24 @@ public abstract class BTreeIndex extends AbstractIndex {
     	bufferManager.setNodeValueElementSize(sizeInByte);
 
     }
+
+	/**
+	 * Stores the number of entries of each subtree in the inner nodes, so
+	 * that {@link #rank(long)}, {@link #select(long)} and 
+	 * {@link #countInRange(long, long)} do not count subtrees, see 
+	 * {@link BTreeStorageBufferManager#setStoreChildCounts(boolean)}.
+	 * The setting is kept with the index, an index that is loaded uses the
+	 * setting it has been created with.
+	 * @param storeChildCounts Whether inner nodes store the counts.
+	 * @throws IllegalStateException if the setting is changed while the 
+	 * index has inner nodes.
+	 */
+	public void setStoreChildCounts(boolean storeChildCounts) {
+		if (storeChildCounts != bufferManager.isStoringChildCounts() 
+				&& !getTree().getRoot().isLeaf()) {
+			throw new IllegalStateException(
+					"The format of the inner nodes can not be changed anymore.");
+		}
+		bufferManager.setStoreChildCounts(storeChildCounts);
+	}
 }
@@ -22,6 +22,7 @@ package org.zoodb.internal.server.index;
 
 import org.zoodb.internal.server.DiskIO;
 import org.zoodb.internal.server.IOResourceProvider;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTree;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTreeNode;
@@ -37,13 +38,31 @@ public class BTreeIndexNonUnique extends BTreeIndex implements LongLongIndex {
     private NonUniquePagedBTree tree;
 
     public BTreeIndexNonUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file) {
-        super(dataType, file, true, false);
-
-        tree = new NonUniquePagedBTree(bufferManager.getPageSize(), bufferManager);
+        this(dataType, file, null);
     }
     
     public BTreeIndexNonUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, int rootPageId) {
-        super(dataType, file, true, false);
+        this(dataType, file, rootPageId, null);
+    }
+
+    /**
+     * Creates an index whose clean nodes are kept in the given pool, see
+     * {@link BTreeIndex#BTreeIndex(DiskIO.PAGE_TYPE, IOResourceProvider, boolean, boolean, BTreeBufferPool)}.
+     */
+    public BTreeIndexNonUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, 
+    		BTreeBufferPool bufferPool) {
+        super(dataType, file, true, false, bufferPool);
+
+        tree = new NonUniquePagedBTree(bufferManager.getPageSize(), bufferManager);
+    }
+
+    /**
+     * Loads an index whose clean nodes are kept in the given pool, see
+     * {@link BTreeIndex#BTreeIndex(DiskIO.PAGE_TYPE, IOResourceProvider, boolean, boolean, BTreeBufferPool)}.
+     */
+    public BTreeIndexNonUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, int rootPageId,
+    		BTreeBufferPool bufferPool) {
+        super(dataType, file, true, false, bufferPool);
         
         NonUniquePagedBTreeNode root = (NonUniquePagedBTreeNode)bufferManager.read(rootPageId);
         root.setIsRoot(true);
@@ -51,6 +70,19 @@ public class BTreeIndexNonUnique extends BTreeIndex implements LongLongIndex {
         tree = new NonUniquePagedBTree(root, bufferManager.getPageSize(), bufferManager);
     }
     
+    /**
+     * Checks a batch of key/value pairs. The pairs are sorted and resolved
+     * in one pass over the tree.
+     * @param keys The keys.
+     * @param values The values.
+     * @param n The number of pairs.
+     * @param found Receives whether each pair is contained in the index.
+     * @return The number of pairs that are contained in the index.
+     */
+    public int contains(long[] keys, long[] values, int n, boolean[] found) {
+        return tree.contains(keys, values, n, found);
+    }
+
     @Override
 	public long removeLong(long key, long value) {
 		return tree.delete(key, value);
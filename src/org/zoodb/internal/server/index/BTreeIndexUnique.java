@@ -23,11 +23,10 @@ package org.zoodb.internal.server.index;
 import org.zoodb.internal.server.DiskIO;
 import org.zoodb.internal.server.IOResourceProvider;
 import org.zoodb.internal.server.index.LongLongIndex.LongLongUIndex;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
 import org.zoodb.internal.server.index.btree.unique.UniquePagedBTree;
 import org.zoodb.internal.server.index.btree.unique.UniquePagedBTreeNode;
 
-import java.util.NoSuchElementException;
-
 /**
  * Index backed by a B+ tree that does not allow duplicate keys.
  *
@@ -53,6 +52,26 @@ public class BTreeIndexUnique extends BTreeIndex implements LongLongUIndex  {
     	super(dataType, file, true, true);
     	loadTree(rootPageId);
 
+    }
+
+    /**
+     * Creates an index whose clean nodes are kept in the given pool, see
+     * {@link BTreeIndex#BTreeIndex(DiskIO.PAGE_TYPE, IOResourceProvider, boolean, boolean, BTreeBufferPool)}.
+     */
+    public BTreeIndexUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, 
+    		BTreeBufferPool bufferPool) {
+    	super(dataType, file, true, true, bufferPool);
+    	initTree();
+    }
+
+    /**
+     * Loads an index whose clean nodes are kept in the given pool, see
+     * {@link BTreeIndex#BTreeIndex(DiskIO.PAGE_TYPE, IOResourceProvider, boolean, boolean, BTreeBufferPool)}.
+     */
+    public BTreeIndexUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, int rootPageId,
+    		BTreeBufferPool bufferPool) {
+    	super(dataType, file, true, true, bufferPool);
+    	loadTree(rootPageId);
     }
 	
 	public BTreeIndexUnique(DiskIO.PAGE_TYPE dataType, int nodeValueSizeInByte, IOResourceProvider file, int rootPageId) {
@@ -81,6 +100,30 @@ public class BTreeIndexUnique extends BTreeIndex implements LongLongUIndex  {
 		}
 	}
 
+	/**
+	 * Looks up a key without allocating any objects.
+	 * @param key The key.
+	 * @param missing The value that is returned if the key is not found.
+	 * @return The value of the key or {@code missing}.
+	 */
+	public long findValueOrDefault(long key, long missing) {
+		return tree.search(key, missing);
+	}
+
+	/**
+	 * Looks up a batch of keys. The keys are sorted and resolved in one
+	 * pass over the tree, so this is much faster than calling 
+	 * {@link #findValue(long)} for each key.
+	 * @param keys The keys.
+	 * @param values Receives the value of each key.
+	 * @param n The number of keys.
+	 * @param missing The value that is returned for keys that are not found.
+	 * @return The number of keys that have been found.
+	 */
+	public int findValues(long[] keys, long[] values, int n, long missing) {
+		return tree.search(keys, values, n, missing);
+	}
+
 	@Override
 	public long removeLong(long key) {
 		return tree.delete(key);
@@ -109,11 +152,7 @@ public class BTreeIndexUnique extends BTreeIndex implements LongLongUIndex  {
 
 	@Override
 	public long removeLongNoFail(long key, long failValue) {
-		try {
-			return removeLong(key);
-		} catch (NoSuchElementException e) {
-			return failValue;
-		}
+		return tree.deleteNoFail(key, failValue);
 	}
 
 	@Override
@@ -36,35 +36,50 @@ public class AscendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
         super(tree, start, end);
     }
 
+    public AscendingBTreeLeafEntryIterator(BTree tree, long start, long end, boolean snapshot) {
+        super(tree, start, end, snapshot);
+    }
+
     void updatePosition() {
         if (curPos < curLeaf.getNumKeys() - 1) {
             curPos++;
         } else {
             curPos = 0;
-            BTreeNode rightSibling = null;
-            BTreeNode ancestor = null;
-            Integer position = 0;
-            while (rightSibling == null && ancestors.size() > 0) {
-                ancestor = ancestors.pop();
-                position = positions.pop();
-                rightSibling = ancestor.rightSibling(position);
-            }
-            position ++;
-            ancestors.push(ancestor);
-            positions.push(position);
-            if (rightSibling == null) {
-                curLeaf = null;
-            } else {
-                curLeaf = getLefmostLeaf(rightSibling);
-            }
+            curLeaf = nextLeaf();
         }
         if (curLeaf != null && curLeaf.getKey(curPos) > max) {
             curLeaf = null;
         }
     }
 
+    /**
+     * Copies the entries of a leaf with {@link System#arraycopy}.
+     */
+    @Override
+    public int nextBlock(long[] keys, long[] values, int n) {
+        checkValidity();
+        int count = 0;
+        while (curLeaf != null && count < n) {
+            int end = curLeaf.getNumKeys();
+            if (curLeaf.getKey(end - 1) > max) {
+                end = curPos + 1;
+                while (end < curLeaf.getNumKeys() && curLeaf.getKey(end) <= max) {
+                    end++;
+                }
+            }
+            int len = Math.min(end - curPos, n - count);
+            System.arraycopy(curLeaf.getKeys(), curPos, keys, count, len);
+            System.arraycopy(curLeaf.getValues(), curPos, values, count, len);
+            count += len;
+            // updatePosition() moves to the next leaf or ends the iteration
+            curPos += len - 1;
+            updatePosition();
+        }
+        return count;
+    }
+
     void setFirstLeaf() {
-        if (tree.isEmpty()) {
+        if (isEmpty()) {
             return;
         }
 
@@ -75,7 +90,8 @@ public class AscendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
         // for inserting an entry but here we need the first
         // entry whose key >= min.
         while (curLeaf != null && curLeaf.getKey(curPos) < min) {
-        	this.next();
+        	//skip without creating entries
+        	updatePosition();
         }
         
 	    // case when max is smaller than every element in the tree
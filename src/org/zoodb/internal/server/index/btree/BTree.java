@@ -20,10 +20,10 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
 
 /**
@@ -34,7 +34,8 @@ import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
  */
 public abstract class BTree {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(BTree.class);
+	// fill factor of leaves that are split at the right edge while appending
+	private static final double RIGHT_EDGE_FILL_FACTOR = 1.0;
 	
     protected BTreeNode root;
     protected BTreeNodeFactory nodeFactory;
@@ -44,11 +45,25 @@ public abstract class BTree {
     private final boolean isUnique;
     
     private int modcount = 0; // number of modifications of the tree
+    private long deletedValue; // value of the entry deleted last
+    
+    // the finger is the path of the last insert or delete, from the root 
+    // to the leaf, with the index of every node in its parent. It is valid
+    // while the modcount matches and the nodes are dirty.
+    private BTreeNode[] finger = new BTreeNode[8];
+    private int[] fingerPositions = new int[8];
+    private int fingerHeight = -1;
+    private int fingerModcount;
+    
+    // number of levels of the tree, -1 if unknown
+    private int height = -1;
     
     public BTree(int pageSize, BTreeNodeFactory nodeFactory, boolean isUnique) {
     	this(null, pageSize, nodeFactory, isUnique);
         this.root = nodeFactory.newNode(isUnique(), getPageSize(), true, true);
         this.root.recomputeSize();
+        this.root.setNumEntriesInTree(0);
+        this.height = 1;
     }
     
     public BTree(PagedBTreeNode root, int pageSize, BTreeNodeFactory nodeFactory, 
@@ -85,88 +100,429 @@ public abstract class BTree {
     }
     
     /**
+     * The insert starts at the lowest node of the finger whose key range
+     * contains the new pair, so that clustered inserts do not have to 
+     * search the whole path from the root.
+     * 
+     * Entries that are larger than all entries of the tree are appended 
+     * to the rightmost leaf. If that leaf overflows, it is split such that
+     * the left leaf is filled up to {@link #RIGHT_EDGE_FILL_FACTOR}, 
+     * because it never receives any more entries. Inner nodes are split as
+     * usual, an almost empty right node on every level would make the tree
+     * expensive to rebalance when the last entries are removed again.
+     * 
      * @param onlyIfNotSet if true insert only if the key does not exist already in the tree
      * @return	true if the entry was inserted
      */
     public boolean insert(long key, long value, boolean onlyIfNotSet) {
-        if (insert(root, key, value, onlyIfNotSet)) {
-	        increaseModcount();
-	        if (root.overflows()) {
-	            handleRootOverflow();
-	        }
-	        recomputeMinAndMaxAfterInsert(key);
-	        return true;
-        } else {
-        	return false;
+        BTreeNode leaf = descendFinger(findFingerLevel(key, value), key, value);
+        for (int i = 0; i <= fingerHeight; i++) {
+            finger[i].markChanged();
+        }
+        int numKeys = leaf.getNumKeys();
+        if (!leaf.put(key, value, onlyIfNotSet)) {
+            return false;
+        }
+        //existing entries are replaced
+        int added = leaf.getNumKeys() - numKeys;
+        addNumEntries(added);
+        increaseModcount();
+        fingerModcount = modcount;
+
+        int height = fingerHeight;
+        for (int level = height; level > 0; level--) {
+            BTreeNode child = finger[level];
+            BTreeNode parent = finger[level - 1];
+            int childIndex = fingerPositions[level];
+            if (child.overflows()) {
+                //splits change the path, redistributions between leaves do not
+                if (child.isLeaf() && isAppend(leaf, key, value, height)) {
+                    handleInsertOverflow(child, parent, childIndex, 
+                            computeIndexForRightEdgeSplit(child));
+                    fingerHeight = -1;
+                } else if (handleChildOverflow(parent, child, childIndex) 
+                        || !child.isLeaf()) {
+                    fingerHeight = -1;
+                }
+                parent.setChildSize(child, childIndex);
+            } else {
+                parent.setChildSize(child, childIndex, added);
+            }
+        }
+        if (root.overflows()) {
+            fingerHeight = -1;
+            handleRootOverflow(root.isLeaf() && isAppend(root, key, value, 0) 
+                    ? computeIndexForRightEdgeSplit(root) 
+                    : root.computeIndexForSplit(isUnique()));
+        }
+        recomputeMinAndMaxAfterInsert(key);
+        return true;
+    }
+
+    /**
+     * Redistributes the entries of an overflowing child to its left 
+     * sibling or, if that is not possible, splits the child.
+     * @return Whether the child has been split.
+     */
+    private boolean handleChildOverflow(BTreeNode node, BTreeNode child, int childIndex) {
+    	//first check if some keys can be redistributed to the
+    	//left sibling
+        if (node.leftSiblingNotFull(childIndex)) {
+            BTreeNode leftSibling = node.leftSibling(childIndex);
+            //the child index needs to be decreased because redistribution
+            //is done with respect to the left node
+            //i.e, the child node is the 'right' node of leftSibling
+            int childIndexRedist = childIndex > 0 ? childIndex - 1 : childIndex;
+            redistributeKeysFromRight(leftSibling, child, node, childIndexRedist);
+            node.setChildSize(leftSibling, childIndexRedist);
+        }
+
+        //if that is not possible, split the child node in two
+        if (child.overflows()) {
+            handleInsertOverflow(child, node, childIndex);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the finger ends in the rightmost leaf and the pair is 
+     * the last entry of that leaf.
+     */
+    private boolean isAppend(BTreeNode leaf, long key, long value, int height) {
+        for (int level = 1; level <= height; level++) {
+            if (fingerPositions[level] != finger[level - 1].getNumKeys()) {
+                return false;
+            }
+        }
+        int last = leaf.getNumKeys() - 1;
+        return compareEntries(key, value, leaf.getKey(last), leaf.getValue(last)) == 0;
+    }
+
+    /**
+     * @return The lowest level of the finger whose node covers the 
+     * key/value pair. This is 0 if the finger is not valid.
+     */
+    private int findFingerLevel(long key, long value) {
+        if (fingerModcount != modcount || fingerHeight < 0 
+                || !finger[fingerHeight].isDirty()) {
+            //nodes may have been written and evicted since the last visit
+            finger[0] = root;
+            fingerHeight = 0;
+            fingerModcount = modcount;
+            return 0;
+        }
+        for (int level = 1; level <= fingerHeight; level++) {
+            BTreeNode parent = finger[level - 1];
+            int pos = fingerPositions[level];
+            if ((pos > 0 && parent.smallerThanKeyValue(pos - 1, key, value))
+                    || (pos < parent.getNumKeys() && !parent.smallerThanKeyValue(pos, key, value))) {
+                return level - 1;
+            }
         }
+        return fingerHeight;
     }
 
-    public boolean insert(BTreeNode node, long key, long value, boolean onlyIfNotSet) {
+    /**
+     * Descends from a node of the finger to the leaf that may contain the
+     * key/value pair and moves the finger to that leaf.
+     * @return The leaf.
+     */
+    private BTreeNode descendFinger(int level, long key, long value) {
+        BTreeNode node = finger[level];
+        while (!node.isLeaf()) {
+            int childIndex = node.findKeyValuePos(key, value);
+            node = node.getChild(childIndex);
+            if (++level == finger.length) {
+                finger = Arrays.copyOf(finger, level * 2);
+                fingerPositions = Arrays.copyOf(fingerPositions, level * 2);
+            }
+            finger[level] = node;
+            fingerPositions[level] = childIndex;
+        }
+        Arrays.fill(finger, level + 1, finger.length, null);
+        fingerHeight = level;
+        return node;
+    }
+
+    /**
+     * @return The number of keys that remain in the left node when a leaf 
+     * on the right edge is split. The left leaf is filled up to 
+     * {@link #RIGHT_EDGE_FILL_FACTOR}, the right leaf gets at least one key.
+     */
+    private int computeIndexForRightEdgeSplit(BTreeNode node) {
+        int maxSize = (int) (getPageSize() * RIGHT_EDGE_FILL_FACTOR);
+        int keysInLeftNode = node.getNumKeys() - 1;
+        while (keysInLeftNode > 1 && sizeWith(node, keysInLeftNode, 
+                node.getKey(0), node.getKey(keysInLeftNode - 1)) > maxSize) {
+            keysInLeftNode--;
+        }
+        return keysInLeftNode;
+    }
+
+    /**
+     * @return The size in storage of a node with the given number of keys
+     * and the given smallest and largest key.
+     */
+    static int sizeWith(BTreeNode node, int numKeys, long firstKey, long lastKey) {
+    	long prefix = PrefixSharingHelper.computePrefix(firstKey, lastKey);
+    	return (int) (node.storageHeaderSize() 
+    			+ PrefixSharingHelper.encodedArraySize(numKeys, prefix)
+    			+ node.getNonKeyEntrySizeInBytes(numKeys));
+    }
+
+    /**
+     * Inserts a batch of key/value pairs. The batch is sorted and pushed 
+     * down the tree, so that every node is visited only once per batch 
+     * instead of once per entry. Nodes that overflow are split after all 
+     * their entries have been added.
+     * 
+     * Like {@link #insert(long, long)}, the value of an existing key is 
+     * replaced in unique trees. If a batch contains a key several times, 
+     * the last value is used.
+     * 
+     * @param keys The keys, the array is not modified.
+     * @param values The values, the array is not modified.
+     * @param n The number of entries.
+     */
+    public void insertAll(long[] keys, long[] values, int n) {
+        if (n == 0) {
+            return;
+        }
+        long[] batchKeys = Arrays.copyOf(keys, n);
+        long[] batchValues = Arrays.copyOf(values, n);
+        sortEntries(batchKeys, batchValues, null, n);
+        n = removeDuplicates(batchKeys, batchValues, n);
+
+        increaseModcount();
+        addNumEntries(insertAll(root, batchKeys, batchValues, 0, n));
+        while (root.overflows()) {
+            handleRootOverflow();
+            splitOverflowingChild(root, 1, root.getChild(1));
+            splitOverflowingChild(root, 0, root.getChild(0));
+        }
+        recomputeMinAndMaxAfterInsert(batchKeys[0]);
+        recomputeMinAndMaxAfterInsert(batchKeys[n - 1]);
+    }
+
+    /**
+     * Inserts the sorted entries from..to-1 into the sub-tree rooted at node.
+     * The node may overflow afterwards.
+     * @return The number of entries that have been added, entries that 
+     * replace existing entries are not counted.
+     */
+    private long insertAll(BTreeNode node, long[] keys, long[] values, int from, int to) {
         node.markChanged();
         if (node.isLeaf()) {
-        	return node.put(key, value, onlyIfNotSet);
-        } else {
-            int childIndex = node.findKeyValuePos(key, value);
+            return mergeIntoLeaf(node, keys, values, from, to);
+        }
+        long added = 0;
+        //go from right to left, so that splits do not move the children 
+        //that are still to be visited
+        int end = to;
+        while (end > from) {
+            int childIndex = node.findKeyValuePos(keys[end - 1], values[end - 1]);
+            int start = end - 1;
+            while (start > from && (childIndex == 0 
+                    || !node.smallerThanKeyValue(childIndex - 1, keys[start - 1], values[start - 1]))) {
+                start--;
+            }
             BTreeNode child = node.getChild(childIndex);
-            if(insert(child, key, value, onlyIfNotSet)) {
-	            if (child.overflows()) {
-	            	//first check if some keys can be redistributed to the
-	            	//left sibling
-	                if (node.leftSiblingNotFull(childIndex)) {
-                        BTreeNode leftSibling = node.leftSibling(childIndex);
-	                    //the child index needs to be decreased because redistribution
-	                    //is done with respect to the left node
-	                    //i.e, the child node is the 'right' node of leftSibling
-	                    int childIndexRedist = childIndex > 0 ? childIndex - 1 : childIndex;
-	                    redistributeKeysFromRight(leftSibling, child, node, childIndexRedist);
-	                    node.setChildSize(leftSibling.getCurrentSize(), childIndexRedist);
-	                }
-	
-	                //if that is not possible, split the child node in two
-	                if (child.overflows()) {
-	                    handleInsertOverflow(child, node, childIndex);
-	                }
-	            }
-	            node.setChildSize(child.getCurrentSize(), childIndex);
-	            return true;
+            long n = insertAll(child, keys, values, start, end);
+            node.setChildSize(child, childIndex, n);
+            splitOverflowingChild(node, childIndex, child);
+            added += n;
+            end = start;
+        }
+        return added;
+    }
+
+    /**
+     * Merges the sorted entries from..to-1 into a leaf.
+     * @return The number of entries that have been added.
+     */
+    private int mergeIntoLeaf(BTreeNode leaf, long[] keys, long[] values, int from, int to) {
+        int numKeys = leaf.getNumKeys();
+        long[] leafKeys = Arrays.copyOf(leaf.getKeys(), numKeys);
+        long[] leafValues = Arrays.copyOf(leaf.getValues(), numKeys);
+        leaf.ensureCapacity(numKeys + to - from);
+        long[] newKeys = leaf.getKeys();
+        long[] newValues = leaf.getValues();
+        int i = 0;
+        int j = from;
+        int k = 0;
+        while (i < numKeys || j < to) {
+            int cmp;
+            if (i == numKeys) {
+                cmp = 1;
+            } else if (j == to) {
+                cmp = -1;
             } else {
-            	return false;
+                cmp = compareEntries(leafKeys[i], leafValues[i], keys[j], values[j]);
+            }
+            if (cmp < 0) {
+                newKeys[k] = leafKeys[i];
+                newValues[k] = leafValues[i++];
+            } else {
+                if (cmp == 0) {
+                    //replace the existing entry
+                    i++;
+                }
+                newKeys[k] = keys[j];
+                newValues[k] = values[j++];
+            }
+            k++;
+        }
+        leaf.setNumKeys(k);
+        leaf.recomputeSize();
+        return k - numKeys;
+    }
+
+    /**
+     * Splits a child until none of the new nodes overflows.
+     */
+    private void splitOverflowingChild(BTreeNode parent, int childIndex, BTreeNode child) {
+        if (!child.overflows()) {
+            return;
+        }
+        handleInsertOverflow(child, parent, childIndex);
+        parent.setChildSize(child, childIndex);
+        //the right node first, so that the index of the left node stays valid
+        splitOverflowingChild(parent, childIndex + 1, parent.getChild(childIndex + 1));
+        splitOverflowingChild(parent, childIndex, child);
+    }
+
+    /**
+     * Compares two entries in the order of the tree, the values are only
+     * compared in non-unique trees.
+     */
+    int compareEntries(long key1, long value1, long key2, long value2) {
+        if (key1 != key2) {
+            return key1 < key2 ? -1 : 1;
+        }
+        if (isUnique() || value1 == value2) {
+            return 0;
+        }
+        return value1 < value2 ? -1 : 1;
+    }
+
+    /**
+     * Stable merge sort of key/value pairs.
+     * @param values The values, may be {@code null} in unique trees.
+     * @param positions Positions that are moved with the pairs, may be {@code null}.
+     */
+    void sortEntries(long[] keys, long[] values, int[] positions, int n) {
+        long[] tmpKeys = new long[n];
+        long[] tmpValues = values == null ? null : new long[n];
+        int[] tmpPositions = positions == null ? null : new int[n];
+        for (int width = 1; width < n; width <<= 1) {
+            for (int low = 0; low < n - width; low += width << 1) {
+                int mid = low + width;
+                int high = Math.min(low + (width << 1), n);
+                int i = low;
+                int j = mid;
+                int k = low;
+                while (i < mid && j < high) {
+                    int src = compareEntries(keys[j], valueAt(values, j), 
+                            keys[i], valueAt(values, i)) < 0 ? j++ : i++;
+                    tmpKeys[k] = keys[src];
+                    if (values != null) {
+                        tmpValues[k] = values[src];
+                    }
+                    if (positions != null) {
+                        tmpPositions[k] = positions[src];
+                    }
+                    k++;
+                }
+                while (i < mid) {
+                    tmpKeys[k] = keys[i];
+                    if (values != null) {
+                        tmpValues[k] = values[i];
+                    }
+                    if (positions != null) {
+                        tmpPositions[k] = positions[i];
+                    }
+                    k++;
+                    i++;
+                }
+                System.arraycopy(tmpKeys, low, keys, low, j - low);
+                if (values != null) {
+                    System.arraycopy(tmpValues, low, values, low, j - low);
+                }
+                if (positions != null) {
+                    System.arraycopy(tmpPositions, low, positions, low, j - low);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The value of a pair or 0 if there are no values, which is 
+     * only allowed in unique trees where values are not compared.
+     */
+    static long valueAt(long[] values, int i) {
+        return values == null ? 0 : values[i];
+    }
+
+    /**
+     * Removes entries that are equal to the next entry of a sorted batch.
+     * @return The number of remaining entries.
+     */
+    private int removeDuplicates(long[] keys, long[] values, int n) {
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (i + 1 < n && compareEntries(keys[i], values[i], keys[i + 1], values[i + 1]) == 0) {
+                continue;
             }
+            keys[k] = keys[i];
+            values[k++] = values[i];
         }
+        return k;
+    }
+
+    void handleRootOverflow() {
+        handleRootOverflow(root.computeIndexForSplit(isUnique()));
     }
 
-    private void handleRootOverflow() {
+    private void handleRootOverflow(int keysInLeftNode) {
         BTreeNode newRoot = nodeFactory.newNode(isUnique(), getPageSize(), false, true);
 
         BTreeNode right;
         BTreeNode left = root;
         swapRoot(newRoot);
+        addHeight(1);
         if (left.isLeaf()) {
-            right = split(left);
+            right = split(left, keysInLeftNode);
             root.put(right.getSmallestKey(), right.getSmallestValue(), left, right);
         } else {
         	//TODO TZ merge putInnerNodeInRoot / putInnerNodeInparent / split into one!
-            putInnerNodeInRoot(left);
+            putInnerNodeInRoot(left, keysInLeftNode);
         }
     }
 
     private void handleInsertOverflow(BTreeNode child, BTreeNode parent, int childIndex) {
+        handleInsertOverflow(child, parent, childIndex, child.computeIndexForSplit(isUnique()));
+    }
+
+    private void handleInsertOverflow(BTreeNode child, BTreeNode parent, int childIndex,
+            int keysInLeftNode) {
         if (child.isLeaf()) {
-            putLeafInParent(child, parent, childIndex);
+            putLeafInParent(child, parent, childIndex, keysInLeftNode);
         } else {
-            putInnerNodeInParent(child, parent, childIndex);
+            putInnerNodeInParent(child, parent, childIndex, keysInLeftNode);
         }
     }
 
-    private void putLeafInParent(BTreeNode child, BTreeNode parent, int childIndex) {
-        BTreeNode right = split(child);
+    private void putLeafInParent(BTreeNode child, BTreeNode parent, int childIndex,
+            int keysInLeftNode) {
+        BTreeNode right = split(child, keysInLeftNode);
         parent.put(right.getSmallestKey(), right.getSmallestValue(), childIndex, right);
     }
 
-    private void putInnerNodeInParent(BTreeNode child, BTreeNode parent, int childIndex) {
+    private void putInnerNodeInParent(BTreeNode child, BTreeNode parent, int childIndex,
+            int keysInLeftNode) {
         //ToDo remove duplication
         int numKeys = child.getNumKeys();
-        int keysInLeftNode = child.computeIndexForSplit(isUnique());
         long newKey = child.getKey(keysInLeftNode);
         long newValue = child.getValue(keysInLeftNode);
 
@@ -184,11 +540,9 @@ public abstract class BTree {
         parent.put(newKey, newValue, childIndex, right);
     }
 
-    private void putInnerNodeInRoot(BTreeNode child) {
+    private void putInnerNodeInRoot(BTreeNode child, int keysInLeftNode) {
         int numKeys = child.getNumKeys();
 
-        int keysInLeftNode = child.computeIndexForSplit(isUnique());
-
         long newKey = child.getKey(keysInLeftNode);
         long newValue = child.getValue(keysInLeftNode);
 
@@ -212,14 +566,13 @@ public abstract class BTree {
      * the current node, the rest are moved to a new node.
      *
      * @param current               A node that overflows and needs to be split.
+     * @param keysInLeftNode        The number of keys that remain on the current node.
      * @return                      The new node that contains the right half
      *                              of the keys of the current node.
      */
-    private BTreeNode split(BTreeNode current) {
+    private BTreeNode split(BTreeNode current, int keysInLeftNode) {
         int numKeys = current.getNumKeys();
 
-        int keysInLeftNode = current.computeIndexForSplit(isUnique());
-
         int keysInRightNode = numKeys - keysInLeftNode;
 
         // populate right node
@@ -240,50 +593,95 @@ public abstract class BTree {
      * performs a re-balance operation.
      * @param key
      * @param value
-     * @return
+     * @return The previous value.
+     * @throws NoSuchElementException if there is no such entry.
      */
 	protected long deleteEntry(long key, long value) {
-		if (root.getNumKeys() == 0) {
-			throw new NoSuchElementException();
+		if (!deleteIfPresent(key, value)) {
+			throw new NoSuchElementException("key not found: " + key + " / " + value);
 		}
+		return deletedValue;
+    }
 
+    /**
+     * Deletes a key/value pair from a tree if the pair exists. The tree is 
+     * not modified otherwise.
+     * @param key
+     * @param value
+     * @param missing The value that is returned if there is no such entry.
+     * @return The previous value or {@code missing}.
+     */
+	protected long deleteEntry(long key, long value, long missing) {
+		return deleteIfPresent(key, value) ? deletedValue : missing;
+	}
+
+	/**
+	 * Like an insert, the deletion starts at the lowest node of the finger
+	 * that covers the pair. The nodes are only marked as changed if the 
+	 * pair has been found. The value of the pair is stored in 
+	 * {@link #deletedValue}.
+	 */
+	private boolean deleteIfPresent(long key, long value) {
+		if (root.getNumKeys() == 0) {
+			return false;
+		}
+        BTreeNode leaf = descendFinger(findFingerLevel(key, value), key, value);
+        int position = leaf.binarySearch(key, value);
+        if (position < 0) {
+            return false;
+        }
+        for (int i = 0; i <= fingerHeight; i++) {
+            finger[i].markChanged();
+        }
+        deletedValue = deleteFromLeaf(leaf, position);
+        addNumEntries(-1);
         increaseModcount();
-        long oldValue = delete(root, key, value);
+        fingerModcount = modcount;
+
+        int height = fingerHeight;
+        for (int level = height; level > 0; level--) {
+            BTreeNode child = finger[level];
+            BTreeNode parent = finger[level - 1];
+            int childIndex = fingerPositions[level];
+            parent.setChildSize(child, childIndex, -1);
+            BTreeNode oldRoot = root;
+            if (child.isUnderFull() && (rebalance(parent, child, childIndex) 
+                    || !child.isLeaf())) {
+                //merges change the path, redistributions between leaves do not
+                fingerHeight = -1;
+            }
+            //a child that has been merged into the root is handled below
+            if (root == oldRoot && splitOverflowingNeighbours(parent, childIndex)) {
+                fingerHeight = -1;
+            }
+        }
         if (root.overflows()) {
+            fingerHeight = -1;
             handleRootOverflow();
         }
         recomputeMinAndMax(key);
-        return oldValue;
+        return true;
     }
 
     /**
-     * Delete a key/value pair the sub-tree rooted at node.
-     *
-     *
-     * @param node
-     * @param key
-     * @param value
-     * @return                  The value associated with the key.
+     * Splits the children of a node next to a child that has been 
+     * rebalanced. Merges and redistributions move the separating key of 
+     * the parent into the nodes, so the child or its siblings may overflow.
+     * @return Whether a child has been split.
      */
-    private long delete(BTreeNode node, long key, long value) {
-        node.markChanged();
-        long oldValue;
-        if (node.isLeaf()) {
-            oldValue = deleteFromLeaf(node, key, value);
-        } else {
-            int childIndex = node.findKeyValuePos(key, value);
-            BTreeNode child = node.getChild(childIndex);
-            oldValue = delete(child, key, value);
-            node.setChildSize(child.getCurrentSize(), childIndex);
-
-            if (child.isUnderFull()) {
-                rebalance(node, child, childIndex);
-            }
+    private boolean splitOverflowingNeighbours(BTreeNode parent, int childIndex) {
+        boolean split = false;
+        //from right to left, so that the indexes of the left children stay valid
+        for (int i = Math.min(childIndex + 1, parent.getNumKeys()); 
+                i >= Math.max(childIndex - 1, 0); i--) {
+            BTreeNode child = parent.getChild(i);
             if (child.overflows()) {
-                handleInsertOverflow(child, node, childIndex);
+                handleInsertOverflow(child, parent, i);
+                parent.setChildSize(child, i);
+                split = true;
             }
         }
-        return oldValue;
+        return split;
     }
 
     /**
@@ -298,16 +696,20 @@ public abstract class BTree {
      * @param child                 The node from which the deletion has been made
      * @param node                  The parent of the child node
      * @param childIndex                   The index of the child node in the parent node.
+     * @return                      Whether the child has been removed from the
+     *                              parent. Redistributions only move entries.
      */
-     private void rebalance(BTreeNode node, BTreeNode child, int childIndex) {
+     boolean rebalance(BTreeNode node, BTreeNode child, int childIndex) {
          //check if can borrow 1 value from the left or right siblings
          BTreeNode rightSibling = node.rightSibling(childIndex);
          BTreeNode leftSibling = node.leftSibling(childIndex);
 
          if (child.fitsIntoOneNodeWith(leftSibling)) {
              mergeWithLeft(this, child, leftSibling, node, childIndex - 1);
+             return true;
          } else if (child.fitsIntoOneNodeWith(rightSibling)) {
              mergeWithRight(this, child, rightSibling, node, childIndex);
+             return true;
          } else {
              boolean splitIntoLeftAndRight = splitIntoLeftAndRight(child, leftSibling, rightSibling, node, childIndex);
              if (!splitIntoLeftAndRight) {
@@ -317,6 +719,7 @@ public abstract class BTree {
                      redistributeKeysFromRight(child, rightSibling, node, childIndex);
                  }
              }
+             return splitIntoLeftAndRight;
          }
      }
 
@@ -328,16 +731,231 @@ public abstract class BTree {
      * the key.
      *
      * @param leaf
-     * @param key
-     * @param value
+     * @param position The position of the pair in the leaf
      * @return
      */
-    protected long deleteFromLeaf(BTreeNode leaf, long key, long value) {
-        long oldValue = leaf.delete(key, value);
+    protected long deleteFromLeaf(BTreeNode leaf, int position) {
+        long oldValue = leaf.getValue(position);
+        leaf.shiftRecordsLeftWithIndex(position, 1);
+        leaf.decreaseNumKeys(1);
         leaf.recomputeSize();
         return oldValue;
     }
 
+    /**
+     * Removes all entries whose key lies in the range [min, max].
+     *
+     * Subtrees that lie completely inside the range are detached from
+     * their parent and freed as a whole, see {@link #freeChild}. Only the
+     * nodes on the paths to the two ends of the range are modified, so
+     * only these paths are rebalanced afterwards.
+     *
+     * @param min The smallest key to remove
+     * @param max The largest key to remove
+     */
+    public void removeRange(long min, long max) {
+        if (min > max || isEmpty()) {
+            return;
+        }
+        increaseModcount();
+        long removed = removeRange(root, min, max, false, false, statsGetHeight() - 1);
+        if (removed == 0) {
+            return;
+        }
+        if (removed > 0) {
+            addNumEntries(-removed);
+        } else {
+            root.setNumEntriesInTree(-1);
+        }
+        rebalanceBoundary(min, Long.MIN_VALUE);
+        rebalanceBoundary(max, Long.MAX_VALUE);
+        if (root.overflows()) {
+            handleRootOverflow();
+        }
+        if (minKey >= min && minKey <= max) {
+            minKey = computeMinKey();
+        }
+        if (maxKey >= min && maxKey <= max) {
+            maxKey = computeMaxKey();
+        }
+    }
+
+    /**
+     * Removes the entries in [min, max] from the sub-tree rooted at node,
+     * without rebalancing the sub-tree.
+     *
+     * @param coveredBelow Whether all keys of the sub-tree are >= min
+     * @param coveredAbove Whether all keys of the sub-tree are <= max
+     * @param height The height of the node, 0 for leaves
+     * @return The number of removed entries, 0 if nothing has been removed
+     * or -1 if entries have been removed but their number is not known. 
+     * Freed subtrees are only counted if the size of the tree is known.
+     */
+    private long removeRange(BTreeNode node, long min, long max,
+            boolean coveredBelow, boolean coveredAbove, int height) {
+        if (node.isLeaf()) {
+            int start = countKeysBelow(node, min, false);
+            int end = countKeysBelow(node, max, true);
+            if (start >= end) {
+                return 0;
+            }
+            node.markChanged();
+            node.shiftRecordsLeftWithIndex(start, end - start);
+            node.decreaseNumKeys(end - start);
+            node.recomputeSize();
+            return end - start;
+        }
+        int numKeys = node.getNumKeys();
+        //the children that may contain keys in the range
+        int first = node.findKeyValuePos(min, Long.MIN_VALUE);
+        int last = node.findKeyValuePos(max, Long.MAX_VALUE);
+        boolean firstBelow = first == 0 ? coveredBelow : node.getKey(first - 1) >= min;
+        boolean lastAbove = last == numKeys ? coveredAbove : node.getKey(last) <= max;
+        //all children in between are covered by the range
+        boolean firstCovered = firstBelow && (first < last || lastAbove);
+        boolean lastCovered = lastAbove && (first < last || firstBelow);
+
+        long removed = 0;
+        //the right child first, so that the index of the left child stays valid
+        if (!lastCovered) {
+            BTreeNode child = node.getChild(last);
+            boolean childBelow = first < last || firstBelow;
+            long n = removeRange(child, min, max, childBelow, lastAbove, height - 1);
+            if (n != 0) {
+                removeRangeChildChanged(node, child, last, n);
+                removed = addRemoved(removed, n);
+            }
+        }
+        if (first < last && !firstCovered) {
+            BTreeNode child = node.getChild(first);
+            long n = removeRange(child, min, max, firstBelow, true, height - 1);
+            if (n != 0) {
+                removeRangeChildChanged(node, child, first, n);
+                removed = addRemoved(removed, n);
+            }
+        }
+
+        int from = firstCovered ? first : first + 1;
+        int to = lastCovered ? last : last - 1;
+        if (from <= to) {
+            boolean count = root.getNumEntriesInTree() >= 0;
+            for (int i = from; i <= to; i++) {
+                //only the subtrees whose number of entries is unknown are counted
+                removed = addRemoved(removed, 
+                        count ? countChildEntries(node, i) : node.getChildCount(i));
+            }
+            for (int i = from; i <= to; i++) {
+                freeChild(node, i, height - 1);
+            }
+            int n = to - from + 1;
+            node.markChanged();
+            if (to == numKeys) {
+                //the key in front of the first removed child is not needed anymore
+                node.setNumKeys(from - 1);
+            } else {
+                node.shiftRecordsLeftWithIndex(from, n);
+                node.decreaseNumKeys(n);
+            }
+        }
+        if (removed != 0) {
+            node.markChanged();
+            node.recomputeSize();
+        }
+        return removed;
+    }
+
+    /**
+     * Adds a number of removed entries to another, see 
+     * {@link #removeRange(BTreeNode, long, long, boolean, boolean, int)}.
+     * @return The sum or -1 if any of the numbers is not known.
+     */
+    private static long addRemoved(long removed, long n) {
+        return (removed < 0 || n < 0) ? -1 : removed + n;
+    }
+
+    /**
+     * Updates the size and the number of entries of a child from which a
+     * range has been removed. 
+     */
+    private static void removeRangeChildChanged(BTreeNode node, BTreeNode child, 
+            int childIndex, long removed) {
+        if (removed > 0) {
+            node.setChildSize(child, childIndex, -removed);
+        } else {
+            //the counts of the remaining children of the child may be known
+            node.setChildSize(child, childIndex);
+        }
+    }
+
+    /**
+     * @return The number of keys of a node that are smaller than the given
+     * key, or smaller or equal if inclusive is set.
+     */
+    private static int countKeysBelow(BTreeNode node, long key, boolean inclusive) {
+        int low = 0;
+        int high = node.getNumKeys();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long k = node.getKey(mid);
+            if (k < key || (inclusive && k == key)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Frees a child of a node and its sub-tree. The child is not removed
+     * from the node.
+     *
+     * @param parent The parent node
+     * @param childIndex The index of the child
+     * @param childHeight The height of the child, 0 for leaves
+     */
+    protected void freeChild(BTreeNode parent, int childIndex, int childHeight) {
+        BTreeNode child = parent.getChild(childIndex);
+        if (childHeight > 0) {
+            for (int i = 0; i <= child.getNumKeys(); i++) {
+                freeChild(child, i, childHeight - 1);
+            }
+        }
+        child.close();
+    }
+
+    /**
+     * Rebalances the underfull nodes on the path to a key/value pair after
+     * a range has been removed, starting at the root.
+     */
+    private void rebalanceBoundary(long key, long value) {
+        //a root without keys is replaced by its only child
+        while (!root.isLeaf() && root.getNumKeys() == 0) {
+            BTreeNode oldRoot = root;
+            swapRoot(oldRoot.getChild(0));
+            addHeight(-1);
+            oldRoot.close();
+        }
+        BTreeNode parent = root;
+        while (!parent.isLeaf()) {
+            int childIndex = parent.findKeyValuePos(key, value);
+            BTreeNode child = parent.getChild(childIndex);
+            if (child.isUnderFull()) {
+                BTreeNode oldRoot = root;
+                rebalance(parent, child, childIndex);
+                if (root != oldRoot) {
+                    //the root has been merged with its children
+                    parent = root;
+                    continue;
+                }
+                splitOverflowingNeighbours(parent, childIndex);
+                childIndex = parent.findKeyValuePos(key, value);
+                child = parent.getChild(childIndex);
+            }
+            parent = child;
+        }
+    }
+
     public void setRoot(BTreeNode root) {
         this.root = root;
     }
@@ -372,12 +990,18 @@ public abstract class BTree {
     }
 
     public void swapRoot(BTreeNode newRoot) {
+        long numEntries = -1;
         if (root != null) {
             root.setIsRoot(false);
+            numEntries = root.getNumEntriesInTree();
+            root.recomputeSize();
         }
         setRoot(newRoot);
         if (newRoot != null) {
             newRoot.setIsRoot(true);
+            newRoot.setNumEntriesInTree(numEntries);
+            //the root page is larger, it may overflow now
+            newRoot.recomputeSize();
         }
     }
 
@@ -385,21 +1009,123 @@ public abstract class BTree {
         return nodeFactory;
     }
 
-    /*
-     * Counts number of nodes in the tree.
-     * WARNING: SLOW! has to iterate over whole tree
+    /**
+     * Returns the number of entries of the tree. The number is maintained 
+     * by the operations on the tree and stored with the root page, see 
+     * {@link BTreeNode#getNumEntriesInTree()}. It is only counted if it is 
+     * not known, that is after {@link #removeRange(long, long)} or if the 
+     * tree has been written without the number.
      */
-    public int size() {
-    	LOGGER.warn("WARNING: BTree.size() is SLOW! has to iterate over whole tree.");
-    	//TODO Shouldn't this return the number of entries instead?
-        BTreeIterator it = new BTreeIterator(this);
-        int counter = 0;
-        while(it.hasNext()) {
-            it.next();
-            counter++;
+    public long size() {
+        long numEntries = root.getNumEntriesInTree();
+        if (numEntries < 0) {
+            numEntries = countEntries(root);
+            root.setNumEntriesInTree(numEntries);
         }
+        return numEntries;
+    }
+
+    /**
+     * Returns the number of entries in the subtree of a node. Only the 
+     * subtrees whose number of entries is not known are counted, see 
+     * {@link BTreeNode#getChildCount(int)}.
+     */
+    private static long countEntries(BTreeNode node) {
+        if (node.isLeaf()) {
+            return node.getNumKeys();
+        }
+        long n = 0;
+        for (int i = 0; i <= node.getNumKeys(); i++) {
+            n += countChildEntries(node, i);
+        }
+        return n;
+    }
 
-        return counter;
+    private static long countChildEntries(BTreeNode node, int childIndex) {
+        long n = node.getChildCount(childIndex);
+        if (n < 0) {
+            n = countEntries(node.getChild(childIndex));
+            node.setChildCount(childIndex, n);
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of entries with a key in the range [min, max].
+     * Only the nodes on the paths to the two ends of the range are 
+     * visited, the entries of the subtrees in between are not counted 
+     * as long as their numbers are known.
+     * 
+     * @param min The smallest key
+     * @param max The largest key
+     * @return The number of entries in the range.
+     */
+    public long countInRange(long min, long max) {
+        if (min > max) {
+            return 0;
+        }
+        return countBelow(max, true) - countBelow(min, false);
+    }
+
+    /**
+     * @param key The key
+     * @return The number of entries whose key is smaller than the given 
+     * key, this is the position of the first entry with the key or a 
+     * larger key.
+     */
+    public long rank(long key) {
+        return countBelow(key, false);
+    }
+
+    /**
+     * @return The number of entries with a key that is smaller, or 
+     * smaller or equal if inclusive is set, than the given key.
+     */
+    private long countBelow(long key, boolean inclusive) {
+        long value = inclusive ? Long.MAX_VALUE : Long.MIN_VALUE;
+        long n = 0;
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            int childIndex = node.findKeyValuePos(key, value);
+            for (int i = 0; i < childIndex; i++) {
+                n += countChildEntries(node, i);
+            }
+            node = node.getChild(childIndex);
+        }
+        return n + countKeysBelow(node, key, inclusive);
+    }
+
+    /**
+     * Returns the entry at a position in the order of the tree. 
+     * 
+     * @param index The position of the entry, starting with 0.
+     * @return The entry.
+     * @throws IndexOutOfBoundsException if the position is negative or 
+     * not smaller than the number of entries.
+     */
+    public LLEntry select(long index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            int childIndex = 0;
+            long n;
+            while (index >= (n = countChildEntries(node, childIndex))) {
+                index -= n;
+                childIndex++;
+            }
+            node = node.getChild(childIndex);
+        }
+        int pos = (int) index;
+        return new LLEntry(node.getKey(pos), node.getValue(pos));
+    }
+
+    private void addNumEntries(long n) {
+        long numEntries = root.getNumEntriesInTree();
+        if (numEntries >= 0) {
+            root.setNumEntriesInTree(numEntries + n);
+        }
     }
 
     /**
@@ -426,7 +1152,7 @@ public abstract class BTree {
             } else {
                 innerMergeWithRight(current, right, parent, keyIndex);
             }
-            parent.setChildSize(right.getCurrentSize(), keyIndex);
+            parent.setChildSize(right, keyIndex);
         }
         //this node will not be used anymore
         current.close();
@@ -459,7 +1185,7 @@ public abstract class BTree {
             } else {
                 innerMergeWithLeft(current, left, parent, keyIndex);
             }
-            parent.setChildSize(current.getCurrentSize(), keyIndex);
+            parent.setChildSize(current, keyIndex);
         }
         //left wont be used anymore
         left.close();
@@ -488,8 +1214,8 @@ public abstract class BTree {
             keysToMove--;
             innerRedistributeFromRight(current, right, parent, parentKeyIndex, keysToMove);
         }
-        parent.setChildSize(current.getCurrentSize(), parentKeyIndex);
-        parent.setChildSize(right.getCurrentSize(), parentKeyIndex + 1);
+        parent.setChildSize(current, parentKeyIndex);
+        parent.setChildSize(right, parentKeyIndex + 1);
         return keysToMove;
     }
 
@@ -517,13 +1243,13 @@ public abstract class BTree {
             }
             innerRedistributeFromLeft(current, left, parent, parentKeyIndex, keysToMove);
         }
-        parent.setChildSize(left.getCurrentSize(), parentKeyIndex);
-        parent.setChildSize(current.getCurrentSize(), parentKeyIndex + 1);
+        parent.setChildSize(left, parentKeyIndex);
+        parent.setChildSize(current, parentKeyIndex + 1);
     }
 
     private int computeKeysToMoveFromLeft(BTreeNode current, BTreeNode left) {
         int weightKey = (current.isLeaf() || (!isUnique())) ? current.getValueElementSize() : 0;
-        int weightChild = (current.isLeaf() ? 0 : 4);
+        int weightChild = (current.isLeaf() ? 0 : current.getChildElementSize());
         int header = current.storageHeaderSize();
 
         int keysToMove = PrefixSharingHelper.computeIndexForRedistributeLeftToRight(
@@ -535,7 +1261,7 @@ public abstract class BTree {
 
     private int computeKeysToMoveFromRight(BTreeNode current, BTreeNode right) {
         int weightKey = (current.isLeaf() || (!isUnique())) ? current.getValueElementSize() : 0;
-        int weightChild = (current.isLeaf() ? 0 : 4);
+        int weightChild = (current.isLeaf() ? 0 : current.getChildElementSize());
         int header = current.storageHeaderSize();
 
         int keysToMove = PrefixSharingHelper.computeIndexForRedistributeRightToLeft(
@@ -675,6 +1401,7 @@ public abstract class BTree {
         copyMergeFromLeftNodeToRightNode(current, 0, right, 0, current.getNumKeys(), current.getNumKeys());
         right.increaseNumKeys(current.getNumKeys());
         tree.swapRoot(right);
+        tree.addHeight(-1);
         parent.close();
         parent = right;
 
@@ -693,6 +1420,7 @@ public abstract class BTree {
         copyNodeToAnother(left, current, 0);
         current.increaseNumKeys(left.getNumKeys());
         tree.swapRoot(current);
+        tree.addHeight(-1);
         parent.close();
         parent = current;
 
@@ -762,8 +1490,8 @@ public abstract class BTree {
         right.recomputeSize();
         left.recomputeSize();
 
-        parent.setChildSize(left.getCurrentSize(), childIndex - 1);
-        parent.setChildSize(right.getCurrentSize(), childIndex);
+        parent.setChildSize(left, childIndex - 1);
+        parent.setChildSize(right, childIndex);
         current.close();
 
         return true;
@@ -802,8 +1530,8 @@ public abstract class BTree {
         right.recomputeSize();
         left.recomputeSize();
 
-        parent.setChildSize(left.getCurrentSize(), childIndex - 1);
-        parent.setChildSize(right.getCurrentSize(), childIndex);
+        parent.setChildSize(left, childIndex - 1);
+        parent.setChildSize(right, childIndex);
         current.close();
 
         return true;
@@ -874,22 +1602,30 @@ public abstract class BTree {
         return maxKey;
     }
     
-    public int statsGetInnerN() {
-    	BTreeIterator it = new BTreeIterator(this);
-		int innerN = 0;
-		while(it.hasNext()) {
-			if(!it.next().isLeaf()) innerN++;
-		}
-		return innerN;
+    /**
+     * Returns the number of levels of the tree, 1 if the root is a leaf. 
+     * The height is maintained when the root is split or merged, it is 
+     * only determined if the tree has been read from storage.
+     */
+    public int statsGetHeight() {
+        if (height < 0) {
+            int h = 1;
+            for (BTreeNode node = root; !node.isLeaf(); node = node.getChild(0)) {
+                h++;
+            }
+            height = h;
+        }
+        return height;
     }
-    
-    public int statsGetLeavesN() {
-    	BTreeIterator it = new BTreeIterator(this);
-		int leafN = 0;
-		while(it.hasNext()) {
-			if(it.next().isLeaf()) leafN++;
-		}
-		return leafN;
+
+    void setHeight(int height) {
+        this.height = height;
+    }
+
+    private void addHeight(int n) {
+        if (height >= 0) {
+            height += n;
+        }
     }
     
     private void copyFromRightNodeToLeftNode(BTreeNode src,  int srcStart, BTreeNode dest, int destStart,
@@ -901,7 +1637,7 @@ public abstract class BTree {
         source.copyFromNodeToNode(0, 0, destination, destinationIndex, destinationIndex, source.getNumKeys(), source.getNumKeys() + 1);
     }
 
-    private void increaseModcount() {
+    void increaseModcount() {
     	modcount++;
 	}
     
@@ -913,7 +1649,7 @@ public abstract class BTree {
         return pageSize;
     }
 
-    private void recomputeMinAndMaxAfterInsert(long newKey) {
+    void recomputeMinAndMaxAfterInsert(long newKey) {
         minKey = Math.min(newKey, minKey);
         maxKey = Math.max(newKey, maxKey);
     }
@@ -42,6 +42,15 @@ public interface BTreeBufferManager {
 	 * deletes a node from the buffer manager
 	 */
 	public void remove(PagedBTreeNode node);
+
+    /**
+	 * deletes the node with the given page id from the buffer manager,
+	 * the node is not read if it is not in memory
+	 * @return Whether the node was in memory. Otherwise only the page has
+	 * been freed and the node has not been removed from the statistics, 
+	 * see {@link #getStatistics()}.
+	 */
+	public boolean removePage(int pageId);
 	
     /**
 	 * writes the node to the storage channel
@@ -73,6 +82,16 @@ public interface BTreeBufferManager {
      */
 	public int getNodeValueElementSize();
 
+    /**
+     * returns the size in bytes of a child of an inner node
+     */
+	public int getNodeChildElementSize();
+
+    /**
+     * returns whether inner nodes keep the number of entries of each child
+     */
+	public boolean isStoringChildCounts();
+
     /**
 	 * writes the node to the storage channel
 	 */
@@ -83,4 +102,14 @@ public interface BTreeBufferManager {
 	 */
 	public long getTxId();
 
+	/**
+	 * returns the statistics of the nodes of the tree
+	 */
+	public BTreeStatistics getStatistics();
+
+	/**
+	 * returns the open snapshots of the tree
+	 */
+	public BTreeSnapshot.Registry getSnapshots();
+
 }
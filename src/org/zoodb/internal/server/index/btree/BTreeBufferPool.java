@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size-bounded pool for the clean nodes of one or more B+ trees.
+ *
+ * Every {@link BTreeStorageBufferManager} uses a pool. By default each
+ * buffer manager has its own pool, but a pool can be shared by the buffer
+ * managers of many indexes. In that case all clean nodes of these indexes
+ * compete for the same budget: the pool is effectively keyed by
+ * (buffer manager, pageId) and a single CLOCK decides which node is
+ * evicted next, so hot indexes get more cache and cold indexes give it back.
+ *
+ * The size of the pool can be limited by the number of nodes and by the
+ * estimated heap size of the nodes, see 
+ * {@link PagedBTreeNode#computeHeapSize()}. 
+ *
+ * The pool is not thread-safe. All buffer managers that share a pool must
+ * be accessed under the same lock, as is the case for the indexes of one
+ * database. A shared pool is therefore owned by the database, which passes
+ * it to the indexes that it creates or loads. Nodes are only removed from 
+ * the pool when they are evicted or when their buffer manager is cleared
+ * or closed, see {@link BTreeStorageBufferManager#close()}.
+ */
+public class BTreeBufferPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BTreeBufferPool.class);
+
+	private final CleanBufferClock clock = new CleanBufferClock();
+	private int maxElements;
+	private long maxBytes = -1;
+
+	private int statNEvictedPages = 0;
+
+	/**
+	 * Creates an unlimited pool.
+	 */
+	public BTreeBufferPool() {
+		this(-1);
+	}
+
+	/**
+	 * @param maxElements The maximum number of clean nodes in the pool,
+	 * -1 for no limit.
+	 */
+	public BTreeBufferPool(int maxElements) {
+		this.maxElements = maxElements;
+	}
+
+	/**
+	 * Adds a node to the pool and evicts cold nodes if the pool is full.
+	 * Adding a node that is already in the pool only marks it as referenced.
+	 */
+	void add(PagedBTreeNode node) {
+		clock.add(node);
+		shrink();
+	}
+
+	/**
+	 * Evicts nodes until the pool is within its limits.
+	 */
+	private void shrink() {
+		while ((maxElements >= 0 && clock.size() > maxElements) ||
+				(maxBytes >= 0 && clock.bytes() > maxBytes)) {
+			if (!evict()) {
+				break;
+			}
+		}
+	}
+
+	void remove(PagedBTreeNode node) {
+		clock.remove(node);
+	}
+
+	/**
+	 * Evicts the next cold node from the pool and from the clean buffer
+	 * of its buffer manager.
+	 * @return false if there is no node that could be evicted.
+	 */
+	private boolean evict() {
+		PagedBTreeNode victim = clock.evict();
+		if (victim == null) {
+			LOGGER.warn("Buffer pool exceeds its limit but has no evictable node.");
+			return false;
+		}
+		BTreeStorageBufferManager owner = (BTreeStorageBufferManager) victim.getBufferManager();
+		if (owner.evicted(victim)) {
+			statNEvictedPages++;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the maximum number of clean nodes in the pool and evicts
+	 * nodes if the pool is too large.
+	 * @param maxElements The maximum number of nodes, -1 for no limit.
+	 */
+	public void setMaxElements(int maxElements) {
+		this.maxElements = maxElements;
+		shrink();
+	}
+
+	public int getMaxElements() {
+		return maxElements;
+	}
+
+	/**
+	 * Sets the maximum estimated heap size of the clean nodes in the pool
+	 * and evicts nodes if the pool is too large.
+	 * @param maxBytes The maximum number of bytes, -1 for no limit.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		shrink();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return The estimated heap size of the clean nodes in the pool.
+	 */
+	public long getUsedBytes() {
+		return clock.bytes();
+	}
+
+	/**
+	 * @return The number of clean nodes in the pool.
+	 */
+	public int size() {
+		return clock.size();
+	}
+
+	/**
+	 * @return The number of nodes that have been evicted from the pool
+	 * because it exceeded its maximum size.
+	 */
+	public int getStatNEvictedPages() {
+		return statNEvictedPages;
+	}
+}
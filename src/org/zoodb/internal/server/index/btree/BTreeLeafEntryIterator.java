@@ -20,13 +20,13 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import org.zoodb.internal.server.index.LongLongIndex;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.util.DBLogger;
-import org.zoodb.internal.util.FastStack;
 
 /**
  * An abstract iterator for iterating through entries of the leaf-nodes of a B+ tree.
@@ -54,14 +54,28 @@ public abstract class BTreeLeafEntryIterator implements
 	
 	/**
 	 * The stack of ancestor nodes of the current leaf. Maintained because
-	 * of the lack of a parent pointer
+	 * of the lack of a parent pointer. Leaves have no pointers to their 
+	 * siblings either, because a modified leaf is always written to a new
+	 * page and its neighbours would then have to be rewritten as well.
 	 */
-	protected final FastStack<BTreeNode> ancestors;
+	private BTreeNode[] ancestors = new BTreeNode[8];
 
 	/**
-	 * The positions in the ancestor nodes.
+	 * The positions in the ancestor nodes. This is an int stack, so that 
+	 * moving the cursor to another leaf does not box the positions.
 	 */
-    protected final FastStack<Integer> positions;
+    private int[] positions = new int[8];
+
+    /**
+     * The number of ancestors on the stack.
+     */
+    private int depth = 0;
+
+	/**
+	 * The entry of the cursor, see {@link #advance()}.
+	 */
+	private long cursorKey;
+	private long cursorValue;
 
 	/**
 	 * The start of the key range used by the iterator.
@@ -78,6 +92,15 @@ public abstract class BTreeLeafEntryIterator implements
     private final int modCount;
     private final long txId;
 
+    /**
+     * The snapshot of the tree or {@code null} if modifications of the tree
+     * invalidate the iterator.
+     */
+    private final BTreeSnapshot snapshot;
+
+    // the nodes on the stack are looked up again when this changes
+    private int snapshotCopiesN;
+
     /**
      * Update the position of the iterator.
      *
@@ -99,13 +122,23 @@ public abstract class BTreeLeafEntryIterator implements
 	}
 
     public BTreeLeafEntryIterator(BTree tree, long min, long max) {
+    	this(tree, min, max, false);
+    }
+
+    /**
+     * @param snapshot Whether the iterator returns the entries as they are
+     * now, see {@link BTreeSnapshot}. Otherwise, the iterator fails if the
+     * tree is modified. A snapshot iterator should be closed when it is not
+     * used anymore, because modifications of the tree take copies of the
+     * nodes until then.
+     */
+    public BTreeLeafEntryIterator(BTree tree, long min, long max, boolean snapshot) {
 		this.tree = tree;
 		this.curLeaf = null;
 		this.curPos = -1;
-		this.ancestors = new FastStack<>();
-		this.positions = new FastStack<>();
         this.modCount = tree.getModcount();
         this.txId = this.getTxId();
+        this.snapshot = snapshot ? new BTreeSnapshot((PagedBTree) tree) : null;
         //ToDo get smallest key and value from tree
         this.min = min;
         this.max = max;
@@ -124,8 +157,10 @@ public abstract class BTreeLeafEntryIterator implements
 
 	@Override
 	public void close() {
-		// TODO release clones if there are any
 		curLeaf = null;
+		if (snapshot != null) {
+			snapshot.close();
+		}
 	}
 
 	public void reset() {
@@ -158,7 +193,69 @@ public abstract class BTreeLeafEntryIterator implements
 
 	@Override
 	public long nextKey() {
-		return this.next().getKey();
+        checkValidity();
+		if (curLeaf == null) {
+			throw new NoSuchElementException();
+		}
+		long key = curLeaf.getKey(curPos);
+		updatePosition();
+		return key;
+	}
+
+	/**
+	 * Moves the cursor to the next entry. Unlike {@link #nextULL()}, this 
+	 * does not allocate an entry, the key and value of the entry are 
+	 * available from {@link #key()} and {@link #value()}. The cursor is 
+	 * initially positioned before the first entry.
+	 * 
+	 * @return {@code false} if there are no more entries.
+	 */
+	public boolean advance() {
+        checkValidity();
+		if (curLeaf == null) {
+			return false;
+		}
+		cursorKey = curLeaf.getKey(curPos);
+		cursorValue = curLeaf.getValue(curPos);
+		updatePosition();
+		return true;
+	}
+
+	/**
+	 * Copies the next entries into the given arrays. This avoids a call per
+	 * entry, so the entries can be processed in blocks. The entries are
+	 * not available from {@link #key()} and {@link #value()}.
+	 * @param keys Receives the keys.
+	 * @param values Receives the values.
+	 * @param n The maximum number of entries to copy.
+	 * @return The number of entries that have been copied. This is less
+	 * than {@code n} only if there are no more entries.
+	 */
+	public int nextBlock(long[] keys, long[] values, int n) {
+        checkValidity();
+		int count = 0;
+		while (curLeaf != null && count < n) {
+			keys[count] = curLeaf.getKey(curPos);
+			values[count++] = curLeaf.getValue(curPos);
+			updatePosition();
+		}
+		return count;
+	}
+
+	/**
+	 * @return The key of the entry that the cursor has been moved to with
+	 * {@link #advance()}.
+	 */
+	public long key() {
+		return cursorKey;
+	}
+
+	/**
+	 * @return The value of the entry that the cursor has been moved to with
+	 * {@link #advance()}.
+	 */
+	public long value() {
+		return cursorValue;
 	}
 
     /**
@@ -172,9 +269,8 @@ public abstract class BTreeLeafEntryIterator implements
         }
         BTreeNode current = node;
         while (!current.isLeaf()) {
-            ancestors.push(current);
-            positions.push(0);
-            current = current.getChild(0);
+            pushAncestor(current, 0);
+            current = getChild(current, 0);
         }
         return current;
     }
@@ -190,27 +286,105 @@ public abstract class BTreeLeafEntryIterator implements
         }
         BTreeNode current = node;
         while (!current.isLeaf()) {
-            ancestors.push(current);
             int numKeys = current.getNumKeys();
-            positions.push(numKeys);
-            current = current.getChild(numKeys);
+            pushAncestor(current, numKeys);
+            current = getChild(current, numKeys);
         }
         return current;
     }
 
+    /**
+     * @return The leaf to the right of the current leaf or {@code null} if
+     * the current leaf is the last leaf.
+     */
+    protected BTreeNode nextLeaf() {
+        int level = depth - 1;
+        while (level >= 0 && positions[level] == ancestors[level].getNumKeys()) {
+            level--;
+        }
+        if (level < 0) {
+            return null;
+        }
+        depth = level + 1;
+        return getLefmostLeaf(getChild(ancestors[level], ++positions[level]));
+    }
+
+    /**
+     * @return The leaf to the left of the current leaf or {@code null} if
+     * the current leaf is the first leaf.
+     */
+    protected BTreeNode previousLeaf() {
+        int level = depth - 1;
+        while (level >= 0 && positions[level] == 0) {
+            level--;
+        }
+        if (level < 0) {
+            return null;
+        }
+        depth = level + 1;
+        return getRightMostLeaf(getChild(ancestors[level], --positions[level]));
+    }
+
+    private BTreeNode getChild(BTreeNode node, int index) {
+        return snapshot == null ? node.getChild(index) : snapshot.getChild(node, index);
+    }
+
+    private BTreeNode getRoot() {
+        return snapshot == null ? tree.getRoot() : snapshot.getRoot();
+    }
+
+    protected boolean isEmpty() {
+        return getRoot().getNumKeys() == 0;
+    }
+
+    /**
+     * Looks up the nodes on the stack and the current leaf in the snapshot
+     * again, because nodes of the tree that have been used by the iterator
+     * may have been changed since then.
+     */
+    private void reloadFromSnapshot() {
+        snapshotCopiesN = snapshot.getCopiesN();
+        if (curLeaf == null) {
+            return;
+        }
+        BTreeNode current = snapshot.getRoot();
+        for (int i = 0; i < depth; i++) {
+            ancestors[i] = current;
+            current = snapshot.getChild(current, positions[i]);
+        }
+        curLeaf = current;
+    }
+
+    private void pushAncestor(BTreeNode node, int position) {
+        if (depth == ancestors.length) {
+            ancestors = Arrays.copyOf(ancestors, depth * 2);
+            positions = Arrays.copyOf(positions, depth * 2);
+        }
+        ancestors[depth] = node;
+        positions[depth++] = position;
+    }
+
     /**
      * Check if the current iterator is still valid.
      *
      * First checks if the transaction in which the iterator was created was commited or rolledback.
      *
      * The check if the tree was modified by comparing the modification counts.
+     * Iterators with a snapshot are not affected by modifications.
      */
 	public void checkValidity() {
 		long storageTxId = getTxId();
 		if (this.txId != storageTxId) {
+			if (snapshot != null) {
+				snapshot.close();
+			}
             throw DBLogger.newUser("This iterator has been invalidated by commit() or rollback().");
 		}
-		if (this.modCount != tree.getModcount()) {
+		if (snapshot != null) {
+			if (snapshotCopiesN != snapshot.getCopiesN()) {
+				reloadFromSnapshot();
+			}
+		} else if (this.modCount != tree.getModcount()) {
 			throw new ConcurrentModificationException();
 		}
 	}
@@ -222,15 +396,15 @@ public abstract class BTreeLeafEntryIterator implements
 	}
 
 	protected void populateAncestorStack(long key, long value) {
-        BTreeNode current = tree.getRoot();
+        BTreeNode current = getRoot();
         int position;
+        depth = 0;
         while (!current.isLeaf()) {
             position = current.findKeyValuePos(key, value);
         	
             //position = position > 0 ? position - 1 : 0;
-            positions.push(position);
-            ancestors.push(current);
-            current = current.getChild(position);
+            pushAncestor(current, position);
+            current = getChild(current, position);
         }
         curLeaf = current;
         curPos = curLeaf.findKeyValuePos(key, value);
@@ -33,6 +33,8 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 	private PrimLongMapZ<PagedBTreeNode> map;
 	private int pageId;
 	private int pageSize;
+	private final BTreeStatistics statistics = new BTreeStatistics();
+	private final BTreeSnapshot.Registry snapshots = new BTreeSnapshot.Registry(null, this::getTxId);
 
 	public BTreeMemoryBufferManager() {
 		this(256);
@@ -69,10 +71,36 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 		return; 
 	}
 
+	@Override
+	public boolean removePage(int pageId) {
+		//all nodes are in memory
+		PagedBTreeNode node = map.get(pageId);
+		if (node != null) {
+			node.close();
+		}
+		return true;
+	}
+
 	@Override
 	public void clear(PagedBTreeNode node) {
+		if (snapshots.isActive()) {
+			for (PagedBTreeNode n : map.values()) {
+				n.preserveForSnapshots();
+			}
+		}
 		pageId = 0;
 		map.clear();
+		statistics.reset();
+	}
+
+	@Override
+	public BTreeStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public BTreeSnapshot.Registry getSnapshots() {
+		return snapshots;
 	}
 
 	@Override
@@ -83,7 +111,7 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 	@Override
 	public int getNodeSizeInStorage(PagedBTreeNode node) {
 		int size = 0;
-		size += BTreeStorageBufferManager.pageHeaderSize();
+		size += BTreeStorageBufferManager.nodeHeaderSize(node);
 		size += node.getNonKeyEntrySizeInBytes() + node.getKeyArraySizeInBytes();
 		
 		return size;
@@ -91,7 +119,7 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 
     @Override
     public int getNodeHeaderSizeInStorage(PagedBTreeNode node) {
-        return BTreeStorageBufferManager.pageHeaderSize();
+        return BTreeStorageBufferManager.nodeHeaderSize(node);
     }
 
 	@Override
@@ -99,6 +127,16 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 		return 8;
 	}
 
+	@Override
+	public int getNodeChildElementSize() {
+		return BTreeStorageBufferManager.CHILD_ID_SIZE;
+	}
+
+	@Override
+	public boolean isStoringChildCounts() {
+		return false;
+	}
+
 	@Override
 	public void updatePageStatus(PagedBTreeNode node) {
 		// do nothing
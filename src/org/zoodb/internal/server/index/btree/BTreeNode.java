@@ -20,7 +20,6 @@
  */
 package org.zoodb.internal.server.index.btree;
 
-import java.util.NoSuchElementException;
 
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
 
@@ -34,6 +33,8 @@ public abstract class BTreeNode {
 
 	private boolean isLeaf;
 	private boolean isRoot;
+	// number of entries of the tree if this is the root, -1 if unknown
+	private long numEntriesInTree = -1;
     protected int pageSize;
     protected int pageSizeThreshold;
 
@@ -47,23 +48,36 @@ public abstract class BTreeNode {
 
 	private long[] values;
     protected int[] childSizes;
+    // number of entries in the subtree of each child, -1 if unknown, 
+    // null if the counts are not kept, see getChildCount()
+    protected long[] childCounts;
 
 	protected int valueElementSize;
 
+	// capacity of the arrays of a new node, they grow when entries are added
+	protected static final int INITIAL_CAPACITY = 0;
+	// arrays up to this size are not rounded to a size class
+	private static final int MIN_CAPACITY = 8;
+
 	public BTreeNode(int pageSize, boolean isLeaf, boolean isRoot, int valueElementSize) {
 		this.isLeaf = isLeaf;
 		this.isRoot = isRoot;
         this.pageSize = pageSize;
         this.pageSizeThreshold = (int) (pageSize * 0.75);
         this.valueElementSize = valueElementSize;
-
-        initializeEntries();
+        //the entries are initialized by the subclass, see initializeEntries()
 	}
 
     public abstract long getNonKeyEntrySizeInBytes(int numKeys);
 
+    /**
+     * @return The size in bytes of a child in the page of an inner node.
+     */
+    public abstract int getChildElementSize();
+
     public abstract void initializeEntries();
     protected abstract void initChildren(int size);
+    protected abstract void ensureChildCapacity(int minChildren);
 
     public abstract boolean equalChildren(BTreeNode other);
     public abstract void copyChildren(BTreeNode source, int sourceIndex,
@@ -75,6 +89,7 @@ public abstract class BTreeNode {
     public abstract BTreeNode[] getChildNodes();
     public abstract void setChildren(BTreeNode[] children);
     public abstract void markChanged();
+    public abstract boolean isDirty();
     // closes (destroys) node
     public abstract void close();
     /*
@@ -237,30 +252,9 @@ public abstract class BTreeNode {
         recomputeSize();
     }
 
-    /**
-     * Delete the key from the node.
-     *
-     * @param key
-     */
-    public long delete(long key, long value) {
-        if (!isLeaf()) {
-            throw new IllegalStateException("Should be a leaf node");
-        }
-        final int keyPos = findKeyValuePos(key, value);
-        if (keyPos == 0) {
-            throw new NoSuchElementException("key not found: " + key + " / " + value);
-        }
-        int recordsToMove = getNumKeys() - keyPos;
-        long oldValue = getValue(keyPos - 1);
-        shiftRecords(keyPos, keyPos - 1, recordsToMove);
-        decreaseNumKeys(1);
-
-        return oldValue;
-    }
-
     public int computeIndexForSplit(boolean isUnique) {
         int weightKey = (this.isLeaf() || (isUnique)) ? this.getValueElementSize() : 0;
-        int weightChild = (isLeaf() ? 0 : 4);
+        int weightChild = (isLeaf() ? 0 : getChildElementSize());
         int header = storageHeaderSize();
         int keysInLeftNode = PrefixSharingHelper.computeIndexForSplitAfterInsert(
                 getKeys(), getNumKeys(),
@@ -275,11 +269,13 @@ public abstract class BTreeNode {
 
     public void shiftKeys(int startIndex, int endIndex, int amount) {
         markChanged();
+        ensureCapacity(endIndex + amount);
         System.arraycopy(getKeys(), startIndex, getKeys(), endIndex, amount);
     }
 
     protected void shiftValues(int startIndex, int endIndex, int amount) {
         markChanged();
+        ensureCapacity(endIndex + amount);
         System.arraycopy(getValues(), startIndex, getValues(), endIndex, amount);
     }
 
@@ -319,17 +315,19 @@ public abstract class BTreeNode {
     }
 
     public void setKey(int index, long key) {
-        getKeys()[index] = key;
-
         //signal change
         markChanged();
+
+        ensureCapacity(index + 1);
+        getKeys()[index] = key;
     }
 
     public void setValue(int index, long value) {
-        getValues()[index] = value;
-
         //signal change
         markChanged();
+
+        ensureCapacity(index + 1);
+        getValues()[index] = value;
     }
 
     public boolean isUnderFull() {
@@ -377,12 +375,76 @@ public abstract class BTreeNode {
     }
 
     protected void initKeys(int size) {
-        setKeys(new long[size]);
+        setKeys(newLongArray(size));
         setNumKeys(0);
     }
 
     protected void initValues(int size) {
-        setValues(new long[size]);
+        setValues(newLongArray(size));
+    }
+
+    protected long[] newLongArray(int size) {
+        return new long[size];
+    }
+
+    /**
+     * Called when an array is replaced by a larger one.
+     */
+    protected void releaseLongArray(long[] array) {
+        //nothing to do
+    }
+
+    /**
+     * Ensures that the node can hold the given number of keys without 
+     * growing its arrays. Inner nodes can then also hold one more child.
+     * 
+     * The arrays of a node start small and grow when entries are added, 
+     * like the array of an {@link java.util.ArrayList}. 
+     * @param minCapacity The required number of keys.
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (keys.length < minCapacity) {
+            keys = growLongArray(keys, minCapacity);
+        }
+        if (values != null && values.length < minCapacity) {
+            values = growLongArray(values, minCapacity);
+        }
+        if (!isLeaf()) {
+            ensureChildCapacity(minCapacity + 1);
+        }
+    }
+
+    private long[] growLongArray(long[] array, int minCapacity) {
+        long[] newArray = newLongArray(newCapacity(array.length, minCapacity));
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        releaseLongArray(array);
+        return newArray;
+    }
+
+    /**
+     * @return The new capacity of an array that has to grow. The capacity 
+     * grows by 50% and is rounded to a size class, but it does not grow 
+     * beyond the maximum number of entries in a page unless required.
+     */
+    protected int newCapacity(int oldCapacity, int minCapacity) {
+        int capacity = roundCapacity(Math.max(minCapacity, oldCapacity + (oldCapacity >> 1)));
+        int maxCapacity = computeMaxPossibleEntries();
+        if (capacity > maxCapacity) {
+            capacity = Math.max(minCapacity, maxCapacity);
+        }
+        return capacity;
+    }
+
+    /**
+     * Rounds a capacity up to one of four size classes per power of two, 
+     * so that only a few different array sizes are in use.
+     */
+    static int roundCapacity(int capacity) {
+        if (capacity <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int step = Integer.highestOneBit(capacity - 1) >> 2;
+        return (capacity + step - 1) / step * step;
     }
 
     public long getValue(int index) {
@@ -434,10 +496,11 @@ public abstract class BTreeNode {
     }
 
     public void setNumKeys(int newNumKeys) {
-        if (newNumKeys < 0 || newNumKeys > getKeys().length) {
+        if (newNumKeys < 0) {
         	throw new IllegalStateException();
         }
         markChanged();
+        ensureCapacity(newNumKeys);
         this.numKeys = newNumKeys;
     }
 
@@ -455,6 +518,19 @@ public abstract class BTreeNode {
 		this.isRoot = isRoot;
 	}
 
+	/**
+	 * @return The number of entries of the tree if this is the root node,
+	 * or -1 if the number is not known. The number is stored with the root 
+	 * page.
+	 */
+	public long getNumEntriesInTree() {
+		return numEntriesInTree;
+	}
+
+	public void setNumEntriesInTree(long numEntriesInTree) {
+		this.numEntriesInTree = numEntriesInTree;
+	}
+
     public String toString() {
         String ret = (isLeaf() ? "leaf" : "inner") + "-node: k:";
         ret += "[";
@@ -566,9 +642,16 @@ public abstract class BTreeNode {
 
     public void recomputeSize() {
         recomputePrefix();
+        int oldSize = currentSize;
         this.currentSize = computeSize();
+        sizeChanged(oldSize, currentSize);
     }
 
+    /**
+     * Called when the size of the node has been recomputed.
+     */
+    protected abstract void sizeChanged(int oldSize, int newSize);
+
     public int getCurrentSize() {
         return currentSize;
     }
@@ -589,14 +672,96 @@ public abstract class BTreeNode {
         return childSizes[childIndex];
     }
 
-    public void setChildSize(int size, int childIndex) {
+    /**
+     * Sets the size and the number of entries of a child after the child
+     * has been restructured, for example split, merged or after entries 
+     * have been moved from or to a sibling. The number of entries is 
+     * summed up from the counts of the children of the child, see 
+     * {@link #getNumEntriesInSubtree()}, so the children of the child 
+     * have to be updated first.
+     */
+    public void setChildSize(BTreeNode child, int childIndex) {
         if (this.childSizes != null) {
-            this.childSizes[childIndex] = size;
+            ensureChildCapacity(childIndex + 1);
+            this.childSizes[childIndex] = child.getCurrentSize();
+            if (this.childCounts != null) {
+                this.childCounts[childIndex] = child.getNumEntriesInSubtree();
+            }
+        }
+    }
+
+    /**
+     * Sets the size and the number of entries of a child after entries 
+     * have been added to or removed from its subtree. Unlike 
+     * {@link #setChildSize(BTreeNode, int)}, the number of entries is only
+     * adjusted, so this must not be used if the child itself has been 
+     * restructured.
+     * @param addedEntries The number of entries that have been added to 
+     * the subtree, negative if entries have been removed.
+     */
+    public void setChildSize(BTreeNode child, int childIndex, long addedEntries) {
+        if (this.childSizes != null) {
+            ensureChildCapacity(childIndex + 1);
+            this.childSizes[childIndex] = child.getCurrentSize();
+            if (this.childCounts != null && this.childCounts[childIndex] >= 0) {
+                this.childCounts[childIndex] += addedEntries;
+            }
         }
     }
 
     public int[] getChildSizes() {
         return childSizes;
     }
+
+    /**
+     * The numbers of entries in the subtrees of the children are only 
+     * kept if the buffer manager stores them in the pages, see 
+     * {@link BTreeStorageBufferManager#setStoreChildCounts(boolean)}. They 
+     * move with the children between nodes and are adjusted on the path 
+     * of every modification, see {@link #setChildSize(BTreeNode, int, long)}.
+     * 
+     * @return The number of entries in the subtree of a child, -1 if unknown
+     * or if the counts are not kept.
+     */
+    public long getChildCount(int childIndex) {
+        return childCounts == null ? -1 : childCounts[childIndex];
+    }
+
+    public void setChildCount(int childIndex, long count) {
+        if (this.childCounts != null) {
+            this.childCounts[childIndex] = count;
+        }
+    }
+
+    /**
+     * This sums up the counts of all children, so it is only used when a 
+     * child is set or restructured.
+     * @return The number of entries in the subtree of this node, or -1 if
+     * the number of entries of any child is not known.
+     */
+    public long getNumEntriesInSubtree() {
+        if (isLeaf()) {
+            return numKeys;
+        }
+        if (childCounts == null) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = 0; i <= numKeys; i++) {
+            if (childCounts[i] < 0) {
+                return -1;
+            }
+            n += childCounts[i];
+        }
+        return n;
+    }
+
+    /**
+     * @return The numbers of entries in the subtrees of the children or
+     * {@code null} if they are not kept.
+     */
+    public long[] getChildCounts() {
+        return childCounts;
+    }
     
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+import org.zoodb.internal.util.PrimLongMapZ;
+
+/**
+ * The state of a tree at the time the snapshot was taken.
+ *
+ * Nodes are changed in place in memory, so a snapshot keeps a copy of
+ * every node as it was before its first change after the snapshot, see
+ * {@link Registry#beforeChange(PagedBTreeNode)}. The copies are keyed by
+ * the page id that the node had when the snapshot was taken. Nodes that
+ * have not been changed are shared with the tree. Their page ids have not
+ * changed either, because a node only gets a new page id when it is
+ * written, which also takes a copy. The snapshot therefore only holds the
+ * nodes that have been changed.
+ *
+ * Pages that are freed without reading their nodes are not copied. They 
+ * are only freed when the snapshots that can see them have been closed,
+ * see {@link Registry#deferFree(int)}.
+ *
+ * A snapshot must be closed when it is not used anymore, otherwise the
+ * copies are taken and the freed pages are kept until it is closed. All
+ * snapshots are closed when the transaction ends, see
+ * {@link Registry#endTransaction(boolean)}.
+ */
+public final class BTreeSnapshot {
+
+	private final Registry registry;
+	private final int epoch;
+	private final PagedBTreeNode root;
+	private final int rootPageId;
+	private final PrimLongMapZ<PagedBTreeNode> copies = new PrimLongMapZ<>();
+	private int nCopies = 0;
+
+	BTreeSnapshot(PagedBTree tree) {
+		this.root = (PagedBTreeNode) tree.getRoot();
+		this.rootPageId = root.getPageId();
+		this.registry = tree.getBufferManager().getSnapshots();
+		this.epoch = registry.add(this);
+	}
+
+	/**
+	 * @return The root of the tree as it was when the snapshot was taken.
+	 */
+	public BTreeNode getRoot() {
+		PagedBTreeNode copy = copies.get(rootPageId);
+		return copy != null ? copy : root;
+	}
+
+	/**
+	 * @param node A node of the snapshot.
+	 * @param index The index of the child.
+	 * @return The child as it was when the snapshot was taken.
+	 */
+	public BTreeNode getChild(BTreeNode node, int index) {
+		PagedBTreeNode copy = copies.get(((PagedBTreeNode) node).getChildrenPageIds()[index]);
+		return copy != null ? copy : node.getChild(index);
+	}
+
+	/**
+	 * @return The number of nodes that have been copied. Nodes of the
+	 * snapshot that are in use have to be looked up again when this changes.
+	 */
+	public int getCopiesN() {
+		return nCopies;
+	}
+
+	/**
+	 * Stops taking copies for this snapshot.
+	 */
+	public void close() {
+		registry.remove(this);
+		copies.clear();
+	}
+
+	private void addCopy(int pageId, PagedBTreeNode copy) {
+		if (copies.get(pageId) == null) {
+			copies.put(pageId, copy);
+			nCopies++;
+		}
+	}
+
+	/**
+	 * The open snapshots of the trees of a buffer manager, see
+	 * {@link BTreeBufferManager#getSnapshots()}.
+	 *
+	 * Every snapshot gets a new epoch. A node remembers the epoch up to which
+	 * the snapshots have a copy of the node, so only the first change after
+	 * a snapshot takes a copy, see {@link PagedBTreeNode#markDirty()}.
+	 */
+	public static final class Registry {
+
+		// the snapshots that have been taken and not been closed, by epoch
+		private final ArrayList<BTreeSnapshot> snapshots = new ArrayList<>();
+		private int epoch = 0;
+		// frees the deferred pages, or null if pages are not deferred
+		private final IntConsumer freePage;
+		// the deferred pages and the epochs in which they have been freed
+		private int[] deferredPages = new int[0];
+		private int[] deferredEpochs = new int[0];
+		private int nDeferred = 0;
+		// the current transaction and the one of the open snapshots
+		private final LongSupplier txId;
+		private long snapshotTxId;
+
+		/**
+		 * @param freePage Frees a page once no snapshot can see it anymore,
+		 * see {@link #deferFree(int)}, or {@code null} if pages are freed
+		 * immediately.
+		 * @param txId The id of the current transaction.
+		 */
+		public Registry(IntConsumer freePage, LongSupplier txId) {
+			this.freePage = freePage;
+			this.txId = txId;
+		}
+
+		int getEpoch() {
+			return epoch;
+		}
+
+		private int add(BTreeSnapshot snapshot) {
+			checkTransaction();
+			if (snapshots.isEmpty()) {
+				snapshotTxId = txId.getAsLong();
+			}
+			snapshots.add(snapshot);
+			return ++epoch;
+		}
+
+		private void remove(BTreeSnapshot snapshot) {
+			checkTransaction();
+			if (!snapshots.remove(snapshot)) {
+				return;
+			}
+			//the pages that have been freed before the oldest open snapshot
+			int oldest = snapshots.isEmpty() ? Integer.MAX_VALUE : snapshots.get(0).epoch;
+			int n = 0;
+			while (n < nDeferred && deferredEpochs[n] < oldest) {
+				n++;
+			}
+			if (n == 0) {
+				return;
+			}
+			int[] pages = Arrays.copyOf(deferredPages, n);
+			System.arraycopy(deferredPages, n, deferredPages, 0, nDeferred - n);
+			System.arraycopy(deferredEpochs, n, deferredEpochs, 0, nDeferred - n);
+			nDeferred -= n;
+			for (int pageId : pages) {
+				freePage.accept(pageId);
+			}
+		}
+
+		/**
+		 * @return Whether there are snapshots that have not been closed.
+		 */
+		public boolean isActive() {
+			checkTransaction();
+			return !snapshots.isEmpty();
+		}
+
+		/**
+		 * Closes all snapshots. This has to be called when the transaction
+		 * ends. The deferred pages are freed after a commit. After a 
+		 * rollback they are dropped, because the tree that is restored may 
+		 * still use them.
+		 * @param commit Whether the transaction has been committed.
+		 */
+		public void endTransaction(boolean commit) {
+			for (BTreeSnapshot s : snapshots) {
+				s.copies.clear();
+			}
+			snapshots.clear();
+			int[] pages = Arrays.copyOf(deferredPages, nDeferred);
+			nDeferred = 0;
+			if (commit) {
+				for (int pageId : pages) {
+					freePage.accept(pageId);
+				}
+			}
+		}
+
+		/**
+		 * Closes the snapshots of a transaction that has ended without 
+		 * {@link #endTransaction(boolean)}. Their deferred pages are dropped,
+		 * because it is not known whether the transaction has been 
+		 * committed.
+		 */
+		private void checkTransaction() {
+			if ((!snapshots.isEmpty() || nDeferred > 0) 
+					&& txId.getAsLong() != snapshotTxId) {
+				endTransaction(false);
+			}
+		}
+
+		/**
+		 * Defers freeing a page whose node has not been read until the 
+		 * snapshots that have been taken so far are closed. The snapshots
+		 * read the node from the page if they need it.
+		 * @param pageId The page.
+		 * @return {@code false} if no snapshot is open, the page has to be 
+		 * freed by the caller.
+		 */
+		boolean deferFree(int pageId) {
+			checkTransaction();
+			if (snapshots.isEmpty() || freePage == null) {
+				return false;
+			}
+			if (nDeferred == deferredPages.length) {
+				int capacity = Math.max(16, nDeferred * 2);
+				deferredPages = Arrays.copyOf(deferredPages, capacity);
+				deferredEpochs = Arrays.copyOf(deferredEpochs, capacity);
+			}
+			deferredPages[nDeferred] = pageId;
+			deferredEpochs[nDeferred] = epoch;
+			nDeferred++;
+			return true;
+		}
+
+		/**
+		 * @return The number of pages that wait for snapshots to be closed.
+		 */
+		public int getDeferredPagesN() {
+			return nDeferred;
+		}
+
+		/**
+		 * Copies the node into the snapshots that have been taken since the
+		 * last copy of the node. This has to be called before the node, its
+		 * page id or its children page ids are changed, and before the node
+		 * is removed.
+		 */
+		void beforeChange(PagedBTreeNode node) {
+			checkTransaction();
+			PagedBTreeNode copy = null;
+			for (BTreeSnapshot s : snapshots) {
+				if (s.epoch > node.snapshotEpoch) {
+					if (copy == null) {
+						copy = node.copyForSnapshot();
+					}
+					s.addCopy(node.getPageId(), copy);
+				}
+			}
+			node.snapshotEpoch = epoch;
+		}
+	}
+}
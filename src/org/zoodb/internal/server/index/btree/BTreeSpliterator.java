@@ -0,0 +1,210 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.ConcurrentModificationException;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Spliterator over the values of the entries of a B+ tree whose keys are
+ * in a given range, in ascending order of the entries.
+ *
+ * The key range is split at the separator keys of the inner nodes, so
+ * every part covers whole subtrees. Splitting starts at the highest node
+ * that has separators in the range, the parts are therefore of similar
+ * size.
+ *
+ * If the inner nodes keep the number of entries of their children, see
+ * {@link BTreeBufferManager#isStoringChildCounts()}, the size of every
+ * part is counted exactly with {@link BTree#countInRange(long, long)},
+ * which only reads the nodes on the paths to the ends of the range. 
+ * The spliterator is then {@link #SIZED} and {@link #SUBSIZED}. Otherwise
+ * the number of entries of the tree is split in halves as an estimate.
+ *
+ * The nodes of the tree must not be accessed concurrently, because the
+ * buffer manager is not thread-safe, reading a node modifies its 
+ * buffers. Parts that are processed by different threads therefore 
+ * synchronize on the tree whenever they read nodes, so the scan of the
+ * leaves is serialized. The parts read blocks of entries, see
+ * {@link BTreeLeafEntryIterator#nextBlock(long[], long[], int)}, and
+ * pass them to the consumer without holding the lock, so only the 
+ * processing of the values runs in parallel.
+ */
+public class BTreeSpliterator implements Spliterator.OfLong {
+
+	private static final int BLOCK_SIZE = 256;
+
+	private final BTree tree;
+	private final int modCount;
+	private long min;
+	private final long max;
+	// whether the estimate is the exact number of entries
+	private final boolean sized;
+	// entries that have not been read yet, -1 if not known yet
+	private long estimate;
+
+	// created with the first entry that is read, no splitting afterwards
+	private BTreeLeafEntryIterator cursor;
+	private long[] keys;
+	private long[] values;
+	private int nValues = 0;
+	private int pos = 0;
+
+	public BTreeSpliterator(BTree tree, long min, long max) {
+		this(tree, min, max, tree.getModcount(), isSized(tree), -1);
+	}
+
+	private BTreeSpliterator(BTree tree, long min, long max, int modCount,
+			boolean sized, long estimate) {
+		this.tree = tree;
+		this.min = min;
+		this.max = max;
+		this.modCount = modCount;
+		this.sized = sized;
+		this.estimate = estimate;
+	}
+
+	private static boolean isSized(BTree tree) {
+		return tree instanceof PagedBTree 
+				&& ((PagedBTree) tree).getBufferManager().isStoringChildCounts();
+	}
+
+	@Override
+	public OfLong trySplit() {
+		if (cursor != null || min >= max) {
+			return null;
+		}
+		synchronized (tree) {
+			checkModcount();
+			if (tree.isEmpty()) {
+				return null;
+			}
+			BTreeNode node = tree.getRoot();
+			while (!node.isLeaf()) {
+				int numKeys = node.getNumKeys();
+				// separators in (min, max]
+				int lo = 0;
+				while (lo < numKeys && node.getKey(lo) <= min) {
+					lo++;
+				}
+				int hi = lo;
+				while (hi < numKeys && node.getKey(hi) <= max) {
+					hi++;
+				}
+				if (lo < hi) {
+					long split = node.getKey((lo + hi - 1) >>> 1);
+					long prefixEstimate = -1;
+					if (sized) {
+						// counted when they are needed
+						estimate = -1;
+					} else {
+						estimate = estimate() >>> 1;
+						prefixEstimate = estimate;
+					}
+					BTreeSpliterator prefix = new BTreeSpliterator(tree, min, 
+							split - 1, modCount, sized, prefixEstimate);
+					min = split;
+					return prefix;
+				}
+				// the range is in a single child
+				node = node.getChild(lo);
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public boolean tryAdvance(LongConsumer action) {
+		if (pos == nValues && !readBlock()) {
+			return false;
+		}
+		action.accept(values[pos++]);
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(LongConsumer action) {
+		do {
+			while (pos < nValues) {
+				action.accept(values[pos++]);
+			}
+		} while (readBlock());
+	}
+
+	private boolean readBlock() {
+		synchronized (tree) {
+			if (cursor == null) {
+				checkModcount();
+				if (tree.isEmpty()) {
+					return false;
+				}
+				estimate();
+				cursor = new AscendingBTreeLeafEntryIterator(tree, min, max);
+				keys = new long[BLOCK_SIZE];
+				values = new long[BLOCK_SIZE];
+			}
+			nValues = cursor.nextBlock(keys, values, BLOCK_SIZE);
+		}
+		estimate = Math.max(0, estimate - nValues);
+		pos = 0;
+		return nValues > 0;
+	}
+
+	private void checkModcount() {
+		if (modCount != tree.getModcount()) {
+			throw new ConcurrentModificationException();
+		}
+	}
+
+	@Override
+	public long estimateSize() {
+		if (cursor == null) {
+			synchronized (tree) {
+				return estimate();
+			}
+		}
+		// the values of the current block have not been consumed yet
+		return estimate + nValues - pos;
+	}
+
+	/**
+	 * Must be called while holding the lock on the tree.
+	 * @return The estimated or, if sized, the exact number of entries of
+	 * this part that have not been read yet.
+	 */
+	private long estimate() {
+		if (estimate < 0) {
+			if (sized) {
+				estimate = tree.countInRange(min, max);
+			} else {
+				long numEntries = tree.getRoot().getNumEntriesInTree();
+				estimate = numEntries >= 0 ? numEntries : Long.MAX_VALUE;
+			}
+		}
+		return estimate;
+	}
+
+	@Override
+	public int characteristics() {
+		return sized ? ORDERED | NONNULL | SIZED | SUBSIZED : ORDERED | NONNULL;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+/**
+ * Number of nodes and encoded size of the nodes of a tree.
+ *
+ * The nodes report their creation, their size changes and their removal,
+ * see {@link PagedBTreeNode}. Nodes that are read from storage are already
+ * counted. Leaves that are freed without reading them are removed with 
+ * the size that their parent knows, see {@link PagedBTree}. The 
+ * statistics are unknown for a tree that has been read from storage and
+ * after a leaf has been freed whose size was not known.
+ * The tree counts its nodes once if they are unknown, see 
+ * {@link BTree#statsGetInnerN()}.
+ */
+public final class BTreeStatistics {
+
+	private boolean isKnown = true;
+	private int nInner = 0;
+	private int nLeaves = 0;
+	private long nBytes = 0;
+
+	void addNode(boolean isLeaf) {
+		if (isLeaf) {
+			nLeaves++;
+		} else {
+			nInner++;
+		}
+	}
+
+	void removeNode(boolean isLeaf, int size) {
+		if (isLeaf) {
+			nLeaves--;
+		} else {
+			nInner--;
+		}
+		nBytes -= size;
+	}
+
+	void addBytes(int n) {
+		nBytes += n;
+	}
+
+	/**
+	 * Sets the statistics after the nodes of the tree have been counted.
+	 */
+	void set(int nInner, int nLeaves, long nBytes) {
+		this.nInner = nInner;
+		this.nLeaves = nLeaves;
+		this.nBytes = nBytes;
+		this.isKnown = true;
+	}
+
+	/**
+	 * Resets the statistics for a tree without nodes.
+	 */
+	void reset() {
+		set(0, 0, 0);
+	}
+
+	void invalidate() {
+		isKnown = false;
+	}
+
+	/**
+	 * @return Whether the statistics are valid.
+	 */
+	public boolean isKnown() {
+		return isKnown;
+	}
+
+	public int getInnerN() {
+		return nInner;
+	}
+
+	public int getLeavesN() {
+		return nLeaves;
+	}
+
+	/**
+	 * @return The sum of the encoded sizes of the nodes, including the
+	 * page headers.
+	 */
+	public long getBytes() {
+		return nBytes;
+	}
+}
@@ -20,11 +20,10 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.zoodb.internal.server.DiskIO;
 import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
 import org.zoodb.internal.server.IOResourceProvider;
@@ -39,6 +38,13 @@ import org.zoodb.internal.util.PrimLongMapZ;
  * Only supports storing *one* tree.
  *
  * - Supports caching through the dirty and clean buffers.
+ * - The size of the clean buffer is controlled by a {@link BTreeBufferPool}, 
+ *   which may be shared with the buffer managers of other trees. If the
+ *   pool is full, cold clean nodes are evicted one at a time.
+ * - Optionally pins clean inner nodes up to a byte budget, see 
+ *   {@link #setMaxPinnedInnerNodeBytes(long)}.
+ * - Optionally keeps the encoded images of clean pages in a 
+ *   {@link PageImageCache}, see {@link #setPageImageCache(PageImageCache)}.
  * - Performs encoding of the key array before page write
  * - Performs decoding of the key array after page read
  *
@@ -47,7 +53,25 @@ import org.zoodb.internal.util.PrimLongMapZ;
  */
 public class BTreeStorageBufferManager implements BTreeBufferManager {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(BTreeStorageBufferManager.class);
+	/** Return values of {@link #searchLeafImage(int, long, long)} */
+	public static final int IMAGE_NOT_SEARCHED = 0;
+	public static final int IMAGE_NOT_FOUND = 1;
+	public static final int IMAGE_FOUND = 2;
+
+	// node types, the page of the root also contains the number of entries
+	// of the tree, see BTreeNode#getNumEntriesInTree(), the pages of inner 
+	// nodes may contain the number of entries of each child, see 
+	// setStoreChildCounts(), which is also recorded in the type of the root
+	private static final byte LEAF = -1;
+	private static final byte INNER = 1;
+	private static final byte ROOT_LEAF = -2;
+	private static final byte ROOT_INNER = 2;
+	private static final byte INNER_WITH_COUNTS = 3;
+	private static final byte ROOT_INNER_WITH_COUNTS = 4;
+	private static final byte ROOT_LEAF_WITH_COUNTS = -3;
+	private static final int NUM_ENTRIES_SIZE = 8;
+	static final int CHILD_ID_SIZE = 4;
+	private static final int CHILD_COUNT_SIZE = 8;
 
     private int pageSize;
     
@@ -55,7 +79,22 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	private final PrimLongMapZ<PagedBTreeNode> dirtyBuffer;
 	// stores clean nodes
 	private final PrimLongMapZ<PagedBTreeNode> cleanBuffer;
-	private int maxCleanBufferElements = -1;
+	// replacement policy for the clean buffer
+	private BTreeBufferPool bufferPool = new BTreeBufferPool();
+	// pinned inner nodes are kept in the clean buffer but are never evicted
+	private long maxPinnedInnerNodeBytes = 0;
+	private long pinnedBytes = 0;
+	private int pinnedNodes = 0;
+	// optional cache for encoded pages
+	private PageImageCache pageImageCache = null;
+	// id of this buffer manager in the page image cache
+	private int pageImageCacheOwner;
+	// pages are read into this buffer when their image is cached
+	private final byte[] imageBuffer;
+	// value found by the last search in a page image
+	private long imageSearchValue;
+	// arrays of nodes that are not used anymore
+	private final NodeArrayPool nodeArrayPool = new NodeArrayPool();
 
 	// counter to give nodes that are not written yet
 	// a unique but non-existent "pageId". The counter
@@ -69,9 +108,15 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	
 	private int statNWrittenPages = 0;
 	private int statNReadPages = 0;
+	private int statNEvictedPages = 0;
+	private final BTreeStatistics statistics = new BTreeStatistics();
+	private final BTreeSnapshot.Registry snapshots = 
+			new BTreeSnapshot.Registry(this::freeDeferredPage, this::getTxId);
 
 	// size of a leafs value in byte
 	private int nodeValueElementSize = 8;
+	// whether the pages of inner nodes contain the counts of the children
+	private boolean storeChildCounts = false;
 
 	public BTreeStorageBufferManager(IOResourceProvider storage, boolean isUnique) {
 		this.dirtyBuffer = new PrimLongMapZ<>();
@@ -79,6 +124,7 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		this.isUnique = isUnique;
 		this.storageFile = storage;
     	this.pageSize = this.storageFile.getPageSize();
+    	this.imageBuffer = new byte[pageSize - DiskIO.PAGE_HEADER_SIZE];
 	}
 
 	public BTreeStorageBufferManager(IOResourceProvider storage, boolean isUnique, PAGE_TYPE dataType) {
@@ -100,9 +146,18 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		// search node in memory
 		PagedBTreeNode node = readNodeFromMemory(pageId);
 		if (node != null) {
+			node.referenced = true;
 			return node;
 		}
 
+		// search encoded page in memory
+		if (pageImageCache != null) {
+			byte[] image = pageImageCache.get(pageImageCacheOwner, pageId);
+			if (image != null) {
+				return decodeNode(pageId, image);
+			}
+		}
+
 		// search node in storage
 		return readNodeFromStorage(pageId);
 	}
@@ -117,48 +172,45 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	}
 
 	public PagedBTreeNode readNodeFromStorage(int pageId) {
+		if (pageImageCache != null) {
+			int length = readImageFromStorage(pageId);
+			pageImageCache.putCopy(pageImageCacheOwner, pageId, imageBuffer, length);
+			return decodeNode(pageId, imageBuffer);
+		}
+
 		StorageChannelInput storageIn = storageFile.getInputChannel();
         storageIn.seekPageForRead(dataType, pageId);
 
-		PagedBTreeNode node;
-
-		boolean isLeaf = storageIn.readByte() < 0 ? true : false;
+		byte nodeType = storageIn.readByte();
+		boolean isLeaf = nodeType < 0;
+		long numEntries = typeSize(nodeType) > 1 ? storageIn.readLong() : -1;
+		rootTypeRead(nodeType);
 		
 		/* Deal with prefix-sharing encoded keys */
-		byte[] metadata = new byte[5];
-		storageIn.noCheckRead(metadata);
-		int numKeys = PrefixSharingHelper.byteArrayToInt(metadata, 0);
-		byte prefixLength = metadata[4];
-		int encodedArraySize = PrefixSharingHelper.encodedArraySizeWithoutMetadata(numKeys, prefixLength);
-		byte[] encodedArrayWithoutMetadata = new byte[encodedArraySize];
-		storageIn.noCheckRead(encodedArrayWithoutMetadata);
-        int maxNumKeys = PagedBTreeNode.computeMaxPossibleEntries(isUnique, isLeaf, getPageSize(), nodeValueElementSize);
-
-		long[] keys = PrefixSharingHelper.decodeArray(encodedArrayWithoutMetadata, numKeys, maxNumKeys, prefixLength);
-
-		if (isLeaf) {
-			long[] values = new long[maxNumKeys];
-			readValues(values, numKeys, storageIn);
-			node = PagedBTreeNodeFactory.constructLeaf(this, isUnique, false,
-								pageSize, pageId, numKeys,
-								keys, values);
-		} else {
-			int[] childrenPageIds = new int[maxNumKeys+1];
+		int numKeys = storageIn.readInt();
+		byte prefixLength = storageIn.readByte();
 
-            long[] values = null;
-            if (!isUnique) {
-                values = new long[maxNumKeys];
-                readValues(values, numKeys, storageIn);
-            }
-			storageIn.noCheckRead(childrenPageIds, numKeys+1);
-			node = PagedBTreeNodeFactory.constructInnerNode(this, isUnique, false,
-								pageSize, pageId, numKeys, keys, values,
-								childrenPageIds);
+		// the arrays of the node are taken from the node array pool and
+		// sized for the number of keys
+		PagedBTreeNode node = PagedBTreeNodeFactory.createNode(this, isUnique, false, 
+				isLeaf, pageSize, pageId);
+		node.ensureCapacity(numKeys);
+		PrefixSharingHelper.decodeArray(storageIn, numKeys, prefixLength, node.getKeys());
+		if (node.getValues() != null) {
+			readValues(node.getValues(), numKeys, storageIn);
 		}
+		if (!isLeaf) {
+			storageIn.noCheckRead(node.getChildrenPageIds(), numKeys+1);
+			if (hasChildCounts(nodeType) && node.getChildCounts() != null) {
+				storageIn.noCheckRead(node.getChildCounts(), numKeys+1);
+			}
+		}
+		node.setNumKeys(numKeys);
+		node.setNumEntriesInTree(numEntries);
+		node.recomputeSize();
 
-		// node in memory == node in storage
+		// node in memory == node in storage, this puts it in the clean buffer
 		node.markClean();
-		putInCleanBuffer(node.getPageId(), node);
 		
 		statNReadPages++;
 
@@ -167,6 +219,184 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		return node;
 	}
 	
+	/**
+	 * Reads the image of a page into the image buffer without decoding it,
+	 * see {@link #encodeNode(PagedBTreeNode)}. The whole page is read with 
+	 * one call, the image starts at the beginning of the buffer.
+	 * @return The length of the image.
+	 */
+	private int readImageFromStorage(int pageId) {
+		StorageChannelInput storageIn = storageFile.getInputChannel();
+        storageIn.seekPageForRead(dataType, pageId);
+		storageIn.noCheckRead(imageBuffer);
+		storageFile.returnInputChannel(storageIn);
+		
+		statNReadPages++;
+
+		byte nodeType = imageBuffer[0];
+		int typeSize = typeSize(nodeType);
+		int numKeys = PrefixSharingHelper.byteArrayToInt(imageBuffer, typeSize);
+		byte prefixLength = imageBuffer[typeSize + 4];
+		boolean hasValues = nodeType < 0 || !isUnique;
+		return imageSize(nodeType, numKeys, prefixLength, hasValues);
+	}
+
+	/**
+	 * @return The size of the image of a node in bytes.
+	 */
+	private int imageSize(byte nodeType, int numKeys, long prefixLength, boolean hasValues) {
+		boolean isLeaf = nodeType < 0;
+		int size = typeSize(nodeType) + PrefixSharingHelper.encodedArraySize(numKeys, prefixLength);
+		if (hasValues) {
+			size += numKeys * nodeValueElementSize;
+		}
+		if (!isLeaf) {
+			size += (numKeys + 1) * CHILD_ID_SIZE;
+		}
+		if (hasChildCounts(nodeType)) {
+			size += (numKeys + 1) * CHILD_COUNT_SIZE;
+		}
+		return size;
+	}
+
+	/**
+	 * Creates a clean node from a page image.
+	 */
+	private PagedBTreeNode decodeNode(int pageId, byte[] image) {
+		boolean isLeaf = image[0] < 0;
+		int typeSize = typeSize(image[0]);
+		long numEntries = typeSize > 1 ? ByteBuffer.wrap(image).getLong(1) : -1;
+		rootTypeRead(image[0]);
+		int numKeys = PrefixSharingHelper.byteArrayToInt(image, typeSize);
+		byte prefixLength = image[typeSize + 4];
+		int pos = typeSize + PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+
+		PagedBTreeNode node = PagedBTreeNodeFactory.createNode(this, isUnique, false, 
+				isLeaf, pageSize, pageId);
+		node.ensureCapacity(numKeys);
+		PrefixSharingHelper.decodeArray(image, pos, numKeys, prefixLength, node.getKeys());
+		pos += PrefixSharingHelper.encodedArraySizeWithoutMetadata(numKeys, prefixLength);
+		if (node.getValues() != null) {
+			pos = readValues(node.getValues(), numKeys, image, pos);
+		}
+		if (!isLeaf) {
+			int[] childrenPageIds = node.getChildrenPageIds();
+			for (int i = 0; i < numKeys + 1; i++) {
+				childrenPageIds[i] = PrefixSharingHelper.byteArrayToInt(image, pos);
+				pos += CHILD_ID_SIZE;
+			}
+			if (hasChildCounts(image[0]) && node.getChildCounts() != null) {
+				ByteBuffer buf = ByteBuffer.wrap(image);
+				long[] childCounts = node.getChildCounts();
+				for (int i = 0; i < numKeys + 1; i++) {
+					childCounts[i] = buf.getLong(pos);
+					pos += CHILD_COUNT_SIZE;
+				}
+			}
+		}
+		node.setNumKeys(numKeys);
+		node.setNumEntriesInTree(numEntries);
+		node.recomputeSize();
+
+		// node in memory == node in storage, this puts it in the clean buffer
+		node.markClean();
+		return node;
+	}
+
+	/**
+	 * Searches a key/value pair in a leaf page that is not in memory, if
+	 * page images are cached. The image is searched in place: only the 
+	 * keys that are compared and the value of the matching entry are 
+	 * decoded, and no node is created. If the image is not cached, only 
+	 * the image is read from storage and added to the cache.
+	 * @param pageId The page of the leaf
+	 * @param key The key
+	 * @param value The value, only compared in non-unique trees
+	 * @return {@link #IMAGE_FOUND}, {@link #IMAGE_NOT_FOUND} or 
+	 * {@link #IMAGE_NOT_SEARCHED} if the page is in memory, is not a leaf 
+	 * or if page images are not cached. If the entry was found, its value
+	 * is returned by {@link #getImageSearchValue()}.
+	 */
+	public int searchLeafImage(int pageId, long key, long value) {
+		if (pageImageCache == null || readNodeFromMemory(pageId) != null) {
+			return IMAGE_NOT_SEARCHED;
+		}
+		byte[] image = pageImageCache.get(pageImageCacheOwner, pageId);
+		if (image == null) {
+			//an inner node is decoded from the cached image when it is read
+			int length = readImageFromStorage(pageId);
+			pageImageCache.putCopy(pageImageCacheOwner, pageId, imageBuffer, length);
+			image = imageBuffer;
+		}
+		if (image[0] >= 0) {
+			return IMAGE_NOT_SEARCHED;
+		}
+		int typeSize = typeSize(image[0]);
+		int numKeys = PrefixSharingHelper.byteArrayToInt(image, typeSize);
+		byte prefixLength = image[typeSize + 4];
+		int keysOffset = typeSize + PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+		long prefix = PrefixSharingHelper.decodePrefix(image, keysOffset, numKeys, prefixLength);
+		if (numKeys == 0 || (prefixLength > 0 && (key >>> (64 - prefixLength)) 
+				!= (prefix >>> (64 - prefixLength)))) {
+			//all keys in the page share the prefix
+			return IMAGE_NOT_FOUND;
+		}
+		int valuesOffset = keysOffset 
+				+ PrefixSharingHelper.encodedArraySizeWithoutMetadata(numKeys, prefixLength);
+
+		int low = 0;
+		int high = numKeys - 1;
+		while (low <= high) {
+			int mid = low + ((high - low) >> 1);
+			long midKey = PrefixSharingHelper.decodeKey(image, keysOffset, numKeys, 
+					prefixLength, prefix, mid);
+			int cmp = Long.compare(key, midKey);
+			if (cmp == 0 && !isUnique) {
+				cmp = Long.compare(value, readValue(image, valuesOffset, mid));
+			}
+			if (cmp == 0) {
+				imageSearchValue = readValue(image, valuesOffset, mid);
+				return IMAGE_FOUND;
+			} else if (cmp < 0) {
+				high = mid - 1;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return IMAGE_NOT_FOUND;
+	}
+
+	/**
+	 * @return The value of the entry found by the last successful call to
+	 * {@link #searchLeafImage(int, long, long)}.
+	 */
+	public long getImageSearchValue() {
+		return imageSearchValue;
+	}
+
+	/**
+	 * Reads a single value from a page image.
+	 */
+	private long readValue(byte[] image, int valuesOffset, int index) {
+		int pos = valuesOffset + index * nodeValueElementSize;
+		long value = image[pos];
+		for (int i = 1; i < nodeValueElementSize; i++) {
+			value = (value << 8) | (image[pos + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads values from a page image.
+	 * @return The position after the last value.
+	 */
+	private int readValues(long[] values, int numValues, byte[] image, int pos) {
+		for (int i = 0; i < numValues; i++) {
+			values[i] = readValue(image, pos, i);
+		}
+		return pos + numValues * nodeValueElementSize;
+	}
+
 	private void readValues(long[] values, int numValues, StorageChannelInput storageIn) {
 		if(nodeValueElementSize == 8) {
 			storageIn.noCheckRead(values, numValues);
@@ -216,10 +446,9 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		// write data to storage and obtain new pageId
 		int newPageId = writeNodeDataToStorage(node, out);
 
-		// update pageId in memory
+		// update pageId in memory, marking the node as clean
+		// moves it into the clean buffer
 		dirtyBuffer.remove(node.getPageId());
-		putInCleanBuffer(newPageId, node);
-
 		node.setPageId(newPageId);
 		node.markClean();
 		
@@ -230,20 +459,77 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 
 	/**
 	 * Put a node in the clean buffer and handle the
-	 * caching policy. For example clear the cache if the
-	 * cache size is exceeded
+	 * caching policy. If the cache size is exceeded, cold
+	 * nodes are evicted one by one until there is space
+	 * for the new node.
 	 * 
 	 * @param pageId
 	 * @param node
 	 */
 	private void putInCleanBuffer(int pageId, PagedBTreeNode node) {
-		if(maxCleanBufferElements < 0 || cleanBuffer.size() < maxCleanBufferElements) {
-			cleanBuffer.put(pageId, node);
+		if (cleanBuffer.get(pageId) == node) {
+			node.referenced = true;
+			return;
+		}
+		cleanBuffer.put(pageId, node);
+		//an evicted node may be used again through its parent
+		nodeArrayPool.untrack(node);
+		if (!pin(node)) {
+			bufferPool.add(node);
+		}
+	}
+
+	private void removeFromCleanBuffer(int pageId, PagedBTreeNode node) {
+		cleanBuffer.remove(pageId);
+		if (node.pinned) {
+			unpin(node);
 		} else {
-			LOGGER.warn("Flushing whole buffer.");
-			//TODO TZ We should only flush old and rarely used elements. 
-			cleanBuffer.clear();
+			bufferPool.remove(node);
+		}
+	}
+
+	/**
+	 * Pins the node if it is an inner node and if the pinning budget 
+	 * allows it.
+	 * @return true if the node has been pinned
+	 */
+	private boolean pin(PagedBTreeNode node) {
+		if (node.isLeaf()) {
+			return false;
 		}
+		long heapSize = node.computeHeapSize();
+		if (pinnedBytes + heapSize > maxPinnedInnerNodeBytes) {
+			return false;
+		}
+		bufferPool.remove(node);
+		node.pinned = true;
+		node.heapSize = heapSize;
+		pinnedBytes += heapSize;
+		pinnedNodes++;
+		return true;
+	}
+
+	private void unpin(PagedBTreeNode node) {
+		node.pinned = false;
+		pinnedBytes -= node.heapSize;
+		pinnedNodes--;
+	}
+
+	/**
+	 * Called by the buffer pool when it evicts a node of this 
+	 * buffer manager.
+	 * @return false if the node was not in the clean buffer
+	 */
+	boolean evicted(PagedBTreeNode node) {
+		int pageId = node.getPageId();
+		//ignore nodes that have already been removed from the buffer
+		if (cleanBuffer.get(pageId) != node) {
+			return false;
+		}
+		cleanBuffer.remove(pageId);
+		nodeArrayPool.track(node);
+		statNEvictedPages++;
+		return true;
 	}
 
 	/**
@@ -256,10 +542,20 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	 * size(value) bytes * numKeys for values
 	 * 
 	 * Inner node page: 
-	 * 1 byte 0 
+	 * 1 byte 1 
 	 * prefixShareEncoding(keys) 
 	 * size(value) bytes * numKeys for values (if NonUniqueNode
 	 * 4 byte * (numKeys + 1) for childrenPageIds 
+	 * 
+	 * The root page starts with 1 byte -2 or 2 followed by 8 byte for the
+	 * number of entries of the tree, if the number is known.
+	 * 
+	 * If child counts are stored, see {@link #setStoreChildCounts(boolean)},
+	 * inner nodes start with 1 byte 3, or 4 followed by the number of 
+	 * entries for the root, and end with 8 byte * (numKeys + 1) for the 
+	 * number of entries of the children, -1 if not known. The root page 
+	 * then always starts with 1 byte 4, or -3 for a leaf, followed by the 
+	 * number of entries of the tree, -1 if not known.
 	 */
 	private int writeNodeDataToStorage(PagedBTreeNode node, StorageChannelOutput storageOut) {
 
@@ -268,44 +564,104 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		// as previous page id
 		int pageId = storageOut.allocateAndSeek(dataType, previousPageId);
 
-		if (node.isLeaf()) {
-			storageOut.writeByte((byte) -1);
-			byte[] encodedKeys = PrefixSharingHelper.encodeArray(node.getKeys(), node.getNumKeys(), node.getPrefix());
-			storageOut.noCheckWrite(encodedKeys);
-			writeValues(node.getValues(), node.getNumKeys(), storageOut);
-
-		} else {
-			storageOut.writeByte((byte) 1);
-			byte[] encodedKeys = PrefixSharingHelper.encodeArray(node.getKeys(), node.getNumKeys(), node.getPrefix());
-			storageOut.noCheckWrite(encodedKeys);
-            if (node.getValues() != null) {
-				writeValues(node.getValues(), node.getNumKeys(), storageOut);
-            }
-			storageOut.noCheckWrite(node.getChildrenPageIds(), node.getNumKeys()+1);
-		}
-
+		byte[] image = encodeNode(node);
+		storageOut.noCheckWrite(image);
 		storageOut.flush();
+		if (pageImageCache != null) {
+			pageImageCache.put(pageImageCacheOwner, pageId, image, image.length);
+		}
 		return pageId;
 	}
 	
-	private void writeValues(long[] values, int numValues, StorageChannelOutput storageOut) {
-		if(nodeValueElementSize == 8) {
-			storageOut.noCheckWrite(values, numValues);
-		} else {
-			for(int i = 0; i < numValues; i++) {
-				if(nodeValueElementSize == 1) {
-					storageOut.writeByte((byte)values[i]);
-				}
-				else if(nodeValueElementSize == 2) {
-					storageOut.writeShort((short)values[i]);
+	/**
+	 * Creates the image of a node, that is the node in the format that is 
+	 * written to storage. This is the only place where the format of a 
+	 * page is written, see {@link #writeNodeDataToStorage}.
+	 */
+	byte[] encodeNode(PagedBTreeNode node) {
+		int numKeys = node.getNumKeys();
+		byte nodeType = nodeType(node);
+		int typeSize = typeSize(nodeType);
+		byte[] image = new byte[imageSize(nodeType, numKeys, node.getPrefix(), 
+				node.getValues() != null)];
+		ByteBuffer buf = ByteBuffer.wrap(image);
+		image[0] = nodeType;
+		if (typeSize > 1) {
+			buf.putLong(1, node.getNumEntriesInTree());
+		}
+		byte[] encodedKeys = PrefixSharingHelper.encodeArray(node.getKeys(), numKeys, node.getPrefix());
+		System.arraycopy(encodedKeys, 0, image, typeSize, encodedKeys.length);
+		int pos = typeSize + encodedKeys.length;
+		if (node.getValues() != null) {
+			for (int i = 0; i < numKeys; i++) {
+				long value = node.getValues()[i];
+				switch (nodeValueElementSize) {
+				case 1: buf.put(pos, (byte) value); break;
+				case 2: buf.putShort(pos, (short) value); break;
+				case 4: buf.putInt(pos, (int) value); break;
+				case 8: buf.putLong(pos, value); break;
+				default: throw new UnsupportedOperationException();
 				}
-				else if(nodeValueElementSize == 4) {
-					storageOut.writeInt((int)values[i]);
-				} else {
-					throw new UnsupportedOperationException();
+				pos += nodeValueElementSize;
+			}
+		}
+		if (!node.isLeaf()) {
+			int[] childrenPageIds = node.getChildrenPageIds();
+			for (int i = 0; i < numKeys + 1; i++) {
+				buf.putInt(pos, childrenPageIds[i]);
+				pos += CHILD_ID_SIZE;
+			}
+			if (hasChildCounts(nodeType)) {
+				long[] childCounts = node.getChildCounts();
+				for (int i = 0; i < numKeys + 1; i++) {
+					buf.putLong(pos, childCounts != null ? childCounts[i] : -1);
+					pos += CHILD_COUNT_SIZE;
 				}
 			}
 		}
+		return image;
+	}
+
+	private byte nodeType(PagedBTreeNode node) {
+		if (storeChildCounts) {
+			//the type of the root records the format, see rootTypeRead()
+			if (node.isRoot()) {
+				return node.isLeaf() ? ROOT_LEAF_WITH_COUNTS : ROOT_INNER_WITH_COUNTS;
+			}
+			return node.isLeaf() ? LEAF : INNER_WITH_COUNTS;
+		}
+		boolean withNumEntries = node.isRoot() && node.getNumEntriesInTree() >= 0;
+		if (node.isLeaf()) {
+			return withNumEntries ? ROOT_LEAF : LEAF;
+		}
+		return withNumEntries ? ROOT_INNER : INNER;
+	}
+
+	/**
+	 * Takes the format of the pages from the page of the root when it is 
+	 * read, so that a tree is written in the format that it has been 
+	 * created with, see {@link #setStoreChildCounts(boolean)}. Root pages
+	 * without the number of entries do not record the format, they are 
+	 * only written without child counts.
+	 */
+	private void rootTypeRead(byte nodeType) {
+		if (typeSize(nodeType) > 1) {
+			storeChildCounts = nodeType == ROOT_INNER_WITH_COUNTS 
+					|| nodeType == ROOT_LEAF_WITH_COUNTS;
+		}
+	}
+
+	/**
+	 * @return The size of the node type and of the number of entries.
+	 */
+	private static int typeSize(byte nodeType) {
+		return nodeType == ROOT_LEAF || nodeType == ROOT_INNER 
+				|| nodeType == ROOT_INNER_WITH_COUNTS 
+				|| nodeType == ROOT_LEAF_WITH_COUNTS ? 1 + NUM_ENTRIES_SIZE : 1;
+	}
+
+	private static boolean hasChildCounts(byte nodeType) {
+		return nodeType == INNER_WITH_COUNTS || nodeType == ROOT_INNER_WITH_COUNTS;
 	}
 
 	/**
@@ -339,13 +695,54 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		if(node.isDirty()) {
 			dirtyBuffer.remove(pageId);
 		} else {
-			cleanBuffer.remove(pageId);
+			removeFromCleanBuffer(pageId, node);
+		}
+		if (pageImageCache != null) {
+			pageImageCache.remove(pageImageCacheOwner, pageId);
 		}
 		if(pageId > 0) {
 			// page has been written to storage
 			this.storageFile.reportFreePage(pageId);
 		}
 	}
+
+	/**
+	 * Removes a node from the buffer manager and frees its page. Nodes
+	 * that are not in memory are not read, only their page is freed.
+	 * If there are open snapshots, the page is freed when they are closed,
+	 * so that they can still read the node, see 
+	 * {@link BTreeSnapshot.Registry#deferFree(int)}.
+	 */
+	@Override
+	public boolean removePage(int pageId) {
+		PagedBTreeNode node = readNodeFromMemory(pageId);
+		if (node != null) {
+			node.close();
+			return true;
+		}
+		if (pageImageCache != null) {
+			pageImageCache.remove(pageImageCacheOwner, pageId);
+		}
+		if (pageId > 0 && !snapshots.deferFree(pageId)) {
+			this.storageFile.reportFreePage(pageId);
+		}
+		return false;
+	}
+
+	/**
+	 * Frees a page after the snapshots that could see it have been closed.
+	 */
+	private void freeDeferredPage(int pageId) {
+		//the snapshots may have read the node again
+		PagedBTreeNode node = cleanBuffer.get(pageId);
+		if (node != null) {
+			removeFromCleanBuffer(pageId, node);
+		}
+		if (pageImageCache != null) {
+			pageImageCache.remove(pageImageCacheOwner, pageId);
+		}
+		this.storageFile.reportFreePage(pageId);
+	}
 	
 	/**
 	 * Clears memory and recursively frees the pages of the 
@@ -354,8 +751,31 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	@Override
 	public void clear(PagedBTreeNode root) {
 		clearHelper(root);
+		releaseNodes();
+		statistics.reset();
+	}
+
+	/**
+	 * Removes all nodes from memory and from the buffer pool without 
+	 * freeing their pages. Changes that have not been written are lost.
+	 */
+	public void close() {
+		releaseNodes();
+		statistics.invalidate();
+	}
+
+	private void releaseNodes() {
+		for (PagedBTreeNode node : cleanBuffer.values()) {
+			node.pinned = false;
+			bufferPool.remove(node);
+		}
 		cleanBuffer.clear();
+		pinnedBytes = 0;
+		pinnedNodes = 0;
 		dirtyBuffer.clear();
+		if (pageImageCache != null) {
+			pageImageCache.clear(pageImageCacheOwner);
+		}
 	}
 	
 	public void clearHelper(PagedBTreeNode node) {
@@ -365,6 +785,7 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 				clearHelper(child);
 			}
 		}
+		node.preserveForSnapshots();
 		if(node.getPageId() > 0) {
             // page has been written to storage
 			this.storageFile.reportFreePage(node.getPageId());
@@ -387,8 +808,13 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	public void updatePageStatus(PagedBTreeNode node) {
 		int pageId = node.getPageId();
 		if(node.isDirty()) {
-			cleanBuffer.remove(pageId);
+			removeFromCleanBuffer(pageId, node);
 			dirtyBuffer.put(pageId, node);
+			nodeArrayPool.untrack(node);
+			// the page will be freed when the node is written
+			if (pageImageCache != null) {
+				pageImageCache.remove(pageImageCacheOwner, pageId);
+			}
 		} else {
 			dirtyBuffer.remove(pageId);
 			putInCleanBuffer(pageId, node);
@@ -410,6 +836,14 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	public int getStatNReadPages() {
 		return statNReadPages;
 	}
+
+	/**
+	 * @return The number of clean nodes that have been evicted from
+	 * the clean buffer because it exceeded its maximum size.
+	 */
+	public int getStatNEvictedPages() {
+		return statNEvictedPages;
+	}
 	
 	/**
 	 * Iterates through tree and returns pageId of every reachable node
@@ -449,6 +883,14 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		return size;
 	}
 
+	/**
+	 * @return The size of the header of the page of a node. The root page 
+	 * also contains the number of entries of the tree.
+	 */
+	public static int nodeHeaderSize(PagedBTreeNode node) {
+		return pageHeaderSize() + (node.isRoot() ? NUM_ENTRIES_SIZE : 0);
+	}
+
 	@Override
 	public int getNodeSizeInStorage(PagedBTreeNode node) {
 		int size = 0;
@@ -460,20 +902,198 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 
     @Override
     public int getNodeHeaderSizeInStorage(PagedBTreeNode node) {
-        return pageHeaderSize();
+        return nodeHeaderSize(node);
     }
 
 	@Override
 	public int getNodeValueElementSize() {
 		return nodeValueElementSize;
 	}
+
+	@Override
+	public int getNodeChildElementSize() {
+		return storeChildCounts ? CHILD_ID_SIZE + CHILD_COUNT_SIZE : CHILD_ID_SIZE;
+	}
+
+	/**
+	 * Keeps the number of entries in the subtree of each child in the 
+	 * inner nodes and stores it in their pages. The numbers are updated 
+	 * along the path of every modification. Counting the entries in a key
+	 * range, {@link BTree#rank(long)} and {@link BTree#select(long)} then 
+	 * only read the nodes on the paths to the ends of the range, also after
+	 * the tree has been loaded or its nodes have been evicted. Otherwise 
+	 * they count the entries of the subtrees in the range.
+	 * 
+	 * Every child of an inner node then takes 8 bytes more, which lowers 
+	 * the fan-out of the tree. The setting is recorded in the page of the 
+	 * root and taken from there when the tree is loaded, so it only has to
+	 * be set when a tree is created. It must not be changed while the tree
+	 * has inner nodes.
+	 * 
+	 * @param storeChildCounts Whether inner nodes store the counts.
+	 */
+	public void setStoreChildCounts(boolean storeChildCounts) {
+		this.storeChildCounts = storeChildCounts;
+	}
+
+	@Override
+	public boolean isStoringChildCounts() {
+		return storeChildCounts;
+	}
 	
 	public void setNodeValueElementSize(int sizeInByte) {
 		nodeValueElementSize = sizeInByte;
 	}
 
+	/**
+	 * Sets the maximum number of clean nodes in the buffer pool. 
+	 * If the pool is shared, this limit applies to all trees that 
+	 * use the pool.
+	 */
 	public void setMaxCleanBufferElements(int maxCleanBufferElements) {
-		this.maxCleanBufferElements = maxCleanBufferElements;
+		bufferPool.setMaxElements(maxCleanBufferElements);
+	}
+
+	/**
+	 * Sets the maximum estimated heap size of the clean nodes in the 
+	 * buffer pool. If the pool is shared, this limit applies to all trees 
+	 * that use the pool.
+	 */
+	public void setMaxCleanBufferBytes(long maxBytes) {
+		bufferPool.setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * Sets the cache for the encoded images of clean pages. Nodes that 
+	 * are not in the clean buffer are decoded from their image, if 
+	 * available, instead of being read from storage.
+	 * 
+	 * The images can be kept on the heap, see {@link HeapPageImageCache},
+	 * or in direct memory, see {@link DirectPageImageCache}. The cache can 
+	 * be shared with other buffer managers, only the images of this buffer
+	 * manager are removed when it is cleared or closed.
+	 * @param pageImageCache The cache or {@code null} to disable caching
+	 * of page images.
+	 */
+	public void setPageImageCache(PageImageCache pageImageCache) {
+		if (this.pageImageCache != null) {
+			this.pageImageCache.clear(pageImageCacheOwner);
+		}
+		this.pageImageCache = pageImageCache;
+		if (pageImageCache != null) {
+			pageImageCacheOwner = pageImageCache.newOwner();
+		}
+	}
+
+	/**
+	 * Keeps the encoded images of clean pages in a cache on the heap.
+	 * @param maxBytes The maximum size of the cache, 0 to disable the cache.
+	 */
+	public void setMaxPageImageCacheBytes(long maxBytes) {
+		if (maxBytes <= 0) {
+			setPageImageCache(null);
+		} else if (pageImageCache != null) {
+			pageImageCache.setMaxBytes(maxBytes);
+		} else {
+			setPageImageCache(new HeapPageImageCache(maxBytes));
+		}
+	}
+
+	public PageImageCache getPageImageCache() {
+		return pageImageCache;
+	}
+
+	/**
+	 * @return The id of this buffer manager in its page image cache, see
+	 * {@link PageImageCache#newOwner()}.
+	 */
+	public int getPageImageCacheOwner() {
+		return pageImageCacheOwner;
+	}
+
+	public NodeArrayPool getNodeArrayPool() {
+		return nodeArrayPool;
+	}
+
+	@Override
+	public BTreeStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public BTreeSnapshot.Registry getSnapshots() {
+		return snapshots;
+	}
+
+	public BTreeBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Moves the clean nodes of this buffer manager into another pool, for
+	 * example a pool that is shared by many indexes.
+	 */
+	public void setBufferPool(BTreeBufferPool bufferPool) {
+		if (bufferPool == this.bufferPool) {
+			return;
+		}
+		for (PagedBTreeNode node : cleanBuffer.values()) {
+			if (!node.pinned) {
+				this.bufferPool.remove(node);
+			}
+		}
+		this.bufferPool = bufferPool;
+		//copy, because adding may evict nodes from the clean buffer
+		PagedBTreeNode[] nodes = cleanBuffer.values().toArray(new PagedBTreeNode[cleanBuffer.size()]);
+		for (PagedBTreeNode node : nodes) {
+			if (!node.pinned && cleanBuffer.get(node.getPageId()) == node) {
+				bufferPool.add(node);
+			}
+		}
+	}
+
+	/**
+	 * Enables pinning of inner nodes. Clean inner nodes are kept in memory 
+	 * until the total size of the pinned nodes reaches the given budget. 
+	 * Pinned nodes do not count towards the maximum size of the clean buffer 
+	 * and are never evicted, which means that if the budget is large enough
+	 * to hold all inner nodes, a lookup reads at most one leaf from storage.
+	 * Nodes are pinned when they are read or written, or when they become 
+	 * clean. 
+	 * 
+	 * @param maxBytes The budget in bytes, where each node is counted with
+	 * its estimated heap size, see {@link PagedBTreeNode#computeHeapSize()}. 
+	 * Use 0 (default) to disable pinning and {@code Long.MAX_VALUE} to pin 
+	 * all inner nodes. 
+	 */
+	public void setMaxPinnedInnerNodeBytes(long maxBytes) {
+		this.maxPinnedInnerNodeBytes = maxBytes;
+		if (pinnedBytes <= maxBytes) {
+			return;
+		}
+		//budget was reduced, release pinned nodes to the buffer pool
+		PagedBTreeNode[] nodes = cleanBuffer.values().toArray(new PagedBTreeNode[cleanBuffer.size()]);
+		for (PagedBTreeNode node : nodes) {
+			if (node.pinned && pinnedBytes > maxBytes) {
+				unpin(node);
+				bufferPool.add(node);
+			}
+		}
+	}
+
+	public long getMaxPinnedInnerNodeBytes() {
+		return maxPinnedInnerNodeBytes;
+	}
+
+	/**
+	 * @return The estimated heap size of the pinned inner nodes.
+	 */
+	public long getPinnedBytes() {
+		return pinnedBytes;
+	}
+
+	public int getPinnedNodeCount() {
+		return pinnedNodes;
 	}
 
 	@Override
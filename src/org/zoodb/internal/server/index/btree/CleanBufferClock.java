@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.Arrays;
+
+/**
+ * CLOCK (second chance) replacement policy for the clean buffer.
+ *
+ * Every clean node is kept in a slot of a ring. Accessing a node only sets 
+ * its reference bit, which is cheap enough to be done on every traversal.
+ * When a victim is needed, the clock hand sweeps the ring: referenced
+ * nodes lose their bit and survive, the first unreferenced node is
+ * evicted. Hot nodes (for example inner nodes close to the root) are
+ * referenced on almost every lookup and are therefore practically never
+ * evicted. New nodes start with their reference bit set, so they survive 
+ * at least one sweep of the hand.
+ *
+ * Removed nodes leave an empty slot that is reused by the next node that
+ * is added, so that adding and removing are O(1).
+ */
+final class CleanBufferClock {
+
+	private PagedBTreeNode[] ring = new PagedBTreeNode[16];
+	// number of slots in use, including empty slots
+	private int nSlots = 0;
+	// stack of empty slots
+	private int[] freeSlots = new int[16];
+	private int nFreeSlots = 0;
+	private int size = 0;
+	// estimated heap size of the nodes in the ring
+	private long bytes = 0;
+	private int hand = 0;
+
+	/**
+	 * Add a node to the ring. Adding a node that is already in the ring
+	 * only marks it as referenced.
+	 */
+	void add(PagedBTreeNode node) {
+		node.referenced = true;
+		if (node.clockIndex >= 0) {
+			return;
+		}
+		int slot;
+		if (nFreeSlots > 0) {
+			slot = freeSlots[--nFreeSlots];
+		} else {
+			if (nSlots == ring.length) {
+				ring = Arrays.copyOf(ring, nSlots * 2);
+			}
+			slot = nSlots++;
+		}
+		ring[slot] = node;
+		node.clockIndex = slot;
+		node.heapSize = node.computeHeapSize();
+		bytes += node.heapSize;
+		size++;
+	}
+
+	void remove(PagedBTreeNode node) {
+		int slot = node.clockIndex;
+		if (slot < 0) {
+			return;
+		}
+		ring[slot] = null;
+		node.clockIndex = -1;
+		bytes -= node.heapSize;
+		size--;
+		if (nFreeSlots == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, nFreeSlots * 2);
+		}
+		freeSlots[nFreeSlots++] = slot;
+	}
+
+	/**
+	 * Advance the clock hand until an unreferenced node is found, remove
+	 * it from the ring and return it.
+	 * @return The victim or {@code null} if the ring is empty.
+	 */
+	PagedBTreeNode evict() {
+		if (size == 0) {
+			return null;
+		}
+		while (true) {
+			if (hand >= nSlots) {
+				hand = 0;
+			}
+			PagedBTreeNode node = ring[hand++];
+			if (node == null) {
+				continue;
+			}
+			if (node.referenced) {
+				node.referenced = false;
+			} else {
+				remove(node);
+				return node;
+			}
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < nSlots; i++) {
+			if (ring[i] != null) {
+				ring[i].clockIndex = -1;
+				ring[i] = null;
+			}
+		}
+		nSlots = 0;
+		nFreeSlots = 0;
+		size = 0;
+		bytes = 0;
+		hand = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	long bytes() {
+		return bytes;
+	}
+}
@@ -36,28 +36,17 @@ public class DescendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
         super(tree, start, end);
     }
 
+    public DescendingBTreeLeafEntryIterator(BTree tree, long start, long end, boolean snapshot) {
+        super(tree, start, end, snapshot);
+    }
+
     @Override
     void updatePosition() {
         if (curPos > 0) {
             curPos--;
         } else {
-            BTreeNode leftSibling = null;
-            BTreeNode ancestor = null;
-            Integer position = (ancestors.size() == 0) ? 0 : ancestors.peek().getNumKeys();
-            while (leftSibling == null && ancestors.size() > 0) {
-                ancestor = ancestors.pop();
-                position = positions.pop();
-
-                //leftSibling = (T) ancestorsChild.leftSibling(ancestor);
-                leftSibling = ancestor.leftSibling(position);
-                position --;
-            }
-            ancestors.push(ancestor);
-            positions.push(position);
-            if (leftSibling == null) {
-                curLeaf = null;
-            } else {
-                curLeaf = getRightMostLeaf(leftSibling);
+            curLeaf = previousLeaf();
+            if (curLeaf != null) {
                 curPos = curLeaf.getNumKeys() - 1;
             }
         }
@@ -67,7 +56,7 @@ public class DescendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
     }
     @Override
     void setFirstLeaf() {
-        if (tree.isEmpty()) {
+        if (isEmpty()) {
             return;
         }
         
@@ -78,7 +67,8 @@ public class DescendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
         // for inserting an entry but here we need the last
         // entry whose key <= max.
 	    while (curLeaf != null && curLeaf.getKey(curPos) > max) {
-	    	this.next();
+	    	//skip without creating entries
+	    	updatePosition();
 	    }
 	    
 	    // case when min is bigger than every element in the tree
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Page image cache that keeps the images outside of the Java heap.
+ *
+ * The images are stored in direct {@link ByteBuffer}s, so a large cache
+ * does not increase the work of the garbage collector. Only the nodes
+ * that are accessed are decoded into {@link PagedBTreeNode}s on the heap.
+ *
+ * Memory is allocated in chunks of direct memory that are divided into
+ * slots of one page each. Chunks are allocated when they are needed, up
+ * to the maximum size of the cache. Slots of removed images are reused,
+ * but chunks are only released by {@link #clear()}.
+ */
+public class DirectPageImageCache extends PageImageCache {
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private static final class DirectEntry extends Entry {
+		final int address;
+		final int length;
+
+		DirectEntry(long key, int address, int length) {
+			super(key);
+			this.address = address;
+			this.length = length;
+		}
+	}
+
+	private final int slotSize;
+	private final int slotsPerChunk;
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	// slots that have never been used start at this address
+	private int nextAddress = 0;
+	private int[] freeAddresses = new int[16];
+	private int nFreeAddresses = 0;
+	// copy of the image that was loaded last
+	private final byte[] buffer;
+
+	/**
+	 * @param maxBytes The maximum size of the cache in bytes.
+	 * @param pageSize The page size of the indexes that use this cache.
+	 */
+	public DirectPageImageCache(long maxBytes, int pageSize) {
+		super(maxBytes);
+		this.slotSize = pageSize;
+		long maxSlots = Math.max(1, maxBytes / pageSize);
+		this.slotsPerChunk = (int) Math.max(1, Math.min(CHUNK_SIZE / pageSize, maxSlots));
+		this.buffer = new byte[pageSize];
+	}
+
+	@Override
+	protected Entry store(long key, byte[] image, int length, boolean copy) {
+		if (length > slotSize) {
+			return null;
+		}
+		int address;
+		if (nFreeAddresses > 0) {
+			address = freeAddresses[--nFreeAddresses];
+		} else {
+			address = nextAddress++;
+			int chunk = address / slotsPerChunk;
+			if (chunk == chunks.length) {
+				chunks = Arrays.copyOf(chunks, chunk + 1);
+				chunks[chunk] = ByteBuffer.allocateDirect(slotsPerChunk * slotSize);
+			}
+		}
+		ByteBuffer chunk = chunks[address / slotsPerChunk];
+		chunk.position((address % slotsPerChunk) * slotSize);
+		chunk.put(image, 0, length);
+		return new DirectEntry(key, address, length);
+	}
+
+	@Override
+	protected byte[] load(Entry entry) {
+		DirectEntry e = (DirectEntry) entry;
+		ByteBuffer chunk = chunks[e.address / slotsPerChunk];
+		chunk.position((e.address % slotsPerChunk) * slotSize);
+		chunk.get(buffer, 0, e.length);
+		return buffer;
+	}
+
+	@Override
+	protected void release(Entry entry) {
+		if (nFreeAddresses == freeAddresses.length) {
+			freeAddresses = Arrays.copyOf(freeAddresses, nFreeAddresses * 2);
+		}
+		freeAddresses[nFreeAddresses++] = ((DirectEntry) entry).address;
+	}
+
+	@Override
+	protected long sizeOf(int length) {
+		return slotSize;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		chunks = new ByteBuffer[0];
+		nextAddress = 0;
+		nFreeAddresses = 0;
+	}
+
+	/**
+	 * @return The number of bytes of direct memory allocated by this cache.
+	 */
+	public long getAllocatedBytes() {
+		return (long) chunks.length * slotsPerChunk * slotSize;
+	}
+}
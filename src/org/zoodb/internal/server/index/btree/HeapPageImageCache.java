@@ -0,0 +1,68 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.Arrays;
+
+/**
+ * Page image cache that keeps the images as byte arrays on the Java heap.
+ */
+public class HeapPageImageCache extends PageImageCache {
+
+	// estimated heap overhead of an entry and the array header
+	private static final int ENTRY_HEAP_SIZE = 64;
+
+	private static final class HeapEntry extends Entry {
+		final byte[] image;
+
+		HeapEntry(long key, byte[] image) {
+			super(key);
+			this.image = image;
+		}
+	}
+
+	public HeapPageImageCache(long maxBytes) {
+		super(maxBytes);
+	}
+
+	@Override
+	protected Entry store(long key, byte[] image, int length, boolean copy) {
+		if (copy || image.length != length) {
+			image = Arrays.copyOf(image, length);
+		}
+		return new HeapEntry(key, image);
+	}
+
+	@Override
+	protected byte[] load(Entry entry) {
+		return ((HeapEntry) entry).image;
+	}
+
+	@Override
+	protected void release(Entry entry) {
+		//nothing to do
+	}
+
+	@Override
+	protected long sizeOf(int length) {
+		return ENTRY_HEAP_SIZE + ((length + 7) & ~7);
+	}
+}
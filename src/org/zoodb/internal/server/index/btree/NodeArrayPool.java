@@ -0,0 +1,264 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Pool for the arrays of B+ tree nodes.
+ *
+ * Allocating the arrays for every node that is read from storage
+ * creates a lot of garbage during large scans. Nodes take their arrays
+ * from this pool, and the arrays are returned when the node is not used
+ * anymore, that is when the node has been closed or evicted from the 
+ * clean buffer. Such a node may still be referenced, for example by an 
+ * iterator or by its parent, so its arrays are only returned when the 
+ * garbage collector has found that the node is not reachable anymore, 
+ * see {@link #track(PagedBTreeNode)}. A node that is used again before
+ * that, for example an evicted node that is modified through its parent,
+ * is not tracked anymore, see {@link #untrack(PagedBTreeNode)}.
+ *
+ * Arrays that are replaced by larger arrays when a node grows are
+ * returned immediately. Array sizes are rounded to a few size classes,
+ * see {@link BTreeNode#ensureCapacity(int)}.
+ * 
+ * The number of arrays of each size is limited and small arrays are not
+ * pooled. The pool is not thread-safe, see {@link BTreeBufferPool}.
+ */
+public final class NodeArrayPool {
+
+	private static final int MAX_ARRAYS_PER_SIZE = 64;
+	// smaller arrays are cheaper to allocate than to pool
+	private static final int MIN_LENGTH = 8;
+
+	/**
+	 * Pooled arrays of one type and length.
+	 */
+	private static final class Bucket {
+		final int length;
+		final Object[] arrays = new Object[MAX_ARRAYS_PER_SIZE];
+		int size = 0;
+
+		Bucket(int length) {
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Holds the arrays of a node until the node is unreachable.
+	 */
+	static final class NodeArrays extends PhantomReference<PagedBTreeNode> {
+		final long[] keys;
+		final long[] values;
+		final int[] childrenPageIds;
+		final int[] childSizes;
+		final long[] childCounts;
+		final WeakReference<PagedBTreeNode>[] children;
+
+		NodeArrays(PagedBTreeNode node, ReferenceQueue<PagedBTreeNode> queue) {
+			super(node, queue);
+			this.keys = node.getKeys();
+			this.values = node.getValues();
+			this.childrenPageIds = node.getChildrenPageIds();
+			this.childSizes = node.getChildSizes();
+			this.childCounts = node.getChildCounts();
+			this.children = node.getChildren();
+		}
+	}
+
+	private final ArrayList<Bucket> longBuckets = new ArrayList<>();
+	private final ArrayList<Bucket> intBuckets = new ArrayList<>();
+	private final ArrayList<Bucket> refBuckets = new ArrayList<>();
+
+	private final ReferenceQueue<PagedBTreeNode> queue = new ReferenceQueue<>();
+	// the phantom references have to be reachable until they are enqueued
+	private final HashSet<NodeArrays> tracked = new HashSet<>();
+
+	private int statNReused = 0;
+	private int statNAllocated = 0;
+
+	long[] takeLongs(int length) {
+		Object a = take(longBuckets, length);
+		return a != null ? (long[]) a : new long[length];
+	}
+
+	int[] takeInts(int length) {
+		Object a = take(intBuckets, length);
+		return a != null ? (int[]) a : new int[length];
+	}
+
+	@SuppressWarnings("unchecked")
+	WeakReference<PagedBTreeNode>[] takeReferences(int length) {
+		Object a = take(refBuckets, length);
+		return a != null ? (WeakReference<PagedBTreeNode>[]) a : new WeakReference[length];
+	}
+
+	private Object take(ArrayList<Bucket> buckets, int length) {
+		processQueue();
+		if (length < MIN_LENGTH) {
+			return null;
+		}
+		Bucket b = getBucket(buckets, length);
+		if (b.size == 0) {
+			statNAllocated++;
+			return null;
+		}
+		statNReused++;
+		Object a = b.arrays[--b.size];
+		b.arrays[b.size] = null;
+		return a;
+	}
+
+	/**
+	 * Returns the arrays of a node to the pool as soon as the node is not
+	 * reachable anymore.
+	 */
+	void track(PagedBTreeNode node) {
+		if (node.trackedArrays != null) {
+			return;
+		}
+		node.trackedArrays = new NodeArrays(node, queue);
+		tracked.add(node.trackedArrays);
+	}
+
+	/**
+	 * Stops tracking a node that is used again. Arrays that the node has 
+	 * replaced since it was tracked are returned to the pool, the node 
+	 * returns its current arrays itself when it replaces them.
+	 */
+	void untrack(PagedBTreeNode node) {
+		NodeArrays a = node.trackedArrays;
+		if (a == null) {
+			return;
+		}
+		node.trackedArrays = null;
+		tracked.remove(a);
+		//the node is reachable, so the reference has not been enqueued
+		a.clear();
+		if (a.keys != node.getKeys()) {
+			releaseLongs(a.keys);
+		}
+		if (a.values != node.getValues()) {
+			releaseLongs(a.values);
+		}
+		if (a.childrenPageIds != node.getChildrenPageIds()) {
+			releaseInts(a.childrenPageIds);
+		}
+		if (a.childSizes != node.getChildSizes()) {
+			releaseInts(a.childSizes);
+		}
+		if (a.childCounts != node.getChildCounts()) {
+			releaseLongs(a.childCounts);
+		}
+		if (a.children != node.getChildren()) {
+			releaseReferences(a.children);
+		}
+	}
+
+	/**
+	 * Returns the arrays of unreachable nodes to the pool.
+	 */
+	private void processQueue() {
+		Reference<? extends PagedBTreeNode> ref;
+		while ((ref = queue.poll()) != null) {
+			NodeArrays a = (NodeArrays) ref;
+			tracked.remove(a);
+			releaseLongs(a.keys);
+			releaseLongs(a.values);
+			releaseInts(a.childrenPageIds);
+			releaseInts(a.childSizes);
+			releaseLongs(a.childCounts);
+			releaseReferences(a.children);
+		}
+	}
+
+	void releaseLongs(long[] a) {
+		if (a != null && a.length >= MIN_LENGTH) {
+			Bucket b = getBucket(longBuckets, a.length);
+			if (b.size < MAX_ARRAYS_PER_SIZE) {
+				Arrays.fill(a, 0);
+				b.arrays[b.size++] = a;
+			}
+		}
+	}
+
+	void releaseInts(int[] a) {
+		if (a != null && a.length >= MIN_LENGTH) {
+			Bucket b = getBucket(intBuckets, a.length);
+			if (b.size < MAX_ARRAYS_PER_SIZE) {
+				Arrays.fill(a, 0);
+				b.arrays[b.size++] = a;
+			}
+		}
+	}
+
+	void releaseReferences(WeakReference<PagedBTreeNode>[] a) {
+		if (a != null && a.length >= MIN_LENGTH) {
+			Bucket b = getBucket(refBuckets, a.length);
+			if (b.size < MAX_ARRAYS_PER_SIZE) {
+				Arrays.fill(a, null);
+				b.arrays[b.size++] = a;
+			}
+		}
+	}
+
+	private static Bucket getBucket(ArrayList<Bucket> buckets, int length) {
+		//there are only a few dozen size classes
+		for (int i = 0; i < buckets.size(); i++) {
+			Bucket b = buckets.get(i);
+			if (b.length == length) {
+				return b;
+			}
+		}
+		Bucket b = new Bucket(length);
+		buckets.add(b);
+		return b;
+	}
+
+	/**
+	 * @return The number of arrays that have been taken from the pool.
+	 */
+	public int getStatNReused() {
+		return statNReused;
+	}
+
+	/**
+	 * @return The number of arrays that have been allocated because the
+	 * pool had no array of the requested size.
+	 */
+	public int getStatNAllocated() {
+		return statNAllocated;
+	}
+
+	/**
+	 * @return The number of closed or evicted nodes whose arrays have not 
+	 * been returned yet.
+	 */
+	public int getNTrackedNodes() {
+		return tracked.size();
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.Arrays;
+
+import org.zoodb.internal.util.PrimLongMapZ;
+
+/**
+ * Cache for the images of clean pages of a B+ tree.
+ *
+ * A page image contains the node in the same compact, prefix-shared
+ * encoding that is used in storage, see
+ * {@link BTreeStorageBufferManager#encodeNode(PagedBTreeNode)}.
+ * This is much smaller than a decoded {@link PagedBTreeNode}, whose
+ * keys and values are not compressed, so this cache can hold many more
+ * pages than the clean buffer. Nodes that are evicted from the clean 
+ * buffer can be decoded from their image without accessing the storage.
+ *
+ * Pages are never modified in place, a modified node is always written
+ * to a new page. An image therefore stays valid until its page is freed.
+ *
+ * Images are evicted with a CLOCK policy when the cache exceeds its byte
+ * budget. Subclasses decide where the images are stored.
+ *
+ * A cache can be shared by the buffer managers of many trees, also of
+ * different files. Every buffer manager registers as an owner, see 
+ * {@link #newOwner()}, and its images are kept apart from the images of
+ * the other owners.
+ */
+public abstract class PageImageCache {
+
+	/**
+	 * Cache entry of a page image.
+	 */
+	protected static class Entry {
+		// owner and page id, see key()
+		final long key;
+		int slot = -1;
+		boolean referenced = true;
+		long size;
+
+		protected Entry(long key) {
+			this.key = key;
+		}
+	}
+
+	private final PrimLongMapZ<Entry> entries = new PrimLongMapZ<>();
+	private int nOwners = 0;
+	// CLOCK ring, removed entries leave an empty slot
+	private Entry[] ring = new Entry[16];
+	private int nSlots = 0;
+	private int[] freeSlots = new int[16];
+	private int nFreeSlots = 0;
+	private int hand = 0;
+
+	private long maxBytes;
+	private long usedBytes = 0;
+
+	private int statNHits = 0;
+	private int statNMisses = 0;
+	private int statNEvicted = 0;
+
+	protected PageImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Store an image.
+	 * @param copy Whether the image has to be copied, otherwise the array
+	 * may be kept if it has exactly the length of the image.
+	 * @return The new entry or {@code null} if the image can not be stored.
+	 */
+	protected abstract Entry store(long key, byte[] image, int length, boolean copy);
+
+	/**
+	 * @return The image of an entry. The array must not be modified, 
+	 * may be longer than the image and may only be valid until the next 
+	 * call to this cache.
+	 */
+	protected abstract byte[] load(Entry entry);
+
+	/**
+	 * Release the resources of an entry that has been removed from the cache.
+	 */
+	protected abstract void release(Entry entry);
+
+	/**
+	 * @return The number of bytes that an image of the given length uses in
+	 * the cache.
+	 */
+	protected abstract long sizeOf(int length);
+
+	/**
+	 * @return A new owner id, used to keep the images of different users
+	 * of this cache apart.
+	 */
+	public int newOwner() {
+		return ++nOwners;
+	}
+
+	private static long key(int owner, int pageId) {
+		return ((long) owner << 32) | (pageId & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param owner The owner, see {@link #newOwner()}
+	 * @param pageId The page
+	 * @return The image of the page or {@code null} if the page is not in
+	 * the cache. The returned array must not be modified, may be longer 
+	 * than the image and may only be valid until the next call to this 
+	 * cache.
+	 */
+	public byte[] get(int owner, int pageId) {
+		Entry entry = entries.get(key(owner, pageId));
+		if (entry == null) {
+			statNMisses++;
+			return null;
+		}
+		statNHits++;
+		entry.referenced = true;
+		return load(entry);
+	}
+
+	public boolean contains(int owner, int pageId) {
+		return entries.containsKey(key(owner, pageId));
+	}
+
+	/**
+	 * Adds the image of a page to the cache, evicting other images if
+	 * necessary. The cache may keep a reference to the array, so it must
+	 * not be modified afterwards.
+	 * @param owner The owner, see {@link #newOwner()}
+	 * @param pageId
+	 * @param image The page image. Only the first {@code length} bytes are used.
+	 * @param length The length of the image
+	 */
+	public void put(int owner, int pageId, byte[] image, int length) {
+		put(key(owner, pageId), image, length, false);
+	}
+
+	/**
+	 * Adds a copy of the image of a page to the cache, so that the array
+	 * can be reused by the caller, see {@link #put(int, int, byte[], int)}.
+	 * @param owner The owner, see {@link #newOwner()}
+	 * @param pageId
+	 * @param image The page image. Only the first {@code length} bytes are used.
+	 * @param length The length of the image
+	 */
+	public void putCopy(int owner, int pageId, byte[] image, int length) {
+		put(key(owner, pageId), image, length, true);
+	}
+
+	private void put(long key, byte[] image, int length, boolean copy) {
+		remove(key);
+		long size = sizeOf(length);
+		if (size > maxBytes) {
+			return;
+		}
+		while (usedBytes + size > maxBytes && evict()) {
+			//evict until there is enough space
+		}
+		Entry entry = store(key, image, length, copy);
+		if (entry == null) {
+			return;
+		}
+		entry.size = size;
+		usedBytes += size;
+		entries.put(key, entry);
+		addToRing(entry);
+	}
+
+	public void remove(int owner, int pageId) {
+		remove(key(owner, pageId));
+	}
+
+	private void remove(long key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			removeEntry(entry);
+		}
+	}
+
+	/**
+	 * Removes the images of one owner, the images of other owners are kept.
+	 * @param owner The owner, see {@link #newOwner()}
+	 */
+	public void clear(int owner) {
+		for (int i = 0; i < nSlots; i++) {
+			Entry entry = ring[i];
+			if (entry != null && (int) (entry.key >>> 32) == owner) {
+				entries.remove(entry.key);
+				removeEntry(entry);
+			}
+		}
+	}
+
+	/**
+	 * Removes the images of all owners.
+	 */
+	public void clear() {
+		for (int i = 0; i < nSlots; i++) {
+			if (ring[i] != null) {
+				release(ring[i]);
+				ring[i] = null;
+			}
+		}
+		entries.clear();
+		nSlots = 0;
+		nFreeSlots = 0;
+		hand = 0;
+		usedBytes = 0;
+	}
+
+	private void removeEntry(Entry entry) {
+		ring[entry.slot] = null;
+		if (nFreeSlots == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, nFreeSlots * 2);
+		}
+		freeSlots[nFreeSlots++] = entry.slot;
+		entry.slot = -1;
+		usedBytes -= entry.size;
+		release(entry);
+	}
+
+	private void addToRing(Entry entry) {
+		int slot;
+		if (nFreeSlots > 0) {
+			slot = freeSlots[--nFreeSlots];
+		} else {
+			if (nSlots == ring.length) {
+				ring = Arrays.copyOf(ring, nSlots * 2);
+			}
+			slot = nSlots++;
+		}
+		ring[slot] = entry;
+		entry.slot = slot;
+	}
+
+	/**
+	 * Evict the next unreferenced image.
+	 * @return false if the cache is empty
+	 */
+	private boolean evict() {
+		if (entries.size() == 0) {
+			return false;
+		}
+		while (true) {
+			if (hand >= nSlots) {
+				hand = 0;
+			}
+			Entry entry = ring[hand++];
+			if (entry == null) {
+				continue;
+			}
+			if (entry.referenced) {
+				entry.referenced = false;
+			} else {
+				entries.remove(entry.key);
+				removeEntry(entry);
+				statNEvicted++;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of bytes used by the cache and evicts
+	 * images if necessary.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		while (usedBytes > maxBytes && evict()) {
+			//evict until the cache is small enough
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getStatNHits() {
+		return statNHits;
+	}
+
+	public int getStatNMisses() {
+		return statNMisses;
+	}
+
+	public int getStatNEvicted() {
+		return statNEvicted;
+	}
+}
@@ -20,7 +20,11 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import java.util.Arrays;
+import java.util.Iterator;
+
 import org.zoodb.internal.server.StorageChannelOutput;
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 
 /**
  * Variant of the B+ tree that is aware of the {@link BTreeBufferManager}
@@ -30,12 +34,21 @@ import org.zoodb.internal.server.StorageChannelOutput;
  */
 public abstract class PagedBTree extends BTree {
 
+    // more levels can not be addressed with int page ids
+    private static final int MAX_HEIGHT = 32;
+    // probes per leaf up to which a leaf image is searched without decoding it
+    private static final int MAX_IMAGE_SEARCHES = 4;
+
     private BTreeBufferManager bufferManager;
+    // the value of the entry found by the last search, see searchLeaf()
+    private long searchValue;
 
 	public PagedBTree(PagedBTreeNode root, int pageSize,
 			BTreeBufferManager bufferManager, boolean isUnique) {
 		super(root, pageSize, new PagedBTreeNodeFactory(bufferManager), isUnique);
         this.bufferManager = bufferManager;
+        // the nodes in storage have not been counted
+        bufferManager.getStatistics().invalidate();
 	}
 	
 	public PagedBTree(int pageSize, BTreeBufferManager bufferManager, boolean isUnique) {
@@ -50,8 +63,473 @@ public abstract class PagedBTree extends BTree {
     public void write(StorageChannelOutput out) {
     	bufferManager.write(getRoot(), out);
     }
+
+    public int statsGetInnerN() {
+    	return getStatistics().getInnerN();
+    }
+
+    public int statsGetLeavesN() {
+    	return getStatistics().getLeavesN();
+    }
+
+    /**
+     * @return The sum of the sizes of the pages of the tree.
+     */
+    public long statsGetBytes() {
+    	return getStatistics().getBytes();
+    }
+
+    /**
+     * Returns the statistics of the nodes. They are maintained by the nodes,
+     * the nodes are only counted if the statistics are not known.
+     */
+    private BTreeStatistics getStatistics() {
+    	BTreeStatistics stats = bufferManager.getStatistics();
+    	if (!stats.isKnown()) {
+    		int[] n = new int[2];
+    		long bytes = countNodes(root, n);
+    		stats.set(n[0], n[1], bytes);
+    	}
+    	return stats;
+    }
+
+    /**
+     * Counts the inner nodes and leaves of a subtree.
+     * @param n The number of inner nodes and the number of leaves
+     * @return The sum of the sizes of the nodes
+     */
+    private static long countNodes(BTreeNode node, int[] n) {
+    	if (node.isLeaf()) {
+    		n[1]++;
+    		return node.getCurrentSize();
+    	}
+    	n[0]++;
+    	long bytes = node.getCurrentSize();
+    	for (int i = 0; i <= node.getNumKeys(); i++) {
+    		bytes += countNodes(node.getChild(i), n);
+    	}
+    	return bytes;
+    }
     
+    /**
+     * Finds the leaf that may contain a key/value pair and searches the pair 
+     * in the leaf. If page images are cached, leaves that are not in memory
+     * are searched in their image without decoding them.
+     * @param key
+     * @param value
+     * @return Whether there is such an entry. If there is, its value is 
+     * returned by {@link #getSearchValue()}.
+     */
+    protected boolean searchLeaf(long key, long value) {
+        if (isEmpty()) {
+            return false;
+        }
+        BTreeNode current = root;
+        while (!current.isLeaf()) {
+            int pos = current.findKeyValuePos(key, value);
+            switch (((PagedBTreeNode) current).searchChildImage(pos, key, value)) {
+            case BTreeStorageBufferManager.IMAGE_FOUND:
+                searchValue = ((BTreeStorageBufferManager) bufferManager).getImageSearchValue();
+                return true;
+            case BTreeStorageBufferManager.IMAGE_NOT_FOUND:
+                return false;
+            default:
+                current = current.getChild(pos);
+            }
+        }
+        int position = current.binarySearch(key, value);
+        if (position >= 0) {
+            searchValue = current.getValue(position);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The value of the entry found by the last successful 
+     * {@link #searchLeaf(long, long)}.
+     */
+    protected long getSearchValue() {
+        return searchValue;
+    }
+
+    /**
+     * Searches a batch of key/value pairs. The probes are sorted and pushed
+     * down the tree, so that every node is visited only once per batch,
+     * and all probes that end in the same leaf are resolved in one pass
+     * over the leaf with a galloping search. Like in 
+     * {@link #searchLeaf(long, long)}, leaves that are only reached by a 
+     * few probes are searched in their image if they are not in memory.
+     *
+     * @param keys The keys, the array is not modified.
+     * @param values The values, they are only compared in non-unique trees.
+     * The array is not modified. May be {@code null} in unique trees.
+     * @param n The number of probes.
+     * @param results Receives the value of every entry that is found, at
+     * the index of its probe. Other elements are not modified.
+     * @param found Receives {@code true} for every probe that is found.
+     * Other elements are not modified. May be {@code null}.
+     * @return The number of probes that have been found.
+     */
+    protected int searchAll(long[] keys, long[] values, int n, long[] results,
+            boolean[] found) {
+        if (n == 0 || isEmpty()) {
+            return 0;
+        }
+        int[] positions = null;
+        for (int i = 1; i < n; i++) {
+            if (compareEntries(keys[i - 1], valueAt(values, i - 1), 
+                    keys[i], valueAt(values, i)) > 0) {
+                positions = new int[n];
+                break;
+            }
+        }
+        if (positions != null) {
+            for (int i = 0; i < n; i++) {
+                positions[i] = i;
+            }
+            keys = Arrays.copyOf(keys, n);
+            values = values == null ? null : Arrays.copyOf(values, n);
+            sortEntries(keys, values, positions, n);
+        }
+        return searchAll(root, keys, values, positions, 0, n, results, found);
+    }
+
+    private int searchAll(BTreeNode node, long[] keys, long[] values, int[] positions,
+            int from, int to, long[] results, boolean[] found) {
+        if (node.isLeaf()) {
+            return searchAllInLeaf(node, keys, values, positions, from, to, results, found);
+        }
+        int nFound = 0;
+        int start = from;
+        while (start < to) {
+            int childIndex = node.findKeyValuePos(keys[start], valueAt(values, start));
+            int end = start + 1;
+            while (end < to && (childIndex == node.getNumKeys()
+                    || node.smallerThanKeyValue(childIndex, keys[end], valueAt(values, end)))) {
+                end++;
+            }
+            if (end - start <= MAX_IMAGE_SEARCHES) {
+                int n = searchAllInImage((PagedBTreeNode) node, childIndex, keys, values, 
+                        positions, start, end, results, found);
+                if (n >= 0) {
+                    nFound += n;
+                    start = end;
+                    continue;
+                }
+            }
+            nFound += searchAll(node.getChild(childIndex), keys, values, positions,
+                    start, end, results, found);
+            start = end;
+        }
+        return nFound;
+    }
+
+    private int searchAllInLeaf(BTreeNode leaf, long[] keys, long[] values, int[] positions,
+            int from, int to, long[] results, boolean[] found) {
+        int numKeys = leaf.getNumKeys();
+        long[] leafKeys = leaf.getKeys();
+        long[] leafValues = leaf.getValues();
+        int nFound = 0;
+        // all entries before pos are smaller than the current probe
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            long key = keys[i];
+            long value = valueAt(values, i);
+            // gallop to an entry that is not smaller than the probe ...
+            int high = pos;
+            int step = 1;
+            while (high < numKeys && compareEntries(leafKeys[high], leafValues[high], key, value) < 0) {
+                pos = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            // ... and search the first one between pos and high
+            high = Math.min(high, numKeys);
+            while (pos < high) {
+                int mid = (pos + high) >>> 1;
+                if (compareEntries(leafKeys[mid], leafValues[mid], key, value) < 0) {
+                    pos = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (pos < numKeys && compareEntries(leafKeys[pos], leafValues[pos], key, value) == 0) {
+                setResult(positions, i, leafValues[pos], results, found);
+                nFound++;
+            }
+        }
+        return nFound;
+    }
+
+    /**
+     * Searches the probes from..to-1 in the image of a child, see 
+     * {@link PagedBTreeNode#searchChildImage(int, long, long)}.
+     * @return The number of probes found or -1 if the image can not be
+     * searched.
+     */
+    private int searchAllInImage(PagedBTreeNode node, int childIndex, long[] keys, 
+            long[] values, int[] positions, int from, int to, long[] results, boolean[] found) {
+        int nFound = 0;
+        for (int i = from; i < to; i++) {
+            switch (node.searchChildImage(childIndex, keys[i], valueAt(values, i))) {
+            case BTreeStorageBufferManager.IMAGE_FOUND:
+                long value = ((BTreeStorageBufferManager) bufferManager).getImageSearchValue();
+                setResult(positions, i, value, results, found);
+                nFound++;
+                break;
+            case BTreeStorageBufferManager.IMAGE_NOT_FOUND:
+                break;
+            default:
+                // the probes before are searched again in the node
+                return -1;
+            }
+        }
+        return nFound;
+    }
+
+    private static void setResult(int[] positions, int i, long value, long[] results, 
+            boolean[] found) {
+        int p = positions == null ? i : positions[i];
+        results[p] = value;
+        if (found != null) {
+            found[p] = true;
+        }
+    }
+
+    /**
+     * Leaves are freed without reading them. The size of a leaf that is 
+     * not in memory is taken from its parent. The parent knows the size if
+     * it has been in memory together with the leaf, this is the case after 
+     * the statistics have been counted, see {@link #statsGetInnerN()}.
+     */
+    @Override
+    protected void freeChild(BTreeNode parent, int childIndex, int childHeight) {
+        if (childHeight > 0) {
+            super.freeChild(parent, childIndex, childHeight);
+            return;
+        }
+        int size = parent.getChildSizes()[childIndex];
+        if (!bufferManager.removePage(((PagedBTreeNode) parent).getChildrenPageIds()[childIndex])) {
+            BTreeStatistics stats = bufferManager.getStatistics();
+            if (size > 0) {
+                stats.removeNode(true, size);
+            } else {
+                //the parent has been read after the leaf was evicted
+                stats.invalidate();
+            }
+        }
+    }
+
     public PagedBTreeNode getRoot() {
     	return (PagedBTreeNode) root;
     }
+
+    /**
+     * Builds the tree bottom-up from a stream of sorted entries. This is 
+     * much faster than inserting the entries one by one, because every 
+     * node is filled only once and there are no splits.
+     * 
+     * The leaves are filled with entries until the next entry would make
+     * them larger than the fill factor allows. The inner levels are built
+     * the same way from the nodes of the level below. The last node of 
+     * each level may be underfull, it is rebalanced with its left sibling 
+     * when the tree is complete.
+     * 
+     * If an output channel is given, every node is written as soon as it 
+     * is complete, so the pages are written in sequence and the nodes can
+     * be evicted from the clean buffer. Otherwise all nodes stay in the 
+     * dirty buffer until the tree is written.
+     * 
+     * @param entries The entries, ordered by key and, in non-unique trees,
+     * by value. Unique trees must not contain duplicate keys.
+     * @param fillFactor The fraction of a page that is filled, 
+     * {@code 0 < fillFactor <= 1}.
+     * @param out The output channel or {@code null}.
+     * @throws IllegalStateException if the tree is not empty.
+     * @throws IllegalArgumentException if the entries are not sorted.
+     */
+    public void bulkLoad(Iterator<LLEntry> entries, double fillFactor, 
+    		StorageChannelOutput out) {
+    	if (!isEmpty()) {
+    		throw new IllegalStateException("The tree is not empty.");
+    	}
+    	if (!(fillFactor > 0 && fillFactor <= 1)) {
+    		throw new IllegalArgumentException("Invalid fill factor: " + fillFactor);
+    	}
+    	if (!entries.hasNext()) {
+    		return;
+    	}
+    	int maxSize = (int) (getPageSize() * fillFactor);
+    	// the incomplete node of each level, starting with the leaves
+    	BTreeNode[] nodes = new BTreeNode[MAX_HEIGHT];
+    	// smallest entry in the subtree of the incomplete nodes, this is 
+    	// the separator in the parent node 
+    	long[] lowKeys = new long[MAX_HEIGHT];
+    	long[] lowValues = new long[MAX_HEIGHT];
+
+    	// the nodes are built detached from the tree, so that they can be 
+    	// freed if the entries turn out not to be sorted 
+    	BTreeNode leaf = nodeFactory.newNode(isUnique(), getPageSize(), true, false);
+    	nodes[0] = leaf;
+    	LLEntry first = entries.next();
+    	long firstKey = first.getKey();
+    	long key = firstKey;
+    	long value = first.getValue();
+    	long numEntries = 1;
+    	int level = 0;
+    	try {
+    		leaf.setKey(0, key);
+    		leaf.setValue(0, value);
+    		leaf.setNumKeys(1);
+    		while (entries.hasNext()) {
+    			LLEntry e = entries.next();
+    			numEntries++;
+    			long prevKey = key;
+    			long prevValue = value;
+    			key = e.getKey();
+    			value = e.getValue();
+    			if (key < prevKey || (key == prevKey && (isUnique() || value <= prevValue))) {
+    				throw new IllegalArgumentException("Entries are not sorted: " + key + 
+    						"/" + value + " after " + prevKey + "/" + prevValue);
+    			}
+    			int numKeys = leaf.getNumKeys();
+    			if (sizeWith(leaf, numKeys + 1, leaf.getKey(0), key) > maxSize) {
+    				completeNode(leaf, out);
+    				addToParent(nodes, lowKeys, lowValues, 1, leaf, maxSize, out);
+    				leaf = nodeFactory.newNode(isUnique(), getPageSize(), true, false);
+    				nodes[0] = leaf;
+    				lowKeys[0] = key;
+    				lowValues[0] = value;
+    				numKeys = 0;
+    			}
+    			leaf.setKey(numKeys, key);
+    			leaf.setValue(numKeys, value);
+    			leaf.setNumKeys(numKeys + 1);
+    		}
+
+    		// complete the remaining nodes, the node on the top level is the root
+    		while (nodes[level + 1] != null) {
+    			completeNode(nodes[level], out);
+    			addToParent(nodes, lowKeys, lowValues, level + 1, nodes[level], maxSize, out);
+    			nodes[level] = null;
+    			level++;
+    		}
+    	} catch (RuntimeException e) {
+    		freeDetachedNodes(nodes);
+    		throw e;
+    	}
+
+    	increaseModcount();
+    	BTreeNode oldRoot = root;
+    	swapRoot(nodes[level]);
+    	oldRoot.close();
+    	root.setNumEntriesInTree(numEntries);
+    	setHeight(level + 1);
+    	recomputeMinAndMaxAfterInsert(firstKey);
+    	recomputeMinAndMaxAfterInsert(key);
+
+    	rebalanceRightEdge();
+    	if (root.overflows()) {
+    		//the root page also contains the number of entries
+    		handleRootOverflow();
+    	}
+    	if (out != null) {
+    		bufferManager.write(getRoot(), out);
+    	}
+    }
+
+    /**
+     * Frees the nodes of an aborted bulk load, these are the incomplete 
+     * node of each level and the complete nodes below them. Pages that 
+     * have already been written are freed as well.
+     */
+    private void freeDetachedNodes(BTreeNode[] nodes) {
+    	for (int level = nodes.length - 1; level >= 0; level--) {
+    		BTreeNode node = nodes[level];
+    		if (node == null) {
+    			continue;
+    		}
+    		if (level > 0) {
+    			// the incomplete node of the level below is not a child yet, 
+    			// unless the abort happened while it was added
+    			int numChildren = node.getNumKeys() + 1;
+    			if (nodes[level - 1] != null && 
+    					node.getChild(node.getNumKeys()) == nodes[level - 1]) {
+    				numChildren--;
+    			}
+    			for (int i = 0; i < numChildren; i++) {
+    				freeChild(node, i, level - 1);
+    			}
+    		}
+    		node.close();
+    	}
+    }
+
+    /**
+     * Adds a complete node to the incomplete node of the next level. A new
+     * node is started if the parent would get larger than maxSize.
+     */
+    private void addToParent(BTreeNode[] nodes, long[] lowKeys, long[] lowValues, 
+    		int level, BTreeNode child, int maxSize, StorageChannelOutput out) {
+    	BTreeNode parent = nodes[level];
+    	if (parent == null) {
+    		if (level == MAX_HEIGHT - 1) {
+    			throw new IllegalStateException("The tree is too high.");
+    		}
+    		parent = nodeFactory.newNode(isUnique(), getPageSize(), false, false);
+    		parent.setChild(0, child);
+    		nodes[level] = parent;
+    		lowKeys[level] = lowKeys[level - 1];
+    		lowValues[level] = lowValues[level - 1];
+    		return;
+    	}
+    	long key = lowKeys[level - 1];
+    	long value = lowValues[level - 1];
+    	int numKeys = parent.getNumKeys();
+    	long firstKey = numKeys == 0 ? key : parent.getKey(0);
+    	// an inner node needs at least two children
+    	if (numKeys > 0 && sizeWith(parent, numKeys + 1, firstKey, key) > maxSize) {
+    		completeNode(parent, out);
+    		addToParent(nodes, lowKeys, lowValues, level + 1, parent, maxSize, out);
+    		parent = nodeFactory.newNode(isUnique(), getPageSize(), false, false);
+    		parent.setChild(0, child);
+    		nodes[level] = parent;
+    		lowKeys[level] = key;
+    		lowValues[level] = value;
+    		return;
+    	}
+    	parent.setEntry(numKeys, key, value);
+    	parent.setChild(numKeys + 1, child);
+    	parent.setNumKeys(numKeys + 1);
+    }
+
+    private void completeNode(BTreeNode node, StorageChannelOutput out) {
+    	node.recomputeSize();
+    	if (out != null) {
+    		bufferManager.write((PagedBTreeNode) node, out);
+    	}
+    }
+
+    /**
+     * Rebalances the underfull nodes on the right edge of the tree with 
+     * their left siblings, starting at the root.
+     */
+    private void rebalanceRightEdge() {
+    	BTreeNode parent = root;
+    	while (!parent.isLeaf()) {
+    		int childIndex = parent.getNumKeys();
+    		BTreeNode child = parent.getChild(childIndex);
+    		if (childIndex > 0 && child.isUnderFull()) {
+    			BTreeNode oldRoot = root;
+    			rebalance(parent, child, childIndex);
+    			if (root != oldRoot) {
+    				//the root has been merged with its children
+    				parent = root;
+    				continue;
+    			}
+    		}
+    		parent = parent.getChild(parent.getNumKeys());
+    	}
+    }
 }
@@ -23,6 +23,7 @@ package org.zoodb.internal.server.index.btree;
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 /**
  * Variant of B+ tree node that is aware of the buffer manager.
@@ -41,24 +42,69 @@ public abstract class PagedBTreeNode extends BTreeNode {
     protected BTreeBufferManager bufferManager;
     private WeakReference<PagedBTreeNode>[] children;
 
+    // heap size of a node object without arrays, see computeHeapSize()
+    private static final int NODE_OBJECT_HEAP_SIZE = 88;
+    private static final int ARRAY_HEADER_HEAP_SIZE = 16;
+    // position in the clean buffer's CLOCK ring, -1 if not in the ring
+    int clockIndex = -1;
+    // CLOCK reference bit, set whenever the node is accessed
+    boolean referenced;
+    // pinned nodes are never evicted from the clean buffer
+    boolean pinned;
+    // heap size as accounted by the buffer pool or the pinning budget
+    long heapSize;
+    // pool for the arrays of the node, may be null
+    private NodeArrayPool arrayPool;
+    // the arrays are returned to the pool when the node is unreachable, 
+    // null if the node is not tracked, see NodeArrayPool#track()
+    NodeArrayPool.NodeArrays trackedArrays;
+    // whether the size of the node is part of the statistics of the tree
+    private boolean sizeCounted;
+    // the open snapshots, see BTreeSnapshot
+    private BTreeSnapshot.Registry snapshots;
+    // the snapshots up to this epoch have a copy of the node or do not
+    // contain it, see BTreeSnapshot.Registry#beforeChange()
+    int snapshotEpoch;
+
 	public PagedBTreeNode(BTreeBufferManager bufferManager, int pageSize, boolean isLeaf, boolean isRoot) {
 		super(pageSize, isLeaf, isRoot, bufferManager.getNodeValueElementSize());
 		
         markDirty();
 		this.bufferManager = bufferManager;
+		this.arrayPool = getArrayPool(bufferManager);
+		this.snapshots = bufferManager.getSnapshots();
+		//new nodes are not part of any open snapshot
+		this.snapshotEpoch = snapshots.getEpoch();
+		initializeEntries();
 		this.setPageId(bufferManager.save(this));
+		bufferManager.getStatistics().addNode(isLeaf);
+		this.sizeCounted = true;
 	}
 	
 	/**
 	 * Constructor when we know on which page this node lies. 
 	 * Does not save the node in the buffer managers memory.
+	 * The node is dirty until it is marked as clean. No copies are taken
+	 * for snapshots until then.
 	 */
     public PagedBTreeNode(BTreeBufferManager bufferManager, int pageSize, boolean isLeaf, boolean isRoot, int pageId) {
 		super(pageSize, isLeaf, isRoot, bufferManager.getNodeValueElementSize());
 
+        markDirty();
 		this.bufferManager = bufferManager;
+		this.arrayPool = getArrayPool(bufferManager);
+		this.snapshots = bufferManager.getSnapshots();
+		this.snapshotEpoch = Integer.MAX_VALUE;
+		initializeEntries();
 		this.setPageId(pageId);
     }
+
+    private static NodeArrayPool getArrayPool(BTreeBufferManager bufferManager) {
+    	if (bufferManager instanceof BTreeStorageBufferManager) {
+    		return ((BTreeStorageBufferManager) bufferManager).getNodeArrayPool();
+    	}
+    	return null;
+    }
     
     @Override
     public boolean fitsIntoOneNodeWith(BTreeNode neighbour) {
@@ -85,12 +131,85 @@ public abstract class PagedBTreeNode extends BTreeNode {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     protected void initChildren(int size) {
-        //This is called by the BTreeNode constructor
-        this.childrenPageIds = new int[size];
-        this.childSizes = new int[size];
-        this.children = new WeakReference[size];
+        //This is called by initializeEntries()
+        this.childrenPageIds = newIntArray(size);
+        this.childSizes = newIntArray(size);
+        if (bufferManager.isStoringChildCounts()) {
+            this.childCounts = newLongArray(size);
+            //the arrays may be reused, the counts are not known yet
+            Arrays.fill(childCounts, -1);
+        }
+        this.children = newReferenceArray(size);
+    }
+
+    @Override
+    protected void ensureChildCapacity(int minChildren) {
+        if (children == null) {
+            //not initialized yet, see initializeEntries()
+            return;
+        }
+        if (childrenPageIds.length < minChildren) {
+            int[] a = newIntArray(newChildCapacity(childrenPageIds.length, minChildren));
+            System.arraycopy(childrenPageIds, 0, a, 0, childrenPageIds.length);
+            releaseIntArray(childrenPageIds);
+            childrenPageIds = a;
+        }
+        if (childSizes.length < minChildren) {
+            int[] a = newIntArray(newChildCapacity(childSizes.length, minChildren));
+            System.arraycopy(childSizes, 0, a, 0, childSizes.length);
+            releaseIntArray(childSizes);
+            childSizes = a;
+        }
+        if (childCounts != null && childCounts.length < minChildren) {
+            long[] a = newLongArray(newChildCapacity(childCounts.length, minChildren));
+            System.arraycopy(childCounts, 0, a, 0, childCounts.length);
+            Arrays.fill(a, childCounts.length, a.length, -1);
+            releaseLongArray(childCounts);
+            childCounts = a;
+        }
+        if (children.length < minChildren) {
+            WeakReference<PagedBTreeNode>[] a = 
+                    newReferenceArray(newChildCapacity(children.length, minChildren));
+            System.arraycopy(children, 0, a, 0, children.length);
+            if (arrayPool != null && trackedArrays == null) {
+                arrayPool.releaseReferences(children);
+            }
+            children = a;
+        }
+    }
+
+    private int newChildCapacity(int oldLength, int minLength) {
+        //there is one child more than keys
+        return newCapacity(oldLength - 1, minLength - 1) + 1;
+    }
+
+    @Override
+    protected long[] newLongArray(int size) {
+        return arrayPool != null ? arrayPool.takeLongs(size) : new long[size];
+    }
+
+    @Override
+    protected void releaseLongArray(long[] array) {
+        //arrays of tracked nodes are returned when the node is unreachable
+        if (arrayPool != null && trackedArrays == null) {
+            arrayPool.releaseLongs(array);
+        }
+    }
+
+    private int[] newIntArray(int size) {
+        return arrayPool != null ? arrayPool.takeInts(size) : new int[size];
+    }
+
+    private void releaseIntArray(int[] array) {
+        if (arrayPool != null && trackedArrays == null) {
+            arrayPool.releaseInts(array);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private WeakReference<PagedBTreeNode>[] newReferenceArray(int size) {
+        return arrayPool != null ? arrayPool.takeReferences(size) : new WeakReference[size];
     }
 
 	@Override
@@ -119,6 +238,9 @@ public abstract class PagedBTreeNode extends BTreeNode {
 				childrenPageIds[i] = toPagedNode(children[i]).getPageId();
 			}
 		}
+		if (childCounts != null) {
+			Arrays.fill(childCounts, -1);
+		}
 	}
 
 	@Override
@@ -159,23 +281,47 @@ public abstract class PagedBTreeNode extends BTreeNode {
 
 	@Override
 	public BTreeNode getChild(int index) {
-        PagedBTreeNode child;
-        if (children[index] == null || children[index].get() == null)  {
+        WeakReference<PagedBTreeNode> ref = children[index];
+        PagedBTreeNode child = ref == null ? null : ref.get();
+        if (child == null)  {
             child = bufferManager.read(childrenPageIds[index]);
             children[index] = new WeakReference<>(child);
+            //sizes are not stored, they are known once the child has been read
+            childSizes[index] = child.getCurrentSize();
             return child;
         }
 
-		return children[index].get();
+        child.referenced = true;
+		return child;
+	}
+
+	/**
+	 * Searches a key/value pair in the child at the given index without
+	 * loading the child, see 
+	 * {@link BTreeStorageBufferManager#searchLeafImage(int, long, long)}.
+	 * Children that are in memory are not searched.
+	 */
+	public int searchChildImage(int index, long key, long value) {
+		WeakReference<PagedBTreeNode> ref = children[index];
+		if ((ref != null && ref.get() != null) 
+				|| !(bufferManager instanceof BTreeStorageBufferManager)) {
+			return BTreeStorageBufferManager.IMAGE_NOT_SEARCHED;
+		}
+		return ((BTreeStorageBufferManager) bufferManager).searchLeafImage(
+				childrenPageIds[index], key, value);
 	}
 
 	@Override
 	public void setChild(int index, BTreeNode child) {
 		markDirty();
+		ensureChildCapacity(index + 1);
         PagedBTreeNode pagedChild = toPagedNode(child);
 		childrenPageIds[index] = pagedChild.getPageId();
         children[index] = new WeakReference<>(pagedChild);
         childSizes[index] = pagedChild.getCurrentSize();
+        if (childCounts != null) {
+            childCounts[index] = pagedChild.getNumEntriesInSubtree();
+        }
 	}
 
     @Override
@@ -192,9 +338,14 @@ public abstract class PagedBTreeNode extends BTreeNode {
 			int destIndex, int size) {
         PagedBTreeNode pagedSource = toPagedNode(source);
         PagedBTreeNode pagedDest = toPagedNode(dest);
+        pagedDest.markDirty();
+        pagedDest.ensureChildCapacity(destIndex + size);
         System.arraycopy(pagedSource.getChildrenPageIds(), sourceIndex,
         		pagedDest.getChildrenPageIds(), destIndex, size);
         System.arraycopy(pagedSource.getChildSizes(), sourceIndex, pagedDest.getChildSizes(), destIndex, size);
+        if (pagedDest.getChildCounts() != null) {
+            System.arraycopy(pagedSource.getChildCounts(), sourceIndex, pagedDest.getChildCounts(), destIndex, size);
+        }
         System.arraycopy(pagedSource.getChildren(), sourceIndex, pagedDest.getChildren(), destIndex, size);
 	}
 
@@ -221,7 +372,12 @@ public abstract class PagedBTreeNode extends BTreeNode {
         this.markDirty();
     }
 
+	/**
+	 * Marks the node as changed. This has to be called before the node is
+	 * changed, so that open snapshots can take a copy.
+	 */
 	public void markDirty() {
+		preserveForSnapshots();
 		if (!isDirty) {
 			isDirty = true;
 			notifyStatus();
@@ -230,8 +386,41 @@ public abstract class PagedBTreeNode extends BTreeNode {
 
 	public void markClean() {
 		isDirty = false;
+		//the page may be part of any open snapshot
+		snapshotEpoch = 0;
 		notifyStatus();
 	}
+
+	/**
+	 * Gives the open snapshots that do not have a copy of the node a chance
+	 * to take one, before the node is changed or removed.
+	 */
+	void preserveForSnapshots() {
+		if (snapshots != null && snapshotEpoch < snapshots.getEpoch()) {
+			snapshots.beforeChange(this);
+		}
+	}
+
+	/**
+	 * Creates a copy of the node for snapshots. The copy is not known to
+	 * the buffer manager and is never changed.
+	 */
+	PagedBTreeNode copyForSnapshot() {
+		PagedBTreeNode copy = PagedBTreeNodeFactory.createNode(bufferManager, 
+				!allowNonUniqueKeys(), isRoot(), isLeaf(), pageSize, pageId);
+		copy.ensureCapacity(numKeys);
+		System.arraycopy(getKeys(), 0, copy.getKeys(), 0, numKeys);
+		if (getValues() != null) {
+			System.arraycopy(getValues(), 0, copy.getValues(), 0, numKeys);
+		}
+		if (!isLeaf()) {
+			copy.ensureChildCapacity(numKeys + 1);
+			System.arraycopy(childrenPageIds, 0, copy.childrenPageIds, 0, numKeys + 1);
+			System.arraycopy(children, 0, copy.children, 0, numKeys + 1);
+		}
+		copy.numKeys = numKeys;
+		return copy;
+	}
 	
 	private void notifyStatus() {
 		if (this.bufferManager != null) {
@@ -248,27 +437,55 @@ public abstract class PagedBTreeNode extends BTreeNode {
 	}
 
 	public void setPageId(int pageId) {
+		if (pageId != this.pageId) {
+			//snapshots find their copies by the old page id
+			preserveForSnapshots();
+		}
 		this.pageId = pageId;
 	}
 
 	public void setChildPageId(int childIndex, int childPageId) {
-		childrenPageIds[childIndex] = childPageId;
 		markDirty();
+		ensureChildCapacity(childIndex + 1);
+		childrenPageIds[childIndex] = childPageId;
 	}
 
 	public void setChildrenPageIds(int[] childrenPageIds) {
 		this.childrenPageIds = childrenPageIds;
 	}
 
+	/**
+	 * Reports size changes to the statistics of the tree. The first size of
+	 * a node that is read from storage is already part of the statistics.
+	 */
+	@Override
+	protected void sizeChanged(int oldSize, int newSize) {
+		if (sizeCounted) {
+			bufferManager.getStatistics().addBytes(newSize - oldSize);
+		} else {
+			sizeCounted = true;
+		}
+	}
+
 	@Override
 	public void close() {
+		preserveForSnapshots();
+		bufferManager.getStatistics().removeNode(isLeaf(), getCurrentSize());
 		bufferManager.remove(this);
+		if (arrayPool != null) {
+			arrayPool.track(this);
+		}
 	}
 
     public BTreeBufferManager getBufferManager() {
         return bufferManager;
     }
 
+    @Override
+    public int getChildElementSize() {
+        return bufferManager.getNodeChildElementSize();
+    }
+
     @Override
     public int computeSize() {
         return bufferManager.getNodeSizeInStorage(this);
@@ -283,8 +500,38 @@ public abstract class PagedBTreeNode extends BTreeNode {
         return children;
     }
 
+    /**
+     * Estimates the heap footprint of this node, assuming a 64 bit JVM
+     * with compressed references. The estimate includes the node object
+     * and its arrays, but not the child nodes or their references.
+     * Note that keys and values are not compressed on the heap, so the 
+     * footprint is usually larger than the page.
+     * @return The estimated number of bytes.
+     */
+    public long computeHeapSize() {
+        long size = NODE_OBJECT_HEAP_SIZE;
+        size += arrayHeapSize(getKeys().length, 8);
+        if (getValues() != null) {
+            size += arrayHeapSize(getValues().length, 8);
+        }
+        if (childrenPageIds != null) {
+            size += arrayHeapSize(childrenPageIds.length, 4);
+            size += arrayHeapSize(childSizes.length, 4);
+            if (childCounts != null) {
+                size += arrayHeapSize(childCounts.length, 8);
+            }
+            size += arrayHeapSize(children.length, 4);
+        }
+        return size;
+    }
+
+    private static long arrayHeapSize(int length, int elementSize) {
+        //array header and alignment to 8 byte
+        return (ARRAY_HEADER_HEAP_SIZE + (long) length * elementSize + 7) & ~7L;
+    }
+
     public static int computeMaxPossibleEntries(boolean isUnique, boolean isLeaf, int pageSize, int valueElementSize) {
-        //ToDo use this same method in the node, to compute the sizes on init
+        //the arrays of a node do not grow beyond this size, see newCapacity()
         int maxPossibleNumEntries;
         /*
             In the case of the best compression, all keys would have the same value.
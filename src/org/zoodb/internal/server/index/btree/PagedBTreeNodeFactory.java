@@ -67,9 +67,9 @@ public class PagedBTreeNodeFactory implements BTreeNodeFactory {
         boolean isLeaf = true;
         PagedBTreeNode node = createNode(bufferManager, isUnique, isRoot, isLeaf, pageSize, pageId);
 
-		node.setNumKeys(numKeys);
 		node.setKeys(keys);
 		node.setValues(values);
+		node.setNumKeys(numKeys);
 		node.recomputeSize();
 		return node;
 	}
@@ -86,17 +86,20 @@ public class PagedBTreeNodeFactory implements BTreeNodeFactory {
         boolean isLeaf = false;
 		PagedBTreeNode node = createNode(bufferManager, isUnique, isRoot, isLeaf, pageSize, pageId);
 
-		node.setNumKeys(numKeys);
 		node.setKeys(keys);
         if (values != null) {
             node.setValues(values);
         }
 		node.setChildrenPageIds(childrenPageIds);
+		node.setNumKeys(numKeys);
 		node.recomputeSize();
 		return node;
 	}
 
-    private static PagedBTreeNode createNode(   BTreeBufferManager bufferManager,
+    /**
+     * Creates an empty node that is neither in the clean nor in the dirty buffer.
+     */
+    static PagedBTreeNode createNode(   BTreeBufferManager bufferManager,
                                                 boolean isUnique,
                                                 boolean isRoot,
                                                 boolean isLeaf,
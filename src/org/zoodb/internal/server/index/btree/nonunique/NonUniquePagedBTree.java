@@ -20,8 +20,9 @@
  */
 package org.zoodb.internal.server.index.btree.nonunique;
 
+import java.util.Arrays;
+
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
-import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 
 /**
@@ -44,11 +45,22 @@ public class NonUniquePagedBTree extends PagedBTree {
     }
 
     public boolean contains(long key, long value) {
-        BTreeNode current = root;
-        while (!current.isLeaf()) {
-            current = current.findChild(key, value);
-        }
-        return current.containsKeyValue(key, value);
+        return searchLeaf(key, value);
+    }
+
+    /**
+     * Checks a batch of key/value pairs, see 
+     * {@link #searchAll(long[], long[], int, long[], boolean[])}.
+     *
+     * @param keys The keys, the array is not modified.
+     * @param values The values, the array is not modified.
+     * @param n The number of key/value pairs.
+     * @param found Receives whether each pair is contained in the tree.
+     * @return The number of pairs that are contained in the tree.
+     */
+    public int contains(long[] keys, long[] values, int n, boolean[] found) {
+        Arrays.fill(found, 0, n, false);
+        return searchAll(keys, values, n, new long[n], found);
     }
 
     /**
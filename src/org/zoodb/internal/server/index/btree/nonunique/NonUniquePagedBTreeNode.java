@@ -42,7 +42,7 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
 
     @Override
     public void initializeEntries() {
-        int size = PagedBTreeNode.computeMaxPossibleEntries(false, isLeaf(), pageSize, valueElementSize);
+        int size = INITIAL_CAPACITY;
         initKeys(size);
         initValues(size);
         if (!isLeaf()) {
@@ -74,6 +74,8 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
     @Override
     public void copyFromNodeToNode(int srcStartK, int srcStartC, BTreeNode destination, int destStartK, int destStartC, int keys, int children) {
         BTreeNode source = this;
+        destination.markChanged();
+        destination.ensureCapacity(destStartK + keys);
         System.arraycopy(source.getKeys(), srcStartK, destination.getKeys(), destStartK, keys);
         System.arraycopy(source.getValues(), srcStartK, destination.getValues(), destStartK, keys);
         if (!destination.isLeaf()) {
@@ -134,7 +136,7 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
             return numKeys * getValueElementSize();
         } else {
             int numChildren = numKeys + 1;
-            return numKeys * getValueElementSize() + (numChildren << 2);
+            return numKeys * getValueElementSize() + numChildren * getChildElementSize();
         }
     }
 
@@ -22,6 +22,8 @@ package org.zoodb.internal.server.index.btree.prefix;
 
 import java.util.Arrays;
 
+import org.zoodb.internal.server.StorageChannelInput;
+
 /**
  * Contains useful methods for operations used by the prefix-sharing B+ tree.
  *
@@ -101,6 +103,11 @@ public class PrefixSharingHelper {
         long optimalDiff = Long.MAX_VALUE;
         while (low <= high) {
             mid = low + ((high - low) >> 1);
+            if (mid == arraySize - 1) {
+                //the right array would be empty
+                high = mid - 1;
+                continue;
+            }
             long prefixLeft = computePrefix(arr[0], arr[mid]);
             long prefixRight = computePrefix(arr[mid+1], arr[arraySize - 1]);
             long sizeLeft = computeArraySize(prefixLeft, (mid + 1), header, valueSize, childSize);
@@ -316,56 +323,128 @@ public class PrefixSharingHelper {
     /**
      * Encode a prefix shared long array into an array of bytes.
      *
+     * The encoded bits form a little-endian bit stream: the first bit is 
+     * the lowest bit of the first byte. The prefix and the suffix of every
+     * key are written with their most significant bit first. Reversing 
+     * the bits of a key turns this into a little-endian bit field, so 
+     * whole keys can be appended to a 64 bit buffer that is written 
+     * 8 bytes at a time.
+     *
      * @param array
      * @param prefix
      * @return
      */
     public static byte[] encodeArray(long[] array, int arrayLength, long prefix) {
-        int inputArrayIndex = 0;
-        int currentByte = 0;
-        int indexInCurrentByte = 0;
-
-        /* Compute the number of bits to be stored */
         int outputArraySize = encodedArraySize(arrayLength, prefix);
-
         byte[] outputArray = new byte[outputArraySize];
 
         /*Write the size of the array as an int - always 4 bytes */
-        outputArray[currentByte++] = (byte) (arrayLength >>> 24);
-        outputArray[currentByte++] = (byte) (arrayLength >>> 16);
-        outputArray[currentByte++] = (byte) (arrayLength >>> 8);
-        outputArray[currentByte++] = (byte) arrayLength;
+        outputArray[0] = (byte) (arrayLength >>> 24);
+        outputArray[1] = (byte) (arrayLength >>> 16);
+        outputArray[2] = (byte) (arrayLength >>> 8);
+        outputArray[3] = (byte) arrayLength;
 
         /* Write the prefix size */
-        outputArray[currentByte++] = (byte) prefix;
+        outputArray[4] = (byte) prefix;
+
+        int prefixLength = (int) prefix;
+        int suffixLength = 64 - prefixLength;
+        int currentByte = PREFIX_SHARING_METADATA_SIZE;
+        long buffer = 0;
+        int bitsInBuffer = 0;
 
-        long prefixBits;
-        if(arrayLength > 0) {
-            prefixBits = prefixBits(prefix, array[0]);
-        } else {
-        	prefixBits = 0;
-        }
         /* Encode the prefix*/
-        for (int i = (int) (prefix - 1); i >= 0; i--) {
-            long bitValue = BitOperationsHelper.getBitValue(prefixBits, i);
-            outputArray[currentByte] = BitOperationsHelper.setBitValue(outputArray[currentByte], indexInCurrentByte, bitValue);
-            indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
-            currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+        if (arrayLength > 0 && prefixLength > 0) {
+            buffer = Long.reverse(array[0] >>> suffixLength) >>> suffixLength;
+            bitsInBuffer = prefixLength;
+            if (bitsInBuffer == 64) {
+                writeLongLE(outputArray, currentByte, buffer);
+                currentByte += 8;
+                buffer = 0;
+                bitsInBuffer = 0;
+            }
         }
 
         /* Perform the actual encoding */
-        while (inputArrayIndex < arrayLength) {
-            for (int i = (int) (63 - prefix); i >= 0; i--) {
-                long bitValue = BitOperationsHelper.getBitValue(array[inputArrayIndex], i);
-                outputArray[currentByte] = BitOperationsHelper.setBitValue(outputArray[currentByte], indexInCurrentByte, bitValue);
-                indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
-                currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+        if (suffixLength > 0) {
+            for (int i = 0; i < arrayLength; i++) {
+                long bits = Long.reverse(array[i]) >>> prefixLength;
+                buffer |= bits << bitsInBuffer;
+                bitsInBuffer += suffixLength;
+                if (bitsInBuffer >= 64) {
+                    writeLongLE(outputArray, currentByte, buffer);
+                    currentByte += 8;
+                    bitsInBuffer -= 64;
+                    //the bits that did not fit into the buffer
+                    buffer = bitsInBuffer == 0 ? 0 : bits >>> (suffixLength - bitsInBuffer);
+                }
             }
-            inputArrayIndex++;
+        }
+
+        /* Write the remaining bits */
+        while (bitsInBuffer > 0) {
+            outputArray[currentByte++] = (byte) buffer;
+            buffer >>>= 8;
+            bitsInBuffer -= 8;
         }
         return outputArray;
     }
 
+    private static void writeLongLE(byte[] array, int pos, long value) {
+        array[pos] = (byte) value;
+        array[pos + 1] = (byte) (value >>> 8);
+        array[pos + 2] = (byte) (value >>> 16);
+        array[pos + 3] = (byte) (value >>> 24);
+        array[pos + 4] = (byte) (value >>> 32);
+        array[pos + 5] = (byte) (value >>> 40);
+        array[pos + 6] = (byte) (value >>> 48);
+        array[pos + 7] = (byte) (value >>> 56);
+    }
+
+    /**
+     * Reads up to 8 bytes as a little-endian long. Bytes at or after 
+     * {@code end} are read as 0.
+     */
+    private static long readLongLE(byte[] array, int pos, int end) {
+        if (pos + 8 <= end) {
+            return (array[pos] & 0xFFL)
+                    | (array[pos + 1] & 0xFFL) << 8
+                    | (array[pos + 2] & 0xFFL) << 16
+                    | (array[pos + 3] & 0xFFL) << 24
+                    | (array[pos + 4] & 0xFFL) << 32
+                    | (array[pos + 5] & 0xFFL) << 40
+                    | (array[pos + 6] & 0xFFL) << 48
+                    | (array[pos + 7] & 0xFFL) << 56;
+        }
+        long value = 0;
+        for (int i = 0; pos + i < end; i++) {
+            value |= (array[pos + i] & 0xFFL) << (i << 3);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a field of {@code length} bits that starts at bit {@code bitPos} 
+     * of a little-endian bit stream and that was written with its most 
+     * significant bit first.
+     * @param array The bit stream
+     * @param offset The first byte of the bit stream
+     * @param end The end of the bit stream (exclusive)
+     * @param bitPos The position of the first bit of the field, relative 
+     * to the offset
+     * @param length The number of bits, between 1 and 64
+     * @return The value of the field
+     */
+    static long readBits(byte[] array, int offset, int end, long bitPos, int length) {
+        int pos = offset + (int) (bitPos >>> 3);
+        int shift = (int) (bitPos & 7);
+        long bits = readLongLE(array, pos, end) >>> shift;
+        if (shift + length > 64) {
+            bits |= readLongLE(array, pos + 8, end) << (64 - shift);
+        }
+        return Long.reverse(bits) >>> (64 - length);
+    }
+
     /**
      * Compute the size of the byte array used to encode the array of longs.
      *
@@ -411,35 +490,161 @@ public class PrefixSharingHelper {
     }
 
     public static long[] decodeArray(byte[] encodedArrayWithoutMetadata, int decodedArraySize, int newSize, byte prefixLength) {
-    	byte[] encodedArray = encodedArrayWithoutMetadata;
-        int currentByte = 0;
+        return decodeArray(encodedArrayWithoutMetadata, 0, decodedArraySize, newSize, prefixLength);
+    }
+
+    /**
+     * Decode a prefix encoded array that starts at a given offset in an array of bytes,
+     * for example in a page image.
+     *
+     * @param encodedArray                  The bytes containing the encoded key array
+     * @param offset                        The position of the first byte after the metadata
+     * @param decodedArraySize              The number of keys encoded
+     * @param newSize                       The size of the returned array
+     * @param prefixLength                  The size of the prefix
+     * @return                              The decoded long array.
+     */
+    public static long[] decodeArray(byte[] encodedArray, int offset, int decodedArraySize, int newSize, byte prefixLength) {
         long[] decodedArray = new long[newSize];
-        int indexInCurrentByte = 0;
+        decodeArray(encodedArray, offset, decodedArraySize, prefixLength, decodedArray);
+        return decodedArray;
+    }
+
+    /**
+     * Decode a prefix encoded array that starts at a given offset in an array of bytes
+     * into an existing array.
+     *
+     * @param encodedArray                  The bytes containing the encoded key array
+     * @param offset                        The position of the first byte after the metadata
+     * @param decodedArraySize              The number of keys encoded
+     * @param prefixLength                  The size of the prefix
+     * @param decodedArray                  The array for the decoded keys
+     */
+    public static void decodeArray(byte[] encodedArray, int offset, int decodedArraySize, byte prefixLength, 
+            long[] decodedArray) {
+        int end = offset + encodedArraySizeWithoutMetadata(decodedArraySize, prefixLength);
+        end = Math.min(end, encodedArray.length);
+        int suffixLength = 64 - prefixLength;
+
         long prefixBits = 0;
-        
-        /* Read prefix */
-        for (int i = prefixLength - 1; i >= 0; i--) {
-            long bitValue = BitOperationsHelper.getBitValue(encodedArray[currentByte], indexInCurrentByte);
-            prefixBits = BitOperationsHelper.setBitValue(prefixBits, i, bitValue);
-            indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
-            currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+        if (prefixLength > 0) {
+            prefixBits = readBits(encodedArray, offset, end, 0, prefixLength) << suffixLength;
+        }
+        if (suffixLength == 0) {
+            Arrays.fill(decodedArray, 0, decodedArraySize, prefixBits);
+            return;
         }
 
-        prefixBits = prefixBits << (64 - prefixLength);
-
+        long bitPos = prefixLength;
         for (int i = 0; i < decodedArraySize; i++) {
-            decodedArray[i] = prefixBits;
-            for (int j = 63 - prefixLength; j >= 0; j--) {
-                long bitValue = BitOperationsHelper.getBitValue(encodedArray[currentByte], indexInCurrentByte);
-                decodedArray[i] = BitOperationsHelper.setBitValue(decodedArray[i], j, bitValue);
-                indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
-                currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+            decodedArray[i] = prefixBits | readBits(encodedArray, offset, end, bitPos, suffixLength);
+            bitPos += suffixLength;
+        }
+    }
+
+    /**
+     * Decode a prefix encoded array directly from a storage channel into an existing 
+     * array. The channel has to be positioned at the first byte after the metadata. 
+     * Afterwards it is positioned after the encoded array.
+     *
+     * @param in                            The storage channel
+     * @param decodedArraySize              The number of keys encoded
+     * @param prefixLength                  The size of the prefix
+     * @param decodedArray                  The array for the decoded keys
+     */
+    public static void decodeArray(StorageChannelInput in, int decodedArraySize, byte prefixLength, 
+            long[] decodedArray) {
+        int bytesLeft = encodedArraySizeWithoutMetadata(decodedArraySize, prefixLength);
+        int suffixLength = 64 - prefixLength;
+        long buffer = 0;
+        int bitsInBuffer = 0;
+        long prefixBits = 0;
+        // the prefix is the field with index -1
+        for (int i = -1; i < decodedArraySize; i++) {
+            int length = i < 0 ? prefixLength : suffixLength;
+            if (length == 0) {
+                if (i >= 0) {
+                    decodedArray[i] = prefixBits;
+                }
+                continue;
+            }
+            long bits;
+            if (bitsInBuffer >= length) {
+                bits = buffer;
+                buffer = length == 64 ? 0 : buffer >>> length;
+                bitsInBuffer -= length;
+            } else {
+                //read the next 8 bytes
+                long word = 0;
+                if (bytesLeft >= 8) {
+                    word = Long.reverseBytes(in.readLong());
+                    bytesLeft -= 8;
+                } else {
+                    for (int b = 0; bytesLeft > 0; b++, bytesLeft--) {
+                        word |= (in.readByte() & 0xFFL) << (b << 3);
+                    }
+                }
+                bits = buffer | (word << bitsInBuffer);
+                int used = length - bitsInBuffer;
+                buffer = used == 64 ? 0 : word >>> used;
+                bitsInBuffer = 64 - used;
+            }
+            long field = Long.reverse(bits) >>> (64 - length);
+            if (i < 0) {
+                prefixBits = field << suffixLength;
+            } else {
+                decodedArray[i] = prefixBits | field;
             }
         }
+        //skip the rest of the encoded array
+        for (; bytesLeft > 0; bytesLeft--) {
+            in.readByte();
+        }
+    }
 
-        return decodedArray;
+    /**
+     * Decode the prefix of an encoded array.
+     *
+     * @param encodedArray                  The bytes containing the encoded key array
+     * @param offset                        The position of the first byte after the metadata
+     * @param decodedArraySize              The number of keys encoded
+     * @param prefixLength                  The size of the prefix
+     * @return                              The prefix bits, followed by 0 bits for the suffix.
+     */
+    public static long decodePrefix(byte[] encodedArray, int offset, int decodedArraySize, byte prefixLength) {
+        if (prefixLength == 0) {
+            return 0;
+        }
+        int end = Math.min(offset + encodedArraySizeWithoutMetadata(decodedArraySize, prefixLength), 
+                encodedArray.length);
+        return readBits(encodedArray, offset, end, 0, prefixLength) << (64 - prefixLength);
+    }
+
+    /**
+     * Decode a single key of an encoded array. Because all suffixes have the same
+     * length, the key can be read without decoding the keys before it.
+     *
+     * @param encodedArray                  The bytes containing the encoded key array
+     * @param offset                        The position of the first byte after the metadata
+     * @param decodedArraySize              The number of keys encoded
+     * @param prefixLength                  The size of the prefix
+     * @param prefix                        The prefix as returned by 
+     *                                      {@link #decodePrefix(byte[], int, int, byte)}
+     * @param index                         The index of the key
+     * @return                              The key
+     */
+    public static long decodeKey(byte[] encodedArray, int offset, int decodedArraySize, byte prefixLength, 
+            long prefix, int index) {
+        int suffixLength = 64 - prefixLength;
+        if (suffixLength == 0) {
+            return prefix;
+        }
+        int end = Math.min(offset + encodedArraySizeWithoutMetadata(decodedArraySize, prefixLength), 
+                encodedArray.length);
+        long bitPos = prefixLength + (long) index * suffixLength;
+        return prefix | readBits(encodedArray, offset, end, bitPos, suffixLength);
     }
-    
+
     public static int byteArrayToInt(byte[] array, int indexInArray) {
         return 	( array[indexInArray] << 24 )  |
                 ( (array[indexInArray+1] & 0xFF) << 16 )  |
@@ -447,14 +652,6 @@ public class PrefixSharingHelper {
                     ( array[indexInArray+3] & 0xFF );
     }
 
-    private static int increaseIndexInCurrentByte(int indexInCurrentByte) {
-        return (indexInCurrentByte == 7) ? 0 : indexInCurrentByte + 1;
-    }
-
-    private static int updateCurrentByte(int indexInCurrentByte, int currentByte) {
-        return (indexInCurrentByte == 0) ? currentByte + 1 : currentByte;
-    }
-
     /**
      * Compute a split point for a prefix encoded array such that all keys before the
      * split index are moved to the left array and all keys after the split array are moved
@@ -489,7 +686,9 @@ public class PrefixSharingHelper {
         while (low <= high) {
             mid = low + ((high - low) >> 1);
             prefixLeft = computePrefix(left[0], current[mid]);
-            prefixRight = computePrefix(current[mid + 1], right[rightSize - 1]);
+            //no key of the current node is moved to the right node if mid is the last index
+            long firstRight = (mid + 1 < currentSize) ? current[mid + 1] : right[0];
+            prefixRight = computePrefix(firstRight, right[rightSize - 1]);
             sizeLeft = computeArraySize(prefixLeft, (mid + 1 + leftSize), header, valueSize, childSize);
             sizeRight = computeArraySize(prefixRight, rightSize + (currentSize - mid - 1), header, valueSize, childSize);
             if (sizeLeft <= maxSize && sizeRight <= maxSize) {
@@ -20,8 +20,9 @@
  */
 package org.zoodb.internal.server.index.btree.unique;
 
+import java.util.Arrays;
+
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
-import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 
 /**
@@ -53,16 +54,37 @@ public class UniquePagedBTree extends PagedBTree {
 	 * @return corresponding value or null if key not found
 	 */
 	public Long search(long key) {
-		if (isEmpty()) {
+		if (!searchLeaf(key, NO_VALUE)) {
 			return null;
 		}
-		BTreeNode current = root;
+		return getSearchValue();
+	}
 
-		while (!current.isLeaf()) {
-			current = current.findChild(key, NO_VALUE);
-		}
+	/**
+	 * Retrieve the value corresponding to the key from the B+ tree. This 
+	 * does not allocate any objects.
+	 * 
+	 * @param key
+	 * @param missing The value that is returned if the key is not found.
+	 * @return corresponding value or {@code missing} if key not found
+	 */
+	public long search(long key, long missing) {
+		return searchLeaf(key, NO_VALUE) ? getSearchValue() : missing;
+	}
 
-        return findValue(current, key);
+	/**
+	 * Retrieve the values of a batch of keys, see 
+	 * {@link #searchAll(long[], long[], int, long[], boolean[])}.
+	 * 
+	 * @param keys The keys, the array is not modified.
+	 * @param values Receives the value of each key.
+	 * @param n The number of keys.
+	 * @param missing The value that is returned for keys that are not found.
+	 * @return The number of keys that have been found.
+	 */
+	public int search(long[] keys, long[] values, int n, long missing) {
+		Arrays.fill(values, 0, n, missing);
+		return searchAll(keys, null, n, values, null);
 	}
 
 	/**
@@ -84,24 +106,15 @@ public class UniquePagedBTree extends PagedBTree {
 		return deleteEntry(key, NO_VALUE);
 	}
 
-    /**
-     * Finds the long value corresponding to a key in a node.
-     * @param node          A leaf node
-     * @param key           A key
-     * @return              The value corresponding to the key
-     */
-	private Long findValue(BTreeNode node, long key) {
-		if (!node.isLeaf()) {
-			throw new IllegalStateException(
-					"Should only be called on leaf nodes.");
-		}
-		if (node.getNumKeys() > 0) {
-			int position = node.binarySearch(key, NO_VALUE);
-			if (position >= 0) {
-				return node.getValue(position);
-			}
-		}
-
-        return null;
+	/**
+	 * Delete the value corresponding to the key from the tree, if the key
+	 * exists. The tree is not modified if the key does not exist.
+	 * 
+	 * @param key The key to be deleted.
+	 * @param failValue The value that is returned if the key is not found.
+	 * @return The previous value or {@code failValue}.
+	 */
+	public long deleteNoFail(long key, long failValue) {
+		return deleteEntry(key, NO_VALUE, failValue);
 	}
 }
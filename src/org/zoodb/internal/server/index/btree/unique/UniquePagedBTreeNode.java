@@ -39,7 +39,7 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
 
     @Override
     public void initializeEntries() {
-        int size = computeMaxPossibleEntries(true, isLeaf(), pageSize, valueElementSize);
+        int size = INITIAL_CAPACITY;
         initKeys(size);
         if (!isLeaf()) {
             initChildren(size + 1);
@@ -69,6 +69,8 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
     @Override
     public void copyFromNodeToNode(int srcStartK, int srcStartC, BTreeNode destination, int destStartK, int destStartC, int keys, int children) {
         BTreeNode source = this;
+        destination.markChanged();
+        destination.ensureCapacity(destStartK + keys);
         System.arraycopy(source.getKeys(), srcStartK, destination.getKeys(), destStartK, keys);
         if (destination.isLeaf()) {
             System.arraycopy(source.getValues(), srcStartK, destination.getValues(), destStartK, keys);
@@ -165,7 +167,7 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
         if (isLeaf()) {
             return numKeys * getValueElementSize();
         } else {
-            return (numKeys + 1) << 2;
+            return (numKeys + 1) * getChildElementSize();
         }
     }
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.test.index2.btree;
+
+import org.zoodb.internal.server.index.btree.prefix.BitOperationsHelper;
+import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
+
+/**
+ * Reference implementation of the prefix sharing encoding that moves one 
+ * bit at a time. It is used to verify the encoding of 
+ * {@link PrefixSharingHelper} and to benchmark it.
+ */
+public class PrefixSharingPerBit {
+
+    /**
+     * Encodes the array one bit at a time, see 
+     * {@link PrefixSharingHelper#encodeArray(long[], int, long)}.
+     */
+    public static byte[] encodeArray(long[] array, int arrayLength, long prefix) {
+        int inputArrayIndex = 0;
+        int currentByte = 0;
+        int indexInCurrentByte = 0;
+
+        /* Compute the number of bits to be stored */
+        int outputArraySize = PrefixSharingHelper.encodedArraySize(arrayLength, prefix);
+
+        byte[] outputArray = new byte[outputArraySize];
+
+        /*Write the size of the array as an int - always 4 bytes */
+        outputArray[currentByte++] = (byte) (arrayLength >>> 24);
+        outputArray[currentByte++] = (byte) (arrayLength >>> 16);
+        outputArray[currentByte++] = (byte) (arrayLength >>> 8);
+        outputArray[currentByte++] = (byte) arrayLength;
+
+        /* Write the prefix size */
+        outputArray[currentByte++] = (byte) prefix;
+
+        long prefixBits;
+        if(arrayLength > 0) {
+            prefixBits = PrefixSharingHelper.prefixBits(prefix, array[0]);
+        } else {
+        	prefixBits = 0;
+        }
+        /* Encode the prefix*/
+        for (int i = (int) (prefix - 1); i >= 0; i--) {
+            long bitValue = BitOperationsHelper.getBitValue(prefixBits, i);
+            outputArray[currentByte] = BitOperationsHelper.setBitValue(outputArray[currentByte], indexInCurrentByte, bitValue);
+            indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
+            currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+        }
+
+        /* Perform the actual encoding */
+        while (inputArrayIndex < arrayLength) {
+            for (int i = (int) (63 - prefix); i >= 0; i--) {
+                long bitValue = BitOperationsHelper.getBitValue(array[inputArrayIndex], i);
+                outputArray[currentByte] = BitOperationsHelper.setBitValue(outputArray[currentByte], indexInCurrentByte, bitValue);
+                indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
+                currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+            }
+            inputArrayIndex++;
+        }
+        return outputArray;
+    }
+
+    /**
+     * Decodes the array one bit at a time, see 
+     * {@link PrefixSharingHelper#decodeArray(byte[], int, int, int, byte)}.
+     */
+    public static long[] decodeArray(byte[] encodedArray, int offset, int decodedArraySize, int newSize, byte prefixLength) {
+        int currentByte = offset;
+        long[] decodedArray = new long[newSize];
+        int indexInCurrentByte = 0;
+        long prefixBits = 0;
+        
+        /* Read prefix */
+        for (int i = prefixLength - 1; i >= 0; i--) {
+            long bitValue = BitOperationsHelper.getBitValue(encodedArray[currentByte], indexInCurrentByte);
+            prefixBits = BitOperationsHelper.setBitValue(prefixBits, i, bitValue);
+            indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
+            currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+        }
+
+        prefixBits = prefixBits << (64 - prefixLength);
+
+        for (int i = 0; i < decodedArraySize; i++) {
+            decodedArray[i] = prefixBits;
+            for (int j = 63 - prefixLength; j >= 0; j--) {
+                long bitValue = BitOperationsHelper.getBitValue(encodedArray[currentByte], indexInCurrentByte);
+                decodedArray[i] = BitOperationsHelper.setBitValue(decodedArray[i], j, bitValue);
+                indexInCurrentByte = increaseIndexInCurrentByte(indexInCurrentByte);
+                currentByte = updateCurrentByte(indexInCurrentByte, currentByte);
+            }
+        }
+
+        return decodedArray;
+    }
+
+    private static int increaseIndexInCurrentByte(int indexInCurrentByte) {
+        return (indexInCurrentByte == 7) ? 0 : indexInCurrentByte + 1;
+    }
+
+    private static int updateCurrentByte(int indexInCurrentByte, int currentByte) {
+        return (indexInCurrentByte == 0) ? currentByte + 1 : currentByte;
+    }
+}
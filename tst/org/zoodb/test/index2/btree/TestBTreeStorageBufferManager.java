@@ -29,6 +29,7 @@ import static org.junit.Assert.fail;
 import java.nio.BufferOverflowException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Before;
@@ -39,8 +40,14 @@ import org.zoodb.internal.server.StorageRootInMemory;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.btree.BTree;
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
 import org.zoodb.internal.server.index.btree.BTreeIterator;
+import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
+import org.zoodb.internal.server.index.btree.DirectPageImageCache;
+import org.zoodb.internal.server.index.btree.HeapPageImageCache;
+import org.zoodb.internal.server.index.btree.NodeArrayPool;
+import org.zoodb.internal.server.index.btree.PageImageCache;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 import org.zoodb.internal.server.index.btree.PagedBTreeNode;
 import org.zoodb.internal.server.index.btree.PagedBTreeNodeFactory;
@@ -249,7 +256,7 @@ public class TestBTreeStorageBufferManager {
 		assertEquals(1,bufferManager.getDirtyBuffer().size());
 		int rootPageId = tree.getRoot().getPageId();
 		assertFalse(storage.debugIsPageIdInFreeList(rootPageId));
-		pageIds.remove(rootPageId);
+		pageIds.remove(Integer.valueOf(rootPageId));
 		// check whether pages are freed
 		for(Integer pageId : pageIds) {
 			assertTrue(storage.debugIsPageIdInFreeList(pageId));
@@ -662,6 +669,544 @@ public class TestBTreeStorageBufferManager {
 		}
 	}
 	
+	@Test
+	public void testCacheEviction() {
+		int numEntries = 10000;
+		int maxCleanBufferElements = 20;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		int nCleanNodes = bufferManager.getCleanBuffer().size();
+		assertTrue(nCleanNodes > maxCleanBufferElements);
+
+		// shrinking the buffer evicts nodes instead of flushing the buffer
+		bufferManager.setMaxCleanBufferElements(maxCleanBufferElements);
+		assertEquals(maxCleanBufferElements, bufferManager.getCleanBuffer().size());
+		assertEquals(nCleanNodes - maxCleanBufferElements,
+				bufferManager.getStatNEvictedPages());
+
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+			assertTrue(bufferManager.getCleanBuffer().size() <= maxCleanBufferElements);
+		}
+		assertEquals(maxCleanBufferElements, bufferManager.getCleanBuffer().size());
+		assertTrue(bufferManager.getStatNEvictedPages() >= nCleanNodes - maxCleanBufferElements);
+	}
+
+	@Test
+	public void testPinInnerNodes() {
+		int numEntries = 100000;
+		bufferManager.setMaxPinnedInnerNodeBytes(Long.MAX_VALUE);
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+
+		List<PagedBTreeNode> innerNodes = new ArrayList<>();
+		BTreeIterator it = new BTreeIterator(tree);
+		while (it.hasNext()) {
+			PagedBTreeNode node = (PagedBTreeNode) it.next();
+			if (!node.isLeaf()) {
+				innerNodes.add(node);
+			}
+		}
+		assertFalse(innerNodes.isEmpty());
+		assertEquals(innerNodes.size(), bufferManager.getPinnedNodeCount());
+		long innerNodeBytes = 0;
+		for (PagedBTreeNode node : innerNodes) {
+			innerNodeBytes += node.computeHeapSize();
+		}
+		assertEquals(innerNodeBytes, bufferManager.getPinnedBytes());
+
+		// pinned nodes survive the eviction of all other nodes
+		bufferManager.setMaxCleanBufferElements(0);
+		assertEquals(innerNodes.size(), bufferManager.getCleanBuffer().size());
+		int nRead = bufferManager.getStatNReadPages();
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+		for (PagedBTreeNode node : innerNodes) {
+			assertEquals(node, bufferManager.getCleanBuffer().get(node.getPageId()));
+		}
+		assertTrue(bufferManager.getStatNReadPages() - nRead <= numEntries);
+
+		// releasing the budget makes the nodes evictable again
+		bufferManager.setMaxPinnedInnerNodeBytes(0);
+		assertEquals(0, bufferManager.getPinnedNodeCount());
+		assertEquals(0, bufferManager.getCleanBuffer().size());
+	}
+
+	@Test
+	public void testCacheByteBudget() {
+		int numEntries = 10000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		BTreeBufferPool pool = bufferManager.getBufferPool();
+		assertEquals(bufferManager.getCleanBuffer().size(), pool.size());
+		assertEquals(sumHeapSize(bufferManager), pool.getUsedBytes());
+		
+		// a leaf takes more heap than its page
+		PagedBTreeNode leaf = (PagedBTreeNode) tree.getRoot().getChild(0);
+		assertTrue(leaf.computeHeapSize() > pageSize);
+
+		long maxBytes = 10 * leaf.computeHeapSize();
+		bufferManager.setMaxCleanBufferBytes(maxBytes);
+		assertTrue(pool.getUsedBytes() <= maxBytes);
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+			assertTrue(pool.getUsedBytes() <= maxBytes);
+		}
+		assertEquals(sumHeapSize(bufferManager), pool.getUsedBytes());
+		assertTrue(bufferManager.getStatNEvictedPages() > 0);
+	}
+
+	private static long sumHeapSize(BTreeStorageBufferManager bufferManager) {
+		long bytes = 0;
+		for (PagedBTreeNode node : bufferManager.getCleanBuffer().values()) {
+			bytes += node.computeHeapSize();
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testPageImageCache() {
+		int numEntries = 10000;
+		bufferManager.setMaxPageImageCacheBytes(1 << 24);
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		PageImageCache imageCache = bufferManager.getPageImageCache();
+		assertEquals(bufferManager.getCleanBuffer().size(), imageCache.size());
+
+		// a page image is much smaller than the decoded node
+		PagedBTreeNode leaf = (PagedBTreeNode) tree.getRoot().getChild(0);
+		byte[] image = imageCache.get(bufferManager.getPageImageCacheOwner(), 
+				leaf.getPageId());
+		assertTrue(image.length <= pageSize);
+		assertTrue(image.length < leaf.computeHeapSize());
+
+		// evict all nodes, they are decoded from the images
+		bufferManager.setMaxCleanBufferElements(0);
+		int nReadPages = bufferManager.getStatNReadPages();
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+		assertEquals(nReadPages, bufferManager.getStatNReadPages());
+		assertTrue(imageCache.getStatNHits() > 0);
+
+		// images of modified nodes are removed
+		tree.insert(entries.get(0).getKey(), 1234);
+		tree.write(out);
+		assertEquals(Long.valueOf(1234), tree.search(entries.get(0).getKey()));
+		bufferManager.setMaxPageImageCacheBytes(0);
+		assertEquals(null, bufferManager.getPageImageCache());
+		for (LLEntry entry : entries.subList(1, entries.size())) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void testSearchLeafImage() {
+		int numEntries = 10000;
+		bufferManager.setMaxPageImageCacheBytes(1 << 24);
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		int rootPageId = tree.getRoot().getPageId();
+
+		// load the tree again, only the images are in memory
+		bufferManager.setMaxCleanBufferElements(0);
+		bufferManager.setMaxCleanBufferElements(-1);
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager.read(rootPageId);
+		tree = new UniquePagedBTree(root, pageSize, bufferManager);
+		int nReadPages = bufferManager.getStatNReadPages();
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+			assertEquals(null, tree.search(entry.getKey() + numEntries * 10));
+		}
+		assertEquals(nReadPages, bufferManager.getStatNReadPages());
+		// the leaves have not been decoded
+		for (PagedBTreeNode node : bufferManager.getCleanBuffer().values()) {
+			assertFalse(node.isLeaf());
+		}
+
+		// images that are not cached are read, the leaves are not decoded
+		bufferManager.getPageImageCache().clear(bufferManager.getPageImageCacheOwner());
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+		assertTrue(bufferManager.getStatNReadPages() > nReadPages);
+		for (PagedBTreeNode node : bufferManager.getCleanBuffer().values()) {
+			assertFalse(node.isLeaf());
+		}
+
+		// modified leaves are searched in memory
+		tree.insert(entries.get(0).getKey(), 1234);
+		assertEquals(Long.valueOf(1234), tree.search(entries.get(0).getKey()));
+		tree.write(out);
+		bufferManager.setMaxCleanBufferElements(0);
+		assertEquals(Long.valueOf(1234), tree.search(entries.get(0).getKey()));
+	}
+
+	@Test
+	public void testSearchLeafImageNonUnique() {
+        final int MAX = 1000;
+		BTreeStorageBufferManager bufferManager = 
+				new BTreeStorageBufferManager(storage.createChannel(), false);
+		bufferManager.setMaxPageImageCacheBytes(1 << 24);
+        NonUniquePagedBTree tree = new NonUniquePagedBTree(pageSize, bufferManager);
+        for (int j = 0; j < 10; j++) {
+	        for (int i = 1000; i < 1000+MAX; i++) {
+	            tree.insert(i, 32+i*j);
+	        }
+        }
+        tree.write(out);
+
+		bufferManager.setMaxCleanBufferElements(0);
+		bufferManager.setMaxCleanBufferElements(-1);
+		NonUniquePagedBTreeNode root = (NonUniquePagedBTreeNode) bufferManager.read(
+				tree.getRoot().getPageId());
+		tree = new NonUniquePagedBTree(root, pageSize, bufferManager);
+		int nHits = bufferManager.getPageImageCache().getStatNHits();
+        for (int j = 0; j < 10; j++) {
+	        for (int i = 1000; i < 1000+MAX; i++) {
+	            assertTrue(tree.contains(i, 32+i*j));
+	            assertFalse(tree.contains(i, 33+i*j));
+	        }
+        }
+        assertTrue(bufferManager.getPageImageCache().getStatNHits() > nHits);
+		for (PagedBTreeNode node : bufferManager.getCleanBuffer().values()) {
+			assertFalse(node.isLeaf());
+		}
+	}
+
+	@Test
+	public void testSharedPageImageCache() {
+		int numEntries = 1000;
+		HeapPageImageCache imageCache = new HeapPageImageCache(1 << 24);
+		BTreeStorageBufferManager bufferManager2 = 
+				new BTreeStorageBufferManager(storage.createChannel(), true);
+		bufferManager.setPageImageCache(imageCache);
+		bufferManager2.setPageImageCache(imageCache);
+		UniquePagedBTree tree = (UniquePagedBTree) new BTreeFactory(bufferManager, true).getTree();
+		UniquePagedBTree tree2 = (UniquePagedBTree) new BTreeFactory(bufferManager2, true).getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+			tree2.insert(entry.getKey(), entry.getValue() + 1);
+		}
+		tree.write(out);
+		tree2.write(out);
+		int nImages2 = bufferManager2.getCleanBuffer().size();
+		assertEquals(bufferManager.getCleanBuffer().size() + nImages2, imageCache.size());
+
+		// closing one buffer manager keeps the images of the other one
+		bufferManager.close();
+		assertEquals(nImages2, imageCache.size());
+		for (Integer pageId : getPageIds(tree2)) {
+			assertTrue(imageCache.contains(bufferManager2.getPageImageCacheOwner(), pageId));
+		}
+		bufferManager2.setMaxCleanBufferElements(0);
+		int nReadPages = bufferManager2.getStatNReadPages();
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue() + 1), tree2.search(entry.getKey()));
+		}
+		assertEquals(nReadPages, bufferManager2.getStatNReadPages());
+
+		bufferManager2.setPageImageCache(null);
+		assertEquals(0, imageCache.size());
+	}
+
+	@Test
+	public void testDirectPageImageCache() {
+		int numEntries = 10000;
+		int maxImages = 20;
+		DirectPageImageCache imageCache = 
+				new DirectPageImageCache(maxImages * pageSize, pageSize);
+		bufferManager.setPageImageCache(imageCache);
+		bufferManager.setMaxCleanBufferElements(0);
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		assertEquals(maxImages, imageCache.size());
+		assertTrue(imageCache.getAllocatedBytes() <= imageCache.getMaxBytes());
+
+		// images that are evicted are read from storage again
+		List<Integer> pageIds = getPageIds(tree);
+		int nReadPages = bufferManager.getStatNReadPages();
+		for (Integer pageId : pageIds) {
+			PagedBTreeNode node = bufferManager.read(pageId);
+			assertEquals((int) pageId, node.getPageId());
+			assertTrue(imageCache.getUsedBytes() <= imageCache.getMaxBytes());
+		}
+		assertTrue(imageCache.getStatNHits() > 0);
+		assertTrue(bufferManager.getStatNReadPages() - nReadPages < pageIds.size());
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+		assertTrue(imageCache.getStatNEvicted() > 0);
+		assertTrue(imageCache.getAllocatedBytes() <= imageCache.getMaxBytes());
+
+		imageCache.clear();
+		assertEquals(0, imageCache.getAllocatedBytes());
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void testNodeArrayPool() {
+		int numEntries = 10000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		int rootPageId = tree.getRoot().getPageId();
+		bufferManager.setMaxCleanBufferElements(5);
+
+		// the arrays of evicted nodes are reused once the nodes are unreachable
+		NodeArrayPool arrayPool = bufferManager.getNodeArrayPool();
+		List<Integer> pageIds = getPageIds(tree);
+		tree = null;
+		for (int i = 0; i < 10 && arrayPool.getStatNReused() == 0; i++) {
+			System.gc();
+			for (Integer pageId : pageIds) {
+				bufferManager.read(pageId);
+			}
+		}
+		assertTrue(arrayPool.getStatNReused() > 0);
+
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager.read(rootPageId);
+		tree = new UniquePagedBTree(root, pageSize, bufferManager);
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void testNodeArrayPoolUntrack() {
+		int numEntries = 10000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		long minKey = Long.MAX_VALUE;
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+			minKey = Math.min(minKey, entry.getKey());
+		}
+		tree.write(out);
+
+		// keep all nodes reachable, so that none of them is collected
+		List<PagedBTreeNode> nodes = new ArrayList<PagedBTreeNode>();
+		BTreeIterator it = new BTreeIterator(tree);
+		while (it.hasNext()) {
+			nodes.add((PagedBTreeNode) it.next());
+		}
+		List<PagedBTreeNode> path = new ArrayList<PagedBTreeNode>();
+		BTreeNode node = tree.getRoot();
+		path.add((PagedBTreeNode) node);
+		while (!node.isLeaf()) {
+			node = node.getChild(0);
+			path.add((PagedBTreeNode) node);
+		}
+		NodeArrayPool arrayPool = bufferManager.getNodeArrayPool();
+		bufferManager.setMaxCleanBufferElements(0);
+		int nTracked = arrayPool.getNTrackedNodes();
+		int nPathTracked = 0;
+		for (PagedBTreeNode n : path) {
+			if (bufferManager.getCleanBuffer().get(n.getPageId()) != n) {
+				nPathTracked++;
+			}
+		}
+		assertTrue(nPathTracked > 0);
+
+		// evicted nodes that are modified through their parent are not
+		// tracked anymore
+		tree.insert(minKey - 1, 1);
+		for (PagedBTreeNode n : path) {
+			assertTrue(n.isDirty());
+		}
+		assertEquals(nTracked - nPathTracked, arrayPool.getNTrackedNodes());
+
+		// they are tracked again when they are evicted after writing
+		tree.write(out);
+		assertTrue(arrayPool.getNTrackedNodes() >= nTracked);
+		assertFalse(nodes.isEmpty());
+	}
+
+	@Test
+	public void testRightSizedNodeArrays() {
+		int numEntries = 10000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		int rootPageId = tree.getRoot().getPageId();
+		List<Integer> pageIds = getPageIds(tree);
+
+		// nodes that are read from storage are sized for their keys
+		bufferManager.setMaxCleanBufferElements(0);
+		for (Integer pageId : pageIds) {
+			PagedBTreeNode node = bufferManager.read(pageId);
+			int numKeys = node.getNumKeys();
+			assertTrue(node.getKeys().length >= numKeys);
+			assertTrue(node.getKeys().length <= Math.max(8, numKeys + numKeys / 4 + 1));
+			if (node.isLeaf()) {
+				assertEquals(node.getKeys().length, node.getValues().length);
+			} else {
+				assertTrue(node.getKeys().length < node.computeMaxPossibleEntries());
+				assertEquals(node.getKeys().length + 1, node.getChildrenPageIds().length);
+			}
+		}
+
+		// the arrays grow when the nodes are modified
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager.read(rootPageId);
+		tree = new UniquePagedBTree(root, pageSize, bufferManager);
+		HashSet<Long> keys = new HashSet<>();
+		for (LLEntry entry : entries) {
+			keys.add(entry.getKey());
+		}
+		List<LLEntry> moreEntries = new ArrayList<>();
+		for (LLEntry entry : BTreeTestUtils.randomUniqueEntries(numEntries, 43)) {
+			if (keys.add(entry.getKey())) {
+				tree.insert(entry.getKey(), entry.getValue());
+				moreEntries.add(entry);
+			}
+		}
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+		for (LLEntry entry : moreEntries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+	}
+
+	@Test
+	public void testRemoveRange() {
+		int numEntries = 100000;
+		long min = 20000;
+		long max = 80000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		for (int i = 0; i < numEntries; i++) {
+			tree.insert(i, 32+i);
+		}
+		tree.write(out);
+
+		List<Integer> coveredPageIds = new ArrayList<>();
+		BTreeIterator it = new BTreeIterator(tree);
+		while (it.hasNext()) {
+			PagedBTreeNode node = (PagedBTreeNode) it.next();
+			if (node.isLeaf() && node.getSmallestKey() >= min && node.getLargestKey() <= max) {
+				coveredPageIds.add(node.getPageId());
+			}
+		}
+		assertTrue(coveredPageIds.size() > 100);
+
+		// the leaves inside the range are freed without reading them
+		bufferManager.setMaxCleanBufferElements(0);
+		int nRead = bufferManager.getStatNReadPages();
+		tree.removeRange(min, max);
+		assertTrue(bufferManager.getStatNReadPages() - nRead < 20);
+		tree.write(out);
+		for (Integer pageId : coveredPageIds) {
+			assertTrue(storage.debugIsPageIdInFreeList(pageId));
+		}
+
+		for (int i = 0; i < numEntries; i++) {
+			if (i < min || i > max) {
+				assertEquals(Long.valueOf(32+i), tree.search(i));
+			} else {
+				assertEquals(null, tree.search(i));
+			}
+		}
+	}
+
+	@Test
+	public void testSharedBufferPool() {
+		int numEntries = 10000;
+		int maxPoolElements = 10;
+		BTreeBufferPool pool = new BTreeBufferPool();
+		BTreeStorageBufferManager bufferManager2 = 
+				new BTreeStorageBufferManager(storage.createChannel(), true);
+		bufferManager.setBufferPool(pool);
+		bufferManager2.setBufferPool(pool);
+		UniquePagedBTree tree = (UniquePagedBTree) new BTreeFactory(bufferManager, true).getTree();
+		UniquePagedBTree tree2 = (UniquePagedBTree) new BTreeFactory(bufferManager2, true).getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries, 42);
+
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+			tree2.insert(entry.getKey(), entry.getValue());
+		}
+		tree2.write(out);
+		tree.write(out);
+		// collect the page ids while all nodes are in the pool. Evicted 
+		// nodes stay reachable from their parents until they are garbage 
+		// collected, so walking a limited tree would depend on the GC.
+		List<Integer> pageIds2 = getPageIds(tree2);
+		assertTrue(pageIds2.size() > 2 * maxPoolElements);
+		pool.setMaxElements(maxPoolElements);
+		assertEquals(maxPoolElements, pool.size());
+		assertEquals(maxPoolElements, bufferManager.getCleanBuffer().size()
+				+ bufferManager2.getCleanBuffer().size());
+
+		// only the second tree is used, it takes over the whole pool
+		for (Integer pageId : pageIds2) {
+			bufferManager2.read(pageId);
+			assertTrue(pool.size() <= maxPoolElements);
+		}
+		assertEquals(0, bufferManager.getCleanBuffer().size());
+		assertEquals(maxPoolElements, bufferManager2.getCleanBuffer().size());
+		assertEquals(pool.getStatNEvictedPages(), 
+				bufferManager.getStatNEvictedPages() + bufferManager2.getStatNEvictedPages());
+	}
+
     private PagedBTreeNode getTestEmptyLeaf(BTreeStorageBufferManager bufferManager) {
 		PagedBTreeNode leaf = new UniquePagedBTreeNode(bufferManager,
 				bufferManager.getPageSize(), true, true);
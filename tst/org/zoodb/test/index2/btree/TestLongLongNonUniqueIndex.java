@@ -26,12 +26,15 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.jdo.JDOUserException;
 
@@ -87,6 +90,134 @@ public class TestLongLongNonUniqueIndex {
     	return ind; 
     }
     
+    @Test
+    public void testBulkLoad() {
+        final int MAX = 100000;
+        final int DUPLICATES = 10;
+        List<LLEntry> entries = new ArrayList<>();
+        for (int i = 1000; i < 1000+MAX; i++) {
+            entries.add(new LLEntry(i / DUPLICATES, 32+i));
+        }
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex(paf);
+        ind.bulkLoad(entries.iterator(), 0.9, paf.createWriter(false));
+
+        Iterator<LLEntry> it = ind.iterator();
+        for (LLEntry e : entries) {
+            LLEntry e2 = it.next();
+            assertEquals(e.getKey(), e2.getKey());
+            assertEquals(e.getValue(), e2.getValue());
+        }
+        assertFalse(it.hasNext());
+        for (int i = 1000; i < 1000+MAX; i += DUPLICATES) {
+            Iterator<LLEntry> it2 = ind.iterator(i / DUPLICATES, i / DUPLICATES);
+            for (int j = 0; j < DUPLICATES; j++) {
+                assertEquals(32+i+j, it2.next().getValue());
+            }
+            assertFalse(it2.hasNext());
+        }
+
+        // the index can be modified as usual
+        for (LLEntry e : entries) {
+            ind.removeLong(e.getKey(), e.getValue());
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testInsertAll() {
+        final int BATCH = 10000;
+        Random rnd = new Random(42);
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex();
+        TreeSet<Long> set = new TreeSet<>();
+        long[] keys = new long[BATCH];
+        long[] values = new long[BATCH];
+        for (int b = 0; b < 10; b++) {
+            // the batches contain duplicate keys and duplicate entries
+            for (int i = 0; i < BATCH; i++) {
+                keys[i] = rnd.nextInt(1000);
+                values[i] = rnd.nextInt(100);
+                set.add(keys[i] * 100 + values[i]);
+            }
+            ind.insertAll(keys, values, BATCH);
+            Iterator<LLEntry> it = ind.iterator();
+            for (Long keyValue : set) {
+                LLEntry e = it.next();
+                assertEquals(keyValue / 100, e.getKey());
+                assertEquals(keyValue % 100, e.getValue());
+            }
+            assertFalse(it.hasNext());
+        }
+
+        // the index can be modified as usual
+        for (Long keyValue : set) {
+            ind.removeLong(keyValue / 100, keyValue % 100);
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testRemoveRange() {
+        Random rnd = new Random(42);
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex();
+        TreeSet<Long> set = new TreeSet<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = rnd.nextInt(10000);
+            long value = rnd.nextInt(100);
+            ind.insertLong(key, value);
+            set.add(key * 100 + value);
+        }
+
+        for (int r = 0; r < 50; r++) {
+            long min = rnd.nextInt(10000);
+            long max = min + rnd.nextInt(r % 2 == 0 ? 10 : 1000);
+            ind.removeRange(min, max);
+            set.subSet(min * 100, max * 100 + 100).clear();
+            Iterator<LLEntry> it = ind.iterator();
+            for (Long keyValue : set) {
+                LLEntry e = it.next();
+                assertEquals(keyValue / 100, e.getKey());
+                assertEquals(keyValue % 100, e.getValue());
+            }
+            assertFalse(it.hasNext());
+        }
+
+        // the index can be modified as usual
+        for (Long keyValue : set) {
+            ind.removeLong(keyValue / 100, keyValue % 100);
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testContainsBatch() {
+        final int N = 20000;
+        Random rnd = new Random(42);
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex();
+        TreeSet<Long> set = new TreeSet<>();
+        for (int i = 0; i < 50000; i++) {
+            long key = rnd.nextInt(10000);
+            long value = rnd.nextInt(100);
+            ind.insertLong(key, value);
+            set.add(key * 100 + value);
+        }
+        long[] keys = new long[N];
+        long[] values = new long[N];
+        boolean[] found = new boolean[N];
+        int nExpected = 0;
+        for (int i = 0; i < N; i++) {
+            keys[i] = rnd.nextInt(10000);
+            values[i] = rnd.nextInt(100);
+            if (set.contains(keys[i] * 100 + values[i])) {
+                nExpected++;
+            }
+        }
+        assertEquals(nExpected, ind.contains(keys, values, N, found));
+        for (int i = 0; i < N; i++) {
+            assertEquals(set.contains(keys[i] * 100 + values[i]), found[i]);
+        }
+    }
+
     @Test
     public void testAddWithMockStrongCheck() {
         final int MAX = 5000;
@@ -940,6 +1071,67 @@ public class TestLongLongNonUniqueIndex {
         assertFalse(it2.hasNext());
     }
 
+    @Test
+    public void testInsertIncreasing() {
+        final int MAX = 100000;
+        LongLongIndex ind = createIndex();
+        // keys and values of the same key increase
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(1000 + i/3, i);
+        }
+        // values that are smaller than the largest value of the largest key
+        long maxKey = 1000 + (MAX-1)/3;
+        ind.insertLong(maxKey, -1);
+        ind.insertLong(maxKey, MAX-2);
+        Iterator<LLEntry> it = ind.iterator();
+        for (int i = 0; i < MAX-1; i++) {
+            LLEntry e = it.next();
+            assertEquals(1000 + i/3, e.getKey());
+            assertEquals(i, e.getValue());
+        }
+        long[] lastValues = {-1, MAX-2, MAX-1};
+        for (long v : lastValues) {
+            LLEntry e = it.next();
+            assertEquals(maxKey, e.getKey());
+            assertEquals(v, e.getValue());
+        }
+        assertFalse(it.hasNext());
+        assertEquals(maxKey, ind.getMaxKey());
+    }
+
+    @Test
+    public void testClusteredInsertRemove() {
+        final int MAX = 100000;
+        Random rnd = new Random(42);
+        LongLongIndex ind = createIndex();
+        TreeSet<LLEntry> set = new TreeSet<>(
+                (e1, e2) -> e1.getKey() != e2.getKey() 
+                        ? Long.compare(e1.getKey(), e2.getKey()) 
+                        : Long.compare(e1.getValue(), e2.getValue()));
+        for (int i = 0; i < MAX; i++) {
+            // bursts of entries that are close to each other
+            long key = rnd.nextInt(MAX / 10);
+            for (int j = 0; j < 20; j++, i++) {
+                LLEntry e = new LLEntry(key + rnd.nextInt(3), rnd.nextInt(100));
+                if (rnd.nextInt(3) == 0) {
+                    if (set.remove(e)) {
+                        assertEquals(e.getValue(), ind.removeLong(e.getKey(), e.getValue()));
+                    }
+                } else {
+                    ind.insertLong(e.getKey(), e.getValue());
+                    set.add(e);
+                }
+            }
+        }
+        Iterator<LLEntry> it = ind.iterator();
+        for (LLEntry e : set) {
+            LLEntry e2 = it.next();
+            assertEquals(e.getKey(), e2.getKey());
+            assertEquals(e.getValue(), e2.getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
     @Test
     public void testSpaceUsageKey() {
         final int MAX = 1000000;
@@ -1016,6 +1208,73 @@ public class TestLongLongNonUniqueIndex {
     }
     
     
+    @Test
+    public void testSize() {
+        final int MAX = 30000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexNonUnique ind = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, paf);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i % 100, i);
+            ind.insertLong(i % 100, i);
+        }
+        assertEquals(MAX, ind.size());
+
+        int root = ind.write(paf.createWriter(false));
+        BTreeIndexNonUnique ind2 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        assertEquals(MAX, ind2.getTree().getRoot().getNumEntriesInTree());
+        assertEquals(MAX, ind2.size());
+
+        for (int i = 0; i < MAX; i += 3) {
+            ind2.removeLong(i % 100, i);
+        }
+        assertEquals(MAX - MAX/3, ind2.size());
+    }
+
+    @Test
+    public void testRankAndSelect() {
+        rankAndSelect(false);
+    }
+
+    @Test
+    public void testRankAndSelectWithStoredCounts() {
+        rankAndSelect(true);
+    }
+
+    private void rankAndSelect(boolean storeChildCounts) {
+        final int MAX = 30000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexNonUnique ind = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, paf);
+        ind.setStoreChildCounts(storeChildCounts);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i % 100, i);
+        }
+        for (int k = 0; k < 100; k++) {
+            assertEquals(MAX / 100, ind.countInRange(k, k));
+            assertEquals(k * (MAX / 100), ind.rank(k));
+        }
+        for (int i = 0; i < MAX; i += 11) {
+            LLEntry e = ind.select(i);
+            assertEquals(i / (MAX / 100), e.getKey());
+            assertEquals(i % (MAX / 100) * 100 + e.getKey(), e.getValue());
+        }
+
+        // remove all entries of the keys 10 to 19
+        for (int i = 0; i < MAX; i++) {
+            if (i % 100 >= 10 && i % 100 < 20) {
+                ind.removeLong(i % 100, i);
+            }
+        }
+        for (int r = 0; r < 2; r++) {
+            assertEquals(0, ind.countInRange(10, 19));
+            assertEquals(MAX / 10, ind.countInRange(5, 24));
+            assertEquals(20 * (MAX / 100), ind.rank(30));
+            assertEquals(20, ind.select(10 * (MAX / 100)).getKey());
+
+            int root = ind.write(paf.createWriter(false));
+            ind = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        }
+    }
+
     @Test
     public void testClear() {
     	LongLongIndex ind = createIndex();
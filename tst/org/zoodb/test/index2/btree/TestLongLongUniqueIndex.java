@@ -27,12 +27,17 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
 
 import javax.jdo.JDOUserException;
 
@@ -47,6 +52,13 @@ import org.zoodb.internal.server.index.IndexFactory;
 import org.zoodb.internal.server.index.LongLongIndex;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.LongLongIndex.LongLongUIndex;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
+import org.zoodb.internal.server.index.btree.BTreeIterator;
+import org.zoodb.internal.server.index.btree.BTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.BTreeNode;
+import org.zoodb.internal.server.index.btree.BTreeSnapshot;
+import org.zoodb.internal.server.index.btree.BTreeSpliterator;
+import org.zoodb.internal.server.index.btree.PagedBTreeNode;
 import org.zoodb.internal.util.CloseableIterator;
 import org.zoodb.tools.ZooConfig;
 
@@ -818,6 +830,1097 @@ public class TestLongLongUniqueIndex {
         
     }
 
+    @Test
+    public void testSharedBufferPool() {
+        final int MAX = 10000;
+        BTreeBufferPool pool = new BTreeBufferPool();
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, pool);
+        BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, pool);
+        for (int i = 0; i < MAX; i++) {
+            ind1.insertLong(i, i);
+            ind2.insertLong(i, i);
+        }
+        int root1 = ind1.write(paf.createWriter(false));
+        ind2.write(paf.createWriter(false));
+        int n1 = ind1.getBufferManager().getCleanBuffer().size();
+        int n2 = ind2.getBufferManager().getCleanBuffer().size();
+        assertTrue(n1 > 0);
+        assertEquals(n1 + n2, pool.size());
+
+        // a closed index leaves the pool
+        ind1.close();
+        assertEquals(n2, pool.size());
+
+        // a dropped index leaves the pool
+        ind2.clear();
+        assertEquals(0, pool.size());
+
+        // a loaded index uses the pool again
+        ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root1, pool);
+        for (int i = 0; i < MAX; i++) {
+            assertEquals(i, ind1.findValue(i).getValue());
+        }
+        assertEquals(ind1.getBufferManager().getCleanBuffer().size(), pool.size());
+        ind1.close();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testBulkLoad() {
+        final int MAX = 100000;
+        List<LLEntry> entries = new ArrayList<>();
+        for (int i = 1000; i < 1000+MAX; i++) {
+            entries.add(new LLEntry(i, 32+i));
+        }
+        BTreeIndexUnique inserted = (BTreeIndexUnique) createIndex();
+        for (LLEntry e : entries) {
+            inserted.insertLong(e.getKey(), e.getValue());
+        }
+
+        for (double fillFactor : new double[] {1.0, 0.8, 0.5}) {
+            IOResourceProvider paf = createPageAccessFile();
+            BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+            ind.bulkLoad(entries.iterator(), fillFactor, paf.createWriter(false));
+            if (fillFactor == 1.0) {
+                assertTrue(ind.statsGetLeavesN() <= inserted.statsGetLeavesN());
+            }
+            assertEquals(1000+MAX-1, ind.getMaxKey());
+            for (int i = 1000; i < 1000+MAX; i++) {
+                assertEquals(32+i, ind.findValue(i).getValue());
+            }
+            Iterator<LLEntry> it = ind.iterator();
+            for (LLEntry e : entries) {
+                assertEquals(e.getKey(), it.next().getKey());
+            }
+            assertFalse(it.hasNext());
+
+            // the index can be modified as usual
+            for (int i = 1000; i < 1000+MAX; i += 2) {
+                ind.removeLong(i);
+            }
+            for (int i = 1000+MAX; i < 1000+2*MAX; i += 2) {
+                ind.insertLong(i, 32+i);
+            }
+            for (int i = 1000; i < 1000+2*MAX; i++) {
+                LLEntry e = ind.findValue(i);
+                if ((i < 1000+MAX) == (i % 2 == 1)) {
+                    assertEquals(32+i, e.getValue());
+                } else {
+                    assertNull(e);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInsertAll() {
+        final int BATCH = 10000;
+        Random rnd = new Random(42);
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        TreeMap<Long, Long> map = new TreeMap<>();
+        long[] keys = new long[BATCH];
+        long[] values = new long[BATCH];
+        for (int b = 0; b < 10; b++) {
+            // the batches overlap and contain duplicate keys
+            for (int i = 0; i < BATCH; i++) {
+                keys[i] = rnd.nextInt(50000);
+                values[i] = rnd.nextLong();
+                map.put(keys[i], values[i]);
+            }
+            ind.insertAll(keys, values, BATCH);
+            Iterator<LLEntry> it = ind.iterator();
+            for (Long key : map.keySet()) {
+                LLEntry e = it.next();
+                assertEquals((long) key, e.getKey());
+                assertEquals((long) map.get(key), e.getValue());
+            }
+            assertFalse(it.hasNext());
+        }
+
+        // the index can be modified as usual
+        for (Long key : map.keySet()) {
+            assertEquals((long) map.get(key), ind.removeLong(key));
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testRemoveRange() {
+        final int MAX = 100000;
+        Random rnd = new Random(42);
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        TreeMap<Long, Long> map = new TreeMap<>();
+        for (int i = 1000; i < 1000+MAX; i++) {
+            ind.insertLong(i, 32+i);
+            map.put((long) i, 32L+i);
+        }
+        // empty ranges do not change the index
+        ind.removeRange(0, 999);
+        ind.removeRange(1000+MAX, Long.MAX_VALUE);
+        assertEquals(MAX, map.size());
+
+        for (int r = 0; r < 50; r++) {
+            long min = 1000 + rnd.nextInt(MAX);
+            long max = min + rnd.nextInt(r % 2 == 0 ? 100 : 10000);
+            ind.removeRange(min, max);
+            map.subMap(min, true, max, true).clear();
+            Iterator<LLEntry> it = ind.iterator();
+            for (Long key : map.keySet()) {
+                LLEntry e = it.next();
+                assertEquals((long) key, e.getKey());
+                assertEquals((long) map.get(key), e.getValue());
+            }
+            assertFalse(it.hasNext());
+            assertEquals((long) map.lastKey(), ind.getMaxKey());
+            assertEquals(map.size(), ind.getTree().getRoot().getNumEntriesInTree());
+        }
+
+        // the index can be modified as usual
+        for (int i = 1000; i < 1000+MAX; i++) {
+            assertEquals(map.containsKey((long) i), ind.insertLongIfNotSet(i, 32+i) == false);
+        }
+        for (int i = 1000; i < 1000+MAX; i++) {
+            assertEquals(32+i, ind.findValue(i).getValue());
+        }
+
+        // remove everything
+        ind.removeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertFalse(ind.iterator().hasNext());
+        assertEquals(0, ind.statsGetInnerN());
+        ind.insertLong(5, 6);
+        assertEquals(6, ind.findValue(5).getValue());
+    }
+
+    @Test
+    public void testFindValues() {
+        final int MAX = 100000;
+        final int N = 20000;
+        Random rnd = new Random(42);
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        for (int i = 1000; i < 1000+MAX; i += 2) {
+            ind.insertLong(i, 32+i);
+        }
+        long[] keys = new long[N];
+        long[] values = new long[N];
+        // unsorted probes with duplicates, sorted probes
+        for (int r = 0; r < 2; r++) {
+            int nExpected = 0;
+            for (int i = 0; i < N; i++) {
+                keys[i] = r == 0 ? rnd.nextInt(MAX + 2000) : 500 + i * 7;
+                if (ind.findValue(keys[i]) != null) {
+                    nExpected++;
+                }
+            }
+            assertEquals(nExpected, ind.findValues(keys, values, N, -1));
+            for (int i = 0; i < N; i++) {
+                LLEntry e = ind.findValue(keys[i]);
+                assertEquals(e == null ? -1 : e.getValue(), values[i]);
+            }
+        }
+
+        // only the first n keys are searched
+        values[1] = 5;
+        assertEquals(0, ind.findValues(new long[] {0, 1002}, values, 1, -1));
+        assertEquals(-1, values[0]);
+        assertEquals(5, values[1]);
+        assertEquals(0, ((BTreeIndexUnique) createIndex()).findValues(keys, values, N, -1));
+    }
+
+    @Test
+    public void testFindValueOrDefault() {
+        final int MAX = 10000;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        assertEquals(-1, ind.findValueOrDefault(5, -1));
+        for (int i = 1000; i < 1000+MAX; i += 2) {
+            ind.insertLong(i, 32+i);
+        }
+        for (int i = 0; i < 2000+MAX; i++) {
+            long expected = (i >= 1000 && i < 1000+MAX && i % 2 == 0) ? 32+i : -1;
+            assertEquals(expected, ind.findValueOrDefault(i, -1));
+        }
+        // the default may be any value
+        assertEquals(Long.MIN_VALUE, ind.findValueOrDefault(1001, Long.MIN_VALUE));
+        ind.insertLong(Long.MIN_VALUE, 5);
+        ind.insertLong(7, Long.MIN_VALUE);
+        assertEquals(5, ind.findValueOrDefault(Long.MIN_VALUE, -1));
+        assertEquals(Long.MIN_VALUE, ind.findValueOrDefault(7, -1));
+        assertEquals(Long.MIN_VALUE, ind.findValue(7).getValue());
+    }
+
+    @Test
+    public void testRemoveLongNoFail() {
+        final int MAX = 10000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        assertEquals(-1, ind.removeLongNoFail(5, -1));
+        for (int i = 1000; i < 1000+MAX; i += 2) {
+            ind.insertLong(i, 32+i);
+        }
+        ind.write(paf.createWriter(false));
+
+        // missing keys neither remove their neighbours nor modify the tree
+        for (int i = 0; i < 2000+MAX; i++) {
+            if (i < 1000 || i >= 1000+MAX || i % 2 == 1) {
+                assertEquals(-1, ind.removeLongNoFail(i, -1));
+            }
+        }
+        assertFalse(((PagedBTreeNode) ind.getTree().getRoot()).isDirty());
+        Iterator<LLEntry> it = ind.iterator();
+        for (int i = 1000; i < 1000+MAX; i += 2) {
+            assertEquals(i, it.next().getKey());
+        }
+        assertFalse(it.hasNext());
+
+        for (int i = 1000; i < 1000+MAX; i += 2) {
+            assertEquals(32+i, ind.removeLongNoFail(i, -1));
+            assertEquals(-1, ind.removeLongNoFail(i, -1));
+            assertNull(ind.findValue(i));
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testInsertIncreasing() {
+        final int MAX = 100000;
+        List<LLEntry> entries = new ArrayList<>();
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(1000 + 3*i, i);
+            entries.add(new LLEntry(1000 + 3*i, i));
+            // written nodes must not be appended to
+            if (i % 10000 == 0) {
+                ind.write(paf.createWriter(false));
+            }
+        }
+        // the leaves are filled like in a bulk load
+        BTreeIndexUnique loaded = (BTreeIndexUnique) createIndex();
+        loaded.bulkLoad(entries.iterator(), 1.0, null);
+        assertTrue(ind.statsGetLeavesN() <= loaded.statsGetLeavesN() + 1);
+        assertEquals(1000 + 3*(MAX-1), ind.getMaxKey());
+
+        // the index can be modified as usual
+        for (int i = 0; i < MAX; i += 2) {
+            ind.insertLong(1000 + 3*i + 1, -i);
+            ind.removeLong(1000 + 3*i);
+        }
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(1000 + 3*MAX + i, i);
+        }
+        Iterator<LLEntry> it = ind.iterator();
+        for (int i = 0; i < MAX; i++) {
+            LLEntry e = it.next();
+            assertEquals(1000 + 3*i + (i % 2 == 0 ? 1 : 0), e.getKey());
+            assertEquals(i % 2 == 0 ? -i : i, e.getValue());
+        }
+        for (int i = 0; i < MAX; i++) {
+            assertEquals(1000 + 3*MAX + i, it.next().getKey());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testClusteredInsertRemove() {
+        final int MAX = 100000;
+        Random rnd = new Random(42);
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        for (int i = 0; i < MAX; i++) {
+            // bursts of keys that are close to each other
+            long base = rnd.nextInt(MAX) * 100L;
+            for (int j = 0; j < 20; j++, i++) {
+                long key = base + rnd.nextInt(200);
+                if (rnd.nextInt(3) == 0) {
+                    assertEquals(map.containsKey(key) ? map.remove(key) : -1, 
+                            ind.removeLongNoFail(key, -1));
+                } else {
+                    ind.insertLong(key, i);
+                    map.put(key, (long) i);
+                }
+            }
+            if (rnd.nextInt(100) == 0) {
+                ind.write(paf.createWriter(false));
+            }
+        }
+        Iterator<LLEntry> it = ind.iterator();
+        for (Long key : map.keySet()) {
+            LLEntry e = it.next();
+            assertEquals((long) key, e.getKey());
+            assertEquals((long) map.get(key), e.getValue());
+        }
+        assertFalse(it.hasNext());
+
+        // remove in bursts
+        for (Long key : map.descendingKeySet()) {
+            assertEquals((long) map.get(key), ind.removeLong(key));
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testCursor() {
+        final int MAX = 100000;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i*2, 32+i);
+        }
+
+        BTreeLeafEntryIterator c = ind.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < MAX; i++) {
+            assertTrue(c.advance());
+            assertEquals(i*2, c.key());
+            assertEquals(32+i, c.value());
+        }
+        assertFalse(c.advance());
+        assertFalse(c.advance());
+
+        // range with bounds that are not in the index
+        c = ind.cursor(1001, 2001);
+        for (int i = 501; i <= 1000; i++) {
+            assertTrue(c.advance());
+            assertEquals(i*2, c.key());
+        }
+        assertFalse(c.advance());
+
+        c = ind.descendingCursor(2001, 1001);
+        for (int i = 1000; i >= 501; i--) {
+            assertTrue(c.advance());
+            assertEquals(i*2, c.key());
+            assertEquals(32+i, c.value());
+        }
+        assertFalse(c.advance());
+
+        c = ind.cursor(0, 10);
+        assertTrue(c.advance());
+        ind.insertLong(-1, 0);
+        try {
+            c.advance();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //good
+        }
+    }
+
+    @Test
+    public void testNextBlock() {
+        final int MAX = 100000;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i*2, 32+i);
+        }
+        long[] keys = new long[1000];
+        long[] values = new long[1000];
+        Random rnd = new Random(42);
+        long[][] ranges = {{Long.MIN_VALUE, Long.MAX_VALUE}, {1001, 150001}, {0, 0}, 
+                {-10, -1}, {MAX*2-2, Long.MAX_VALUE}};
+        for (long[] range : ranges) {
+            Iterator<LLEntry> it = ind.iterator(range[0], range[1]);
+            BTreeLeafEntryIterator c = ind.cursor(range[0], range[1]);
+            BTreeLeafEntryIterator d = ind.descendingCursor(range[1], range[0]);
+            List<LLEntry> entries = new ArrayList<>();
+            int n;
+            while ((n = c.nextBlock(keys, values, 1 + rnd.nextInt(1000))) > 0) {
+                for (int i = 0; i < n; i++) {
+                    LLEntry e = it.next();
+                    assertEquals(e.getKey(), keys[i]);
+                    assertEquals(e.getValue(), values[i]);
+                    entries.add(e);
+                }
+            }
+            assertFalse(it.hasNext());
+            assertEquals(0, c.nextBlock(keys, values, 1000));
+            
+            int pos = entries.size();
+            while ((n = d.nextBlock(keys, values, 1 + rnd.nextInt(1000))) > 0) {
+                for (int i = 0; i < n; i++) {
+                    LLEntry e = entries.get(--pos);
+                    assertEquals(e.getKey(), keys[i]);
+                    assertEquals(e.getValue(), values[i]);
+                }
+            }
+            assertEquals(0, pos);
+        }
+    }
+
+    @Test
+    public void testStream() {
+        final int MAX = 100000;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i*2, 32+i);
+        }
+        long[] all = ind.stream(Long.MIN_VALUE, Long.MAX_VALUE).parallel().toArray();
+        assertEquals(MAX, all.length);
+        for (int i = 0; i < MAX; i++) {
+            assertEquals(32+i, all[i]);
+        }
+        assertEquals(1000, ind.stream(1000, 2999).parallel().count());
+        assertEquals(0, ind.stream(-10, -1).parallel().count());
+        assertEquals(32, ind.stream(0, 0).parallel().sum());
+
+        // the parts cover the range without gaps or overlaps
+        BTreeSpliterator s1 = new BTreeSpliterator(ind.getTree(), 1001, 150001);
+        BTreeSpliterator s2 = (BTreeSpliterator) s1.trySplit();
+        assertNotNull(s2);
+        BTreeSpliterator s3 = (BTreeSpliterator) s2.trySplit();
+        assertNotNull(s3);
+        List<Long> values = new ArrayList<>();
+        s3.forEachRemaining((long v) -> values.add(v));
+        assertTrue(values.size() > 0);
+        s2.forEachRemaining((long v) -> values.add(v));
+        assertTrue(s1.tryAdvance((long v) -> values.add(v)));
+        assertNull(s1.trySplit());
+        s1.forEachRemaining((long v) -> values.add(v));
+        assertEquals(74500, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(32+501+i, (long) values.get(i));
+        }
+
+        BTreeSpliterator s4 = new BTreeSpliterator(ind.getTree(), 0, 10);
+        ind.insertLong(-1, 0);
+        try {
+            s4.tryAdvance((long v) -> values.add(v));
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //good
+        }
+    }
+
+    @Test
+    public void testStreamSized() {
+        final int MAX = 100000;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        ind.setStoreChildCounts(true);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i*2, 32+i);
+        }
+
+        // with child counts, the size of every part is counted exactly
+        BTreeSpliterator s1 = new BTreeSpliterator(ind.getTree(), 1001, 150001);
+        assertTrue(s1.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(74500, s1.getExactSizeIfKnown());
+        BTreeSpliterator s2 = (BTreeSpliterator) s1.trySplit();
+        assertNotNull(s2);
+        assertTrue(s2.hasCharacteristics(Spliterator.SUBSIZED));
+        long n1 = s1.getExactSizeIfKnown();
+        long n2 = s2.getExactSizeIfKnown();
+        assertEquals(74500, n1 + n2);
+        long[] n = new long[1];
+        s2.forEachRemaining((long v) -> n[0]++);
+        assertEquals(n2, n[0]);
+        assertTrue(s1.tryAdvance((long v) -> n[0]++));
+        assertEquals(n1 - 1, s1.estimateSize());
+        s1.forEachRemaining((long v) -> n[0]++);
+        assertEquals(74500, n[0]);
+        assertEquals(0, s1.estimateSize());
+        assertEquals(1000, ind.stream(1000, 2999).parallel().count());
+        assertEquals(0, ind.stream(-10, -1).parallel().count());
+
+        // without child counts, the size of the tree is the estimate
+        BTreeIndexUnique ind2 = (BTreeIndexUnique) createIndex();
+        for (int i = 0; i < MAX; i++) {
+            ind2.insertLong(i*2, 32+i);
+        }
+        BTreeSpliterator s3 = new BTreeSpliterator(ind2.getTree(), 1001, 150001);
+        assertFalse(s3.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(MAX, s3.estimateSize());
+        assertNotNull(s3.trySplit());
+        assertEquals(MAX / 2, s3.estimateSize());
+    }
+
+    @Test
+    public void testSize() {
+        final int MAX = 100000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        assertEquals(0, ind.size());
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, 32+i);
+        }
+        assertEquals(MAX, ind.size());
+        // replacing values does not change the size
+        for (int i = 0; i < MAX; i += 10) {
+            ind.insertLong(i, i);
+            assertFalse(ind.insertLongIfNotSet(i, i));
+        }
+        assertEquals(MAX, ind.size());
+        for (int i = 0; i < MAX; i += 2) {
+            ind.removeLong(i);
+            ind.removeLongNoFail(i, -1);
+        }
+        assertEquals(MAX/2, ind.size());
+        long[] keys = {-1, 1, 2, 2, MAX};
+        ind.insertAll(keys, new long[keys.length], keys.length);
+        assertEquals(MAX/2 + 3, ind.size());
+
+        // the size is stored with the root page
+        int root = ind.write(paf.createWriter(false));
+        BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        assertEquals(MAX/2 + 3, ind2.getTree().getRoot().getNumEntriesInTree());
+        assertEquals(MAX/2 + 3, ind2.size());
+        ind2.insertLong(MAX + 1, 0);
+        assertEquals(MAX/2 + 4, ind2.size());
+
+        // the size is kept when subtrees are removed by a range delete
+        ind2.removeRange(1000, 49999);
+        assertEquals(MAX/2 + 4 - 24500, ind2.getTree().getRoot().getNumEntriesInTree());
+        assertEquals(MAX/2 + 4 - 24500, ind2.size());
+        ind2.removeRange(60000, 79999);
+        assertEquals(MAX/2 + 4 - 34500, ind2.getTree().getRoot().getNumEntriesInTree());
+        assertEquals(MAX/2 + 4 - 34500, ind2.size());
+        root = ind2.write(paf.createWriter(false));
+        ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        assertEquals(MAX/2 + 4 - 34500, ind2.size());
+
+        List<LLEntry> entries = new ArrayList<>();
+        for (int i = 0; i < MAX; i++) {
+            entries.add(new LLEntry(i, i));
+        }
+        BTreeIndexUnique loaded = (BTreeIndexUnique) createIndex(paf);
+        loaded.bulkLoad(entries.iterator(), 1.0, paf.createWriter(false));
+        assertEquals(MAX, loaded.size());
+        root = loaded.write(paf.createWriter(false));
+        assertEquals(MAX, new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root).size());
+    }
+
+    @Test
+    public void testStatistics() {
+        final int MAX = 100000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        // the sizes of the freed subtrees are known without reading them
+        ind.setStoreChildCounts(true);
+        checkStatistics(ind);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, 32+i);
+        }
+        checkStatistics(ind);
+        for (int i = 0; i < MAX; i += 2) {
+            ind.removeLong(i);
+        }
+        checkStatistics(ind);
+        ind.removeRange(1000, MAX - 1000);
+        checkStatistics(ind);
+        for (int i = MAX - 1000; i < MAX; i++) {
+            ind.removeLongNoFail(i, -1);
+        }
+        checkStatistics(ind);
+
+        // the nodes of a tree in storage are counted once
+        int root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        checkStatistics(ind);
+        for (int i = 0; i < MAX; i += 3) {
+            ind.insertLong(i, i);
+        }
+        checkStatistics(ind);
+
+        // leaves that are freed without reading them are not counted again
+        root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        ind.getBufferManager().setMaxPinnedInnerNodeBytes(Long.MAX_VALUE);
+        ind.getBufferManager().setMaxCleanBufferElements(50);
+        checkStatistics(ind);
+        int nRead = ind.getBufferManager().getStatNReadPages();
+        ind.removeRange(5000, MAX - 5000);
+        assertTrue(ind.getBufferManager().getStatistics().isKnown());
+        assertTrue(ind.getBufferManager().getStatNReadPages() - nRead < 20);
+        checkStatistics(ind);
+
+        ind.clear();
+        checkStatistics(ind);
+        List<LLEntry> entries = new ArrayList<>();
+        for (int i = 0; i < MAX; i++) {
+            entries.add(new LLEntry(i, i));
+        }
+        ind.bulkLoad(entries.iterator(), 0.5, null);
+        checkStatistics(ind);
+    }
+
+    private static void checkStatistics(BTreeIndexUnique ind) {
+        int nInner = 0;
+        int nLeaves = 0;
+        long bytes = 0;
+        BTreeIterator it = new BTreeIterator(ind.getTree());
+        while (it.hasNext()) {
+            BTreeNode node = it.next();
+            if (node.isLeaf()) {
+                nLeaves++;
+            } else {
+                nInner++;
+            }
+            bytes += node.getCurrentSize();
+        }
+        if (ind.getTree().isEmpty()) {
+            nLeaves = 1;
+            bytes = ind.getTree().getRoot().getCurrentSize();
+        }
+        int height = 1;
+        for (BTreeNode node = ind.getTree().getRoot(); !node.isLeaf(); 
+                node = node.getChild(0)) {
+            height++;
+        }
+        assertEquals(nInner, ind.statsGetInnerN());
+        assertEquals(nLeaves, ind.statsGetLeavesN());
+        assertEquals(bytes, ind.statsGetBytes());
+        assertEquals(height, ind.statsGetHeight());
+    }
+
+    @Test
+    public void testRankAndSelect() {
+        rankAndSelect(false);
+    }
+
+    @Test
+    public void testRankAndSelectWithStoredCounts() {
+        rankAndSelect(true);
+    }
+
+    private void rankAndSelect(boolean storeChildCounts) {
+        final int MAX = 20000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        ind.setStoreChildCounts(storeChildCounts);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        Random rnd = new Random(0);
+        checkRankAndSelect(ind, map, rnd);
+        for (int i = 0; i < MAX; i++) {
+            long key = rnd.nextInt(4 * MAX);
+            ind.insertLong(key, i);
+            map.put(key, (long) i);
+            if (i % 1000 == 0) {
+                checkRankAndSelect(ind, map, rnd);
+            }
+        }
+        checkRankAndSelect(ind, map, rnd);
+        for (int i = 0; i < MAX; i++) {
+            long key = rnd.nextInt(4 * MAX);
+            if (map.remove(key) != null) {
+                ind.removeLong(key);
+            }
+            if (i % 1000 == 0) {
+                checkRankAndSelect(ind, map, rnd);
+            }
+        }
+        checkRankAndSelect(ind, map, rnd);
+
+        ind.removeRange(1000, 30000);
+        map.subMap(1000L, true, 30000L, true).clear();
+        checkRankAndSelect(ind, map, rnd);
+
+        long[] keys = new long[MAX / 2];
+        long[] values = new long[MAX / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rnd.nextInt(4 * MAX);
+            values[i] = i;
+            map.put(keys[i], values[i]);
+        }
+        ind.insertAll(keys, values, keys.length);
+        checkRankAndSelect(ind, map, rnd);
+
+        int root = ind.write(paf.createWriter(false));
+        int height = ind.statsGetHeight();
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        ind.setStoreChildCounts(storeChildCounts);
+        if (storeChildCounts) {
+            // only the paths to the ends of the range are read
+            int nRead = ind.getBufferManager().getStatNReadPages();
+            long min = map.firstKey() + 100;
+            long max = map.lastKey() - 100;
+            assertEquals(map.subMap(min, true, max, true).size(), 
+                    ind.countInRange(min, max));
+            assertEquals(map.headMap(max).size(), ind.rank(max));
+            assertEquals((long) map.ceilingKey(max), ind.select(ind.rank(max)).getKey());
+            assertTrue(ind.getBufferManager().getStatNReadPages() - nRead <= 3 * height);
+        }
+        checkRankAndSelect(ind, map, rnd);
+
+        // the counts are also known after modifications of the loaded tree
+        for (int i = 0; i < MAX / 10; i++) {
+            long key = rnd.nextInt(4 * MAX);
+            ind.insertLong(key, i);
+            map.put(key, (long) i);
+        }
+        ind.removeRange(30000, 40000);
+        map.subMap(30000L, true, 40000L, true).clear();
+        root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        if (storeChildCounts) {
+            int nRead = ind.getBufferManager().getStatNReadPages();
+            assertEquals(map.size() / 2, ind.rank(ind.select(map.size() / 2).getKey()));
+            assertTrue(ind.getBufferManager().getStatNReadPages() - nRead <= 2 * height);
+        }
+        checkRankAndSelect(ind, map, rnd);
+    }
+
+    @Test
+    public void testStoreChildCountsIsKept() {
+        final int MAX = 20000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        ind.setStoreChildCounts(true);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, i);
+        }
+        // the setting is taken from the root page, also after the index 
+        // has been modified and written again
+        for (int r = 0; r < 2; r++) {
+            int root = ind.write(paf.createWriter(false));
+            ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+            assertTrue(ind.getBufferManager().isStoringChildCounts());
+            for (int i = r; i < MAX; i += 10) {
+                ind.removeLong(i);
+            }
+        }
+        int root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        int height = ind.statsGetHeight();
+        int nRead = ind.getBufferManager().getStatNReadPages();
+        assertEquals(MAX / 2 - MAX / 10, ind.rank(MAX / 2));
+        assertTrue(ind.getBufferManager().getStatNReadPages() - nRead <= height);
+
+        // the setting can not be changed while the index has inner nodes
+        try {
+            ind.setStoreChildCounts(false);
+            fail();
+        } catch (IllegalStateException e) {
+            //good
+        }
+
+        // an index without counts is loaded without counts
+        ind = (BTreeIndexUnique) createIndex(paf);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, i);
+        }
+        root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        assertFalse(ind.getBufferManager().isStoringChildCounts());
+        assertEquals(MAX / 2, ind.rank(MAX / 2));
+    }
+
+    private static void checkRankAndSelect(BTreeIndexUnique ind, 
+            TreeMap<Long, Long> map, Random rnd) {
+        assertEquals(map.size(), ind.size());
+        int i = 0;
+        for (Map.Entry<Long, Long> e : map.entrySet()) {
+            if (i % 7 == 0) {
+                LLEntry entry = ind.select(i);
+                assertEquals((long) e.getKey(), entry.getKey());
+                assertEquals((long) e.getValue(), entry.getValue());
+                assertEquals(i, ind.rank(e.getKey()));
+                assertEquals(i + 1, ind.rank(e.getKey() + 1));
+            }
+            i++;
+        }
+        for (int j = 0; j < 100; j++) {
+            long min = rnd.nextInt(100000) - 10000;
+            long max = min + rnd.nextInt(30000);
+            assertEquals(map.subMap(min, true, max, true).size(), 
+                    ind.countInRange(min, max));
+        }
+        assertEquals(0, ind.countInRange(10, 9));
+        try {
+            ind.select(map.size());
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            //good
+        }
+    }
+
+    @Test
+    public void testSnapshotCursor() {
+        final int MAX = 20000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        Random rnd = new Random(0);
+        for (int i = 0; i < MAX; i++) {
+            long key = rnd.nextInt(4 * MAX);
+            ind.insertLong(key, i);
+            map.put(key, (long) i);
+        }
+        ind.write(paf.createWriter(false));
+        // some nodes are dirty and get new page ids when they are written
+        for (int i = 0; i < 100; i++) {
+            long key = rnd.nextInt(4 * MAX);
+            ind.insertLong(key, i);
+            map.put(key, (long) i);
+        }
+
+        BTreeLeafEntryIterator c = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        Iterator<Map.Entry<Long, Long>> it = new TreeMap<>(map).entrySet().iterator();
+        BTreeLeafEntryIterator cd = ind.descendingSnapshotCursor(60000, 10000);
+        Iterator<Map.Entry<Long, Long>> itd =
+                new TreeMap<>(map.subMap(10000L, true, 60000L, true)).descendingMap()
+                .entrySet().iterator();
+        for (int round = 0; round < 20; round++) {
+            checkSnapshotCursor(c, it, 500);
+            checkSnapshotCursor(cd, itd, 200);
+            for (int i = 0; i < 1000; i++) {
+                long key = rnd.nextInt(4 * MAX);
+                if (map.remove(key) != null) {
+                    ind.removeLong(key);
+                } else {
+                    ind.insertLong(key, -i);
+                    map.put(key, (long) -i);
+                }
+            }
+            if (round % 5 == 2) {
+                long min = rnd.nextInt(4 * MAX);
+                ind.removeRange(min, min + 5000);
+                map.subMap(min, true, min + 5000, true).clear();
+            }
+            if (round % 3 == 0) {
+                ind.write(paf.createWriter(false));
+            }
+        }
+        checkSnapshotCursor(c, it, Integer.MAX_VALUE);
+        checkSnapshotCursor(cd, itd, Integer.MAX_VALUE);
+        c.close();
+        cd.close();
+        assertFalse(ind.getBufferManager().getSnapshots().isActive());
+
+        // the tree has not been affected by the snapshots
+        assertEquals(map.size(), ind.size());
+        checkSnapshotCursor(ind.cursor(Long.MIN_VALUE, Long.MAX_VALUE),
+                map.entrySet().iterator(), Integer.MAX_VALUE);
+
+        c = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        it = new TreeMap<>(map).entrySet().iterator();
+        checkSnapshotCursor(c, it, 100);
+        ind.clear();
+        ind.insertLong(5, 5);
+        checkSnapshotCursor(c, it, Integer.MAX_VALUE);
+        c.close();
+    }
+
+    @Test
+    public void testSnapshotRemoveRange() {
+        final int MAX = 100000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        // the sizes of the freed subtrees are known without reading them
+        ind.setStoreChildCounts(true);
+        TreeMap<Long, Long> map = new TreeMap<>();
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, 32+i);
+            map.put((long) i, 32L+i);
+        }
+        int nInner = ind.statsGetInnerN();
+        int root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        ind.setStoreChildCounts(true);
+        BTreeSnapshot.Registry snapshots = ind.getBufferManager().getSnapshots();
+
+        // the freed leaves are not read for the snapshots
+        BTreeLeafEntryIterator c = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        Iterator<Map.Entry<Long, Long>> it = new TreeMap<>(map).entrySet().iterator();
+        checkSnapshotCursor(c, it, 100);
+        int nRead = ind.getBufferManager().getStatNReadPages();
+        ind.removeRange(1000, MAX - 1000);
+        map.subMap(1000L, true, MAX - 1000L, true).clear();
+        assertTrue(ind.getBufferManager().getStatNReadPages() - nRead < nInner + 20);
+        assertTrue(snapshots.getDeferredPagesN() > 0);
+
+        // the freed pages are kept until the snapshot is closed
+        BTreeLeafEntryIterator c2 = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        checkSnapshotCursor(c, it, Integer.MAX_VALUE);
+        c.close();
+        assertTrue(snapshots.isActive());
+        assertEquals(0, snapshots.getDeferredPagesN());
+        ind.removeRange(0, 500);
+        map.subMap(0L, true, 500L, true).clear();
+        checkSnapshotCursor(ind.cursor(Long.MIN_VALUE, Long.MAX_VALUE),
+                map.entrySet().iterator(), Integer.MAX_VALUE);
+        c2.close();
+        assertFalse(snapshots.isActive());
+        assertEquals(0, snapshots.getDeferredPagesN());
+        assertEquals(map.size(), ind.size());
+    }
+
+    @Test
+    public void testSnapshotEndOfTransaction() {
+        final int MAX = 100000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        ind.setStoreChildCounts(true);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, 32+i);
+        }
+        int root = ind.write(paf.createWriter(false));
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        ind.setStoreChildCounts(true);
+        BTreeSnapshot.Registry snapshots = ind.getBufferManager().getSnapshots();
+
+        // the pages of a rollback are dropped, the ones of a commit are freed
+        for (boolean commit : new boolean[]{false, true}) {
+            BTreeLeafEntryIterator c = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+            assertTrue(c.advance());
+            ind.removeRange(commit ? 1000 : 50000, commit ? 20000 : 70000);
+            assertTrue(snapshots.getDeferredPagesN() > 0);
+            ind.endTransaction(commit);
+            assertFalse(snapshots.isActive());
+            assertEquals(0, snapshots.getDeferredPagesN());
+            c.close();
+        }
+
+        // the snapshots of a transaction that has ended are closed
+        BTreeLeafEntryIterator c = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(c.advance());
+        ind.removeRange(80000, 90000);
+        assertTrue(snapshots.getDeferredPagesN() > 0);
+        paf.startWriting(paf.getTxId() + 1);
+        try {
+            c.advance();
+            fail();
+        } catch (JDOUserException e) {
+            //good
+        }
+        assertFalse(snapshots.isActive());
+        assertEquals(0, snapshots.getDeferredPagesN());
+        assertEquals(MAX - 19001 - 20001 - 10001, ind.size());
+    }
+
+    @Test
+    public void testSnapshotFreePages() {
+        final int MAX = 100000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        ind.setStoreChildCounts(true);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(i, 32+i);
+        }
+        int root = ind.write(paf.createWriter(false));
+        List<Integer> pageIds = pageIds(paf, root);
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        BTreeSnapshot.Registry snapshots = ind.getBufferManager().getSnapshots();
+
+        // without open snapshots, the pages are freed right away
+        ind.removeRange(1000, MAX - 1000);
+        assertEquals(0, snapshots.getDeferredPagesN());
+        List<Integer> freed = freedPageIds(ind, pageIds);
+        assertTrue(freed.size() > 0);
+        for (Integer pageId : freed) {
+            assertTrue(paf.debugIsPageIdInFreeList(pageId));
+        }
+
+        // with an open snapshot, they are freed when the index is written
+        root = ind.write(paf.createWriter(false));
+        pageIds = pageIds(paf, root);
+        ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        snapshots = ind.getBufferManager().getSnapshots();
+        BTreeLeafEntryIterator c = ind.snapshotCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(c.advance());
+        ind.removeRange(0, 500);
+        int nDeferred = snapshots.getDeferredPagesN();
+        assertTrue(nDeferred > 0);
+        freed = freedPageIds(ind, pageIds);
+        int nNotFree = 0;
+        for (Integer pageId : freed) {
+            if (!paf.debugIsPageIdInFreeList(pageId)) {
+                nNotFree++;
+            }
+        }
+        assertEquals(nDeferred, nNotFree);
+        ind.write(paf.createWriter(false));
+        assertFalse(snapshots.isActive());
+        assertEquals(0, snapshots.getDeferredPagesN());
+        for (Integer pageId : freed) {
+            assertTrue(paf.debugIsPageIdInFreeList(pageId));
+        }
+        c.close();
+        assertEquals(MAX - 98001 - 501, ind.size());
+    }
+
+    /**
+     * @return The pages of the index with the given root, all nodes are read.
+     */
+    private static List<Integer> pageIds(IOResourceProvider paf, int root) {
+        BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, root);
+        return ind.getBufferManager().debugPageIds(ind.getTree());
+    }
+
+    /**
+     * @return The pages that are not used by the index anymore.
+     */
+    private static List<Integer> freedPageIds(BTreeIndexUnique ind, List<Integer> pageIds) {
+        List<Integer> used = ind.getBufferManager().debugPageIds(ind.getTree());
+        List<Integer> freed = new ArrayList<>(pageIds);
+        freed.removeAll(used);
+        return freed;
+    }
+
+    private static void checkSnapshotCursor(BTreeLeafEntryIterator c,
+            Iterator<Map.Entry<Long, Long>> expected, int n) {
+        for (int i = 0; i < n && expected.hasNext(); i++) {
+            Map.Entry<Long, Long> e = expected.next();
+            assertTrue(c.advance());
+            assertEquals((long) e.getKey(), c.key());
+            assertEquals((long) e.getValue(), c.value());
+        }
+        if (!expected.hasNext()) {
+            assertFalse(c.advance());
+        }
+    }
+
+    @Test
+    public void testBulkLoadUnsorted() {
+        List<LLEntry> entries = new ArrayList<>();
+        entries.add(new LLEntry(1, 1));
+        entries.add(new LLEntry(3, 3));
+        entries.add(new LLEntry(3, 4));
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        try {
+            ind.bulkLoad(entries.iterator(), 1.0, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //good, duplicate key
+        }
+        checkEmptyAfterBulkLoad(ind, null);
+
+        // the entries are not sorted after several pages have been written
+        final int MAX = 10000;
+        entries.clear();
+        for (int i = 1000; i < 1000+MAX; i++) {
+            entries.add(new LLEntry(i, 32+i));
+        }
+        entries.add(new LLEntry(5, 5));
+        IOResourceProvider paf = createPageAccessFile();
+        ind = (BTreeIndexUnique) createIndex(paf);
+        try {
+            ind.bulkLoad(entries.iterator(), 1.0, paf.createWriter(false));
+            fail();
+        } catch (IllegalArgumentException e) {
+            //good, not sorted
+        }
+        entries.remove(entries.size() - 1);
+        checkEmptyAfterBulkLoad(ind, paf);
+    }
+
+    private void checkEmptyAfterBulkLoad(BTreeIndexUnique ind, IOResourceProvider paf) {
+        assertEquals(0, ind.size());
+        assertEquals(1, ind.statsGetLeavesN());
+        assertEquals(0, ind.statsGetInnerN());
+        assertFalse(ind.iterator().hasNext());
+        assertNull(ind.findValue(1));
+
+        // the index is still usable
+        List<LLEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new LLEntry(i, 32+i));
+        }
+        ind.bulkLoad(entries.iterator(), 1.0, paf == null ? null : paf.createWriter(false));
+        assertEquals(1000, ind.size());
+        assertEquals(999, ind.getMaxKey());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(32+i, ind.findValue(i).getValue());
+        }
+        ind.insertLong(1000, 1032);
+        assertEquals(1001, ind.size());
+    }
+
     
     //TODO test random add
     //TODO test values/pages > 63bit/31bit (MAX_VALUE?!)
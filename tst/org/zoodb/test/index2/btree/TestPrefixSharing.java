@@ -161,6 +161,33 @@ public class TestPrefixSharing {
         assertArrayEquals(inputArray, decodedArray);
     }
 
+    @Test
+    public void testEncodeDecodeSameAsPerBit() {
+        Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            int size = random.nextInt(300);
+            long[] inputArray = new long[size];
+            //vary the prefix from 0 to 64 bits
+            long base = random.nextLong();
+            long mask = n % 65 == 64 ? 0 : -1L >>> (n % 65);
+            for (int i = 0; i < size; i++) {
+                inputArray[i] = base ^ (random.nextLong() & mask);
+            }
+            Arrays.sort(inputArray);
+            long prefix = PrefixSharingHelper.computePrefix(inputArray);
+
+            byte[] bytes = PrefixSharingHelper.encodeArray(inputArray, size, prefix);
+            byte[] expected = PrefixSharingPerBit.encodeArray(inputArray, size, prefix);
+            assertArrayEquals(expected, bytes);
+
+            int offset = PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+            long[] decodedArray = PrefixSharingHelper.decodeArray(bytes, offset, size, size + 3, (byte) prefix);
+            assertArrayEquals(PrefixSharingPerBit.decodeArray(bytes, offset, size, size + 3, (byte) prefix), 
+                    decodedArray);
+            assertArrayEquals(inputArray, Arrays.copyOf(decodedArray, size));
+        }
+    }
+
     @Test
     public void testComputedSizesOfChildrenInsert() {
         int pageSize = 256;
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.test.index2.performance;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
+import org.zoodb.internal.server.StorageRootInMemory;
+import org.zoodb.internal.server.index.BTreeIndexUnique;
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
+import org.zoodb.tools.ZooConfig;
+
+/**
+ * Compares looking up sorted keys with {@link BTreeIndexUnique#findValue(long)}
+ * per key with looking them up in one batch, see
+ * {@link BTreeIndexUnique#findValues(long[], long[], int, long)}.
+ * All nodes of the index are in memory.
+ */
+public class FindValuesBenchmark {
+
+	private static final int NUM_ENTRIES = 1000000;
+	private static final int NUM_PROBES = 200000;
+	private static final int REPEAT = 10;
+
+	public static void main(String[] args) {
+		BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX,
+				new StorageRootInMemory(ZooConfig.getFilePageSize()).createChannel());
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			ind.insertLong(i, 32+i);
+		}
+		Random rnd = new Random(0);
+		long[] keys = new long[NUM_PROBES];
+		for (int i = 0; i < NUM_PROBES; i++) {
+			keys[i] = rnd.nextInt(NUM_ENTRIES);
+		}
+		Arrays.sort(keys);
+		long[] values = new long[NUM_PROBES];
+
+		long tSingle = Long.MAX_VALUE;
+		long tBatch = Long.MAX_VALUE;
+		long check = 0;
+		for (int r = 0; r < REPEAT; r++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < NUM_PROBES; i++) {
+				LLEntry e = ind.findValue(keys[i]);
+				check += e.getValue();
+			}
+			long t1 = System.nanoTime();
+			check += ind.findValues(keys, values, NUM_PROBES, -1);
+			long t2 = System.nanoTime();
+			tSingle = Math.min(tSingle, t1 - t0);
+			tBatch = Math.min(tBatch, t2 - t1);
+		}
+
+		System.out.println("entries: " + NUM_ENTRIES + ", probes: " + NUM_PROBES 
+				+ " (" + check + ")");
+		print("findValue()", tSingle);
+		print("findValues()", tBatch);
+	}
+
+	private static void print(String op, long t) {
+		System.out.println(String.format("  %-28s %6.1f ms, %5.1f ns/probe",
+				op + ":", t / 1e6, (double) t / NUM_PROBES));
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.test.index2.performance;
+
+import java.util.Random;
+
+import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
+import org.zoodb.internal.server.StorageRootInMemory;
+import org.zoodb.internal.server.index.BTreeIndexUnique;
+import org.zoodb.tools.ZooConfig;
+
+/**
+ * Compares filling an empty index with random keys one by one with
+ * filling it in batches, see {@link BTreeIndexUnique#insertAll(long[], long[], int)}.
+ * All nodes of the index are in memory.
+ */
+public class InsertAllBenchmark {
+
+	private static final int NUM_ENTRIES = 200000;
+	private static final int BATCH_SIZE = 20000;
+	private static final int REPEAT = 10;
+
+	public static void main(String[] args) {
+		Random rnd = new Random(0);
+		long[] keys = new long[NUM_ENTRIES];
+		long[] values = new long[NUM_ENTRIES];
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			keys[i] = rnd.nextLong();
+			values[i] = 32+i;
+		}
+
+		long tSingle = Long.MAX_VALUE;
+		long tBatch = Long.MAX_VALUE;
+		long[] batchKeys = new long[BATCH_SIZE];
+		long[] batchValues = new long[BATCH_SIZE];
+		long check = 0;
+		for (int r = 0; r < REPEAT; r++) {
+			BTreeIndexUnique ind = newIndex();
+			long t0 = System.nanoTime();
+			for (int i = 0; i < NUM_ENTRIES; i++) {
+				ind.insertLong(keys[i], values[i]);
+			}
+			long t1 = System.nanoTime();
+			check += ind.size();
+
+			ind = newIndex();
+			long t2 = System.nanoTime();
+			for (int i = 0; i < NUM_ENTRIES; i += BATCH_SIZE) {
+				int n = Math.min(BATCH_SIZE, NUM_ENTRIES - i);
+				System.arraycopy(keys, i, batchKeys, 0, n);
+				System.arraycopy(values, i, batchValues, 0, n);
+				ind.insertAll(batchKeys, batchValues, n);
+			}
+			long t3 = System.nanoTime();
+			check += ind.size();
+			tSingle = Math.min(tSingle, t1 - t0);
+			tBatch = Math.min(tBatch, t3 - t2);
+		}
+
+		System.out.println("entries: " + NUM_ENTRIES + " (" + check + ")");
+		print("insertLong()", tSingle);
+		print("insertAll(), batches of " + BATCH_SIZE, tBatch);
+	}
+
+	private static BTreeIndexUnique newIndex() {
+		return new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX,
+				new StorageRootInMemory(ZooConfig.getFilePageSize()).createChannel());
+	}
+
+	private static void print(String op, long t) {
+		System.out.println(String.format("  %-32s %6.1f ms, %5.1f ns/entry",
+				op + ":", t / 1e6, (double) t / NUM_ENTRIES));
+	}
+}
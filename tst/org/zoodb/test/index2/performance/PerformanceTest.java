@@ -152,6 +152,9 @@ public class PerformanceTest {
 		for (int numElements : numElementsArray) {
 			insertPerformanceHelper(index,
 					increasingEntriesUnique(numElements), "increasing", io);
+			// same access pattern, but without appends to the rightmost leaf
+			insertPerformanceHelper(index,
+					decreasingEntriesUnique(numElements), "decreasing", io);
 		}
 
 		if (!isUnique(index)) {
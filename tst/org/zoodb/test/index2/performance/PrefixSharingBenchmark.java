@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.test.index2.performance;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
+import org.zoodb.test.index2.btree.PrefixSharingPerBit;
+
+/**
+ * Compares the word-at-a-time prefix sharing encoding with the reference
+ * implementation that encodes one bit at a time. The key arrays have the
+ * size of a full 4 KB leaf page.
+ */
+public class PrefixSharingBenchmark {
+
+	private static final int PAGE_SIZE = 4096;
+	private static final int NUM_PAGES = 1000;
+	private static final int REPEAT = 5;
+	// bits that differ between the keys of a page
+	private static final int[] SUFFIX_BITS = {16, 32, 48, 64};
+
+	public static void main(String[] args) {
+		for (int suffixBits : SUFFIX_BITS) {
+			run(suffixBits);
+		}
+	}
+
+	private static void run(int suffixBits) {
+		Random random = new Random(42);
+		long prefix = 64 - suffixBits;
+		// keys only, leaf values take 8 byte each
+		int numKeys = 0;
+		while (PrefixSharingHelper.encodedArraySize(numKeys + 1, prefix)
+				+ (numKeys + 1) * 8 <= PAGE_SIZE) {
+			numKeys++;
+		}
+		long[][] pages = new long[NUM_PAGES][];
+		byte[][] encoded = new byte[NUM_PAGES][];
+		for (int p = 0; p < NUM_PAGES; p++) {
+			long base = random.nextLong();
+			long mask = suffixBits == 64 ? -1L : (1L << suffixBits) - 1;
+			long[] keys = new long[numKeys];
+			for (int i = 0; i < numKeys; i++) {
+				keys[i] = (base & ~mask) | (random.nextLong() & mask);
+			}
+			Arrays.sort(keys);
+			// make sure that the prefix has the required length
+			keys[0] = base & ~mask;
+			keys[numKeys - 1] = (base & ~mask) | mask;
+			pages[p] = keys;
+			encoded[p] = PrefixSharingHelper.encodeArray(keys, numKeys, prefix);
+		}
+
+		long tEncodePerBit = Long.MAX_VALUE;
+		long tEncode = Long.MAX_VALUE;
+		long tDecodePerBit = Long.MAX_VALUE;
+		long tDecode = Long.MAX_VALUE;
+		long check = 0;
+		int offset = PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+		for (int r = 0; r < REPEAT; r++) {
+			long t0 = System.nanoTime();
+			for (long[] keys : pages) {
+				check += PrefixSharingPerBit.encodeArray(keys, numKeys, prefix).length;
+			}
+			long t1 = System.nanoTime();
+			for (long[] keys : pages) {
+				check += PrefixSharingHelper.encodeArray(keys, numKeys, prefix).length;
+			}
+			long t2 = System.nanoTime();
+			for (byte[] bytes : encoded) {
+				check += PrefixSharingPerBit.decodeArray(
+						bytes, offset, numKeys, numKeys, (byte) prefix)[0];
+			}
+			long t3 = System.nanoTime();
+			for (byte[] bytes : encoded) {
+				check += PrefixSharingHelper.decodeArray(
+						bytes, offset, numKeys, numKeys, (byte) prefix)[0];
+			}
+			long t4 = System.nanoTime();
+			tEncodePerBit = Math.min(tEncodePerBit, t1 - t0);
+			tEncode = Math.min(tEncode, t2 - t1);
+			tDecodePerBit = Math.min(tDecodePerBit, t3 - t2);
+			tDecode = Math.min(tDecode, t4 - t3);
+		}
+
+		System.out.println("suffix bits: " + suffixBits + ", keys per page: " + numKeys
+				+ " (" + check + ")");
+		print("encode", tEncodePerBit, tEncode);
+		print("decode", tDecodePerBit, tDecode);
+	}
+
+	private static void print(String op, long tPerBit, long tWord) {
+		System.out.println(String.format("  %s: per bit %8d ns/page, per word %8d ns/page, speedup %.1fx",
+				op, tPerBit / NUM_PAGES, tWord / NUM_PAGES, (double) tPerBit / tWord));
+	}
+}
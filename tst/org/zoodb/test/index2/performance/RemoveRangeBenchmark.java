@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.test.index2.performance;
+
+import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
+import org.zoodb.internal.server.StorageRootInMemory;
+import org.zoodb.internal.server.index.BTreeIndexUnique;
+import org.zoodb.tools.ZooConfig;
+
+/**
+ * Compares deleting 90% of an index with {@link BTreeIndexUnique#removeLong(long)}
+ * per key with deleting the same entries in ten ranges, see 
+ * {@link BTreeIndexUnique#removeRange(long, long)}.
+ * All nodes of the index are in memory.
+ */
+public class RemoveRangeBenchmark {
+
+	private static final int NUM_ENTRIES = 1000000;
+	private static final int NUM_RANGES = 10;
+	private static final int REPEAT = 10;
+
+	public static void main(String[] args) {
+		int rangeStep = NUM_ENTRIES / NUM_RANGES;
+		int rangeSize = rangeStep - rangeStep / 10;
+
+		long tSingle = Long.MAX_VALUE;
+		long tRange = Long.MAX_VALUE;
+		long check = 0;
+		for (int r = 0; r < REPEAT; r++) {
+			BTreeIndexUnique ind = newIndex();
+			long t0 = System.nanoTime();
+			for (int s = 0; s < NUM_ENTRIES; s += rangeStep) {
+				for (int i = s; i < s + rangeSize; i++) {
+					ind.removeLong(i);
+				}
+			}
+			long t1 = System.nanoTime();
+			check += ind.size();
+
+			ind = newIndex();
+			long t2 = System.nanoTime();
+			for (int s = 0; s < NUM_ENTRIES; s += rangeStep) {
+				ind.removeRange(s, s + rangeSize - 1);
+			}
+			long t3 = System.nanoTime();
+			check += ind.size();
+			tSingle = Math.min(tSingle, t1 - t0);
+			tRange = Math.min(tRange, t3 - t2);
+		}
+
+		System.out.println("entries: " + NUM_ENTRIES + " (" + check + ")");
+		print("removeLong()", tSingle);
+		print("removeRange(), " + NUM_RANGES + " ranges", tRange);
+	}
+
+	private static BTreeIndexUnique newIndex() {
+		BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX,
+				new StorageRootInMemory(ZooConfig.getFilePageSize()).createChannel());
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			ind.insertLong(i, 32+i);
+		}
+		return ind;
+	}
+
+	private static void print(String op, long t) {
+		System.out.println(String.format("  %-28s %6.1f ms", op + ":", t / 1e6));
+	}
+}
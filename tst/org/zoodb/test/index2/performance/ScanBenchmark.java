@@ -0,0 +1,110 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.test.index2.performance;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
+import org.zoodb.internal.server.StorageRootInMemory;
+import org.zoodb.internal.server.index.BTreeIndexUnique;
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
+import org.zoodb.internal.server.index.btree.BTreeLeafEntryIterator;
+import org.zoodb.tools.ZooConfig;
+
+/**
+ * Compares full scans of an index with the entry iterator, with the
+ * cursor moved one entry at a time and with the cursor copying blocks of
+ * entries, see {@link BTreeLeafEntryIterator#nextBlock(long[], long[], int)}.
+ * All nodes of the index are in memory.
+ */
+public class ScanBenchmark {
+
+	private static final int NUM_ENTRIES = 2000000;
+	private static final int REPEAT = 10;
+	private static final int[] BLOCK_SIZES = {16, 128, 1024};
+
+	public static void main(String[] args) {
+		BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX,
+				new StorageRootInMemory(ZooConfig.getFilePageSize()).createChannel());
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			ind.insertLong(i, 32+i);
+		}
+
+		long tIterator = Long.MAX_VALUE;
+		long tAdvance = Long.MAX_VALUE;
+		long[] tBlock = new long[BLOCK_SIZES.length];
+		long[] tDescendingBlock = new long[BLOCK_SIZES.length];
+		Arrays.fill(tBlock, Long.MAX_VALUE);
+		Arrays.fill(tDescendingBlock, Long.MAX_VALUE);
+		long check = 0;
+		for (int r = 0; r < REPEAT; r++) {
+			long t0 = System.nanoTime();
+			Iterator<LLEntry> it = ind.iterator();
+			while (it.hasNext()) {
+				check += it.next().getValue();
+			}
+			long t1 = System.nanoTime();
+			BTreeLeafEntryIterator cursor = ind.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+			while (cursor.advance()) {
+				check += cursor.value();
+			}
+			long t2 = System.nanoTime();
+			tIterator = Math.min(tIterator, t1 - t0);
+			tAdvance = Math.min(tAdvance, t2 - t1);
+
+			for (int b = 0; b < BLOCK_SIZES.length; b++) {
+				long[] keys = new long[BLOCK_SIZES[b]];
+				long[] values = new long[BLOCK_SIZES[b]];
+				long t3 = System.nanoTime();
+				check += scan(ind.cursor(Long.MIN_VALUE, Long.MAX_VALUE), keys, values);
+				long t4 = System.nanoTime();
+				check += scan(ind.descendingCursor(Long.MAX_VALUE, Long.MIN_VALUE),
+						keys, values);
+				long t5 = System.nanoTime();
+				tBlock[b] = Math.min(tBlock[b], t4 - t3);
+				tDescendingBlock[b] = Math.min(tDescendingBlock[b], t5 - t4);
+			}
+		}
+
+		System.out.println("entries: " + NUM_ENTRIES + " (" + check + ")");
+		print("iterator", tIterator);
+		print("cursor", tAdvance);
+		for (int b = 0; b < BLOCK_SIZES.length; b++) {
+			print("blocks of " + BLOCK_SIZES[b], tBlock[b]);
+			print("descending blocks of " + BLOCK_SIZES[b], tDescendingBlock[b]);
+		}
+	}
+
+	private static long scan(BTreeLeafEntryIterator cursor, long[] keys, long[] values) {
+		long check = 0;
+		int n;
+		while ((n = cursor.nextBlock(keys, values, keys.length)) > 0) {
+			check += values[n - 1];
+		}
+		return check;
+	}
+
+	private static void print(String scan, long t) {
+		System.out.println(String.format("  %-28s %6.1f ms, %5.1f ns/entry",
+				scan + ":", t / 1e6, (double) t / NUM_ENTRIES));
+	}
+}